@@ -30,7 +30,6 @@ import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.net.Uri;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.preference.PreferenceManager;
 
 import androidx.annotation.NonNull;
@@ -115,9 +114,10 @@ class ApplicationModule {
 
     @Provides @Singleton @Named("IO_EXECUTOR")
     BackgroundExecutor provideIoExecutor(@NonNull Context applicationContext) {
-        HandlerThread ioThread = new HandlerThread("IO");
-        ioThread.start();
-        Handler ioHandler = new Handler(ioThread.getLooper());
-        return new BackgroundExecutor(new Handler(applicationContext.getMainLooper()), ioHandler);
+        // Mostly I/O bound, so a few more workers than cores is fine; at least two so that
+        // interactive work always has a worker free.
+        int workers = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        return new BackgroundExecutor(
+                new Handler(applicationContext.getMainLooper()), "IO", workers);
     }
 }
@@ -114,6 +114,7 @@ public class GlobalSettings {
     private static final String KEY_ARCHIVE_BOOKS = "archive_books_preference";
     private static final String KEY_RETAIN_BOOKS = "retain_books_preference";
     private static final String KEY_RENAME_FILES = "rename_files_preference";
+    private static final String KEY_VERIFY_COPIES = "verify_copies_preference";
     public static final String KEY_PLAYBACK_SPEED = "playback_speed_preference";
     public static final String KEY_SNOOZE_DELAY = "snooze_delay_preference";
     public static final String KEY_BLINK_RATE = "blink_rate_preference";
@@ -154,6 +155,7 @@ public class GlobalSettings {
     public static final String KEY_REMOTE_OPTIONS_SCREEN = "remote_options_screen";
     public static final String KEY_REMOTE_FILE_TIMESTAMP = "remote_file_timestamp";
     public static final String KEY_REMOTE_AT_TIME = "remote_at_time";
+    public static final String KEY_REMOTE_MAIL_PUSH = "remote_mail_push";
 
     public static final String TAG_KIOSK_DIALOG = "tag_kiosk_dialog";
 
@@ -440,6 +442,14 @@ public class GlobalSettings {
         sharedPreferences.edit().putBoolean(KEY_RENAME_FILES, b).apply();
     }
 
+    public boolean getVerifyCopies() {
+        return sharedPreferences.getBoolean(KEY_VERIFY_COPIES, false);
+    }
+
+    public void setVerifyCopies(boolean b) {
+        sharedPreferences.edit().putBoolean(KEY_VERIFY_COPIES, b).apply();
+    }
+
     public boolean getArchiveBooks() {
         return sharedPreferences.getBoolean(KEY_ARCHIVE_BOOKS, false);
     }
@@ -493,6 +503,15 @@ public class GlobalSettings {
         return sharedPreferences.getBoolean(GlobalSettings.KEY_REMOTE_MAIL_POLL, false);
     }
 
+    // Set remotely (settings:push), so there's no preference screen entry.
+    public boolean getMailPushEnabled() {
+        return sharedPreferences.getBoolean(GlobalSettings.KEY_REMOTE_MAIL_PUSH, false);
+    }
+
+    public void setMailPushEnabled(boolean enabled) {
+        sharedPreferences.edit().putBoolean(KEY_REMOTE_MAIL_PUSH, enabled).apply();
+    }
+
     public String getMailHostname() {
         return sharedPreferences.getString(GlobalSettings.KEY_REMOTE_HOST, "");
     }
@@ -34,9 +34,23 @@ class BackgroundDeferred<V> extends BaseDeferred<V> implements Runnable {
     private final @NonNull Callable<V> task;
     private final @NonNull Handler mainThreadHandler;
 
-    BackgroundDeferred(@NonNull Callable<V> task, @NonNull Handler mainThreadHandler) {
+    // Scheduling state, owned by the executor (and guarded by its lock).
+    final @NonNull BackgroundExecutor.Priority priority;
+    Thread runner;
+    private final @NonNull BackgroundExecutor executor;
+
+    BackgroundDeferred(@NonNull Callable<V> task, @NonNull Handler mainThreadHandler,
+                       @NonNull BackgroundExecutor executor,
+                       @NonNull BackgroundExecutor.Priority priority) {
         this.task = task;
         this.mainThreadHandler = mainThreadHandler;
+        this.executor = executor;
+        this.priority = priority;
+    }
+
+    @Override
+    void onCancel() {
+        executor.cancel(this);
     }
 
     @Override
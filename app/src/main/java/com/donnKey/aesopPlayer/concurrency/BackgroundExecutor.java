@@ -25,23 +25,149 @@
 package com.donnKey.aesopPlayer.concurrency;
 
 import android.os.Handler;
+import android.os.Process;
 import androidx.annotation.NonNull;
 
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Callable;
 
+/**
+ * Runs tasks on a small pool of worker threads and delivers their results on the main thread.
+ *
+ * Tasks are queued in priority lanes: a worker always takes the oldest task from the most
+ * urgent non-empty lane. The less urgent lanes can't occupy every worker, so something
+ * the user is waiting for never sits behind a bulk job (given at least two workers).
+ *
+ * Cancellation (SimpleFuture.cancel()) drops a task that hasn't started. A task that's
+ * already running has its worker interrupted; long tasks should check
+ * Thread.currentThread().isInterrupted() (or use interruptible I/O) and give up.
+ */
 public class BackgroundExecutor {
 
+    public enum Priority {
+        INTERACTIVE,  // The user is waiting for it.
+        SCAN,         // Library scans and similar whole-collection work. Serialized.
+        BACKGROUND    // Enrichment (metadata etc.) that can happen whenever.
+    }
+
     private final @NonNull Handler mainThreadHandler;
-    private final @NonNull Handler taskHandler;
+    private final @NonNull String name;
+    private final int workerCount;
 
-    public BackgroundExecutor(@NonNull Handler mainThreadHandler, @NonNull Handler taskHandler) {
+    // All below guarded by "this".
+    private final List<ArrayDeque<BackgroundDeferred<?>>> lanes = new ArrayList<>();
+    private final int[] runningInLane = new int[Priority.values().length];
+    private final List<Thread> workers = new ArrayList<>();
+    private int idleWorkers;
+
+    public BackgroundExecutor(@NonNull Handler mainThreadHandler, @NonNull String name,
+                              int workerCount) {
+        Preconditions.checkArgument(workerCount > 0);
         this.mainThreadHandler = mainThreadHandler;
-        this.taskHandler = taskHandler;
+        this.name = name;
+        this.workerCount = workerCount;
+        for (int i = 0; i < Priority.values().length; i++) {
+            lanes.add(new ArrayDeque<>());
+        }
     }
 
     public <V> SimpleFuture<V> postTask(@NonNull Callable<V> task) {
-        BackgroundDeferred<V> deferred = new BackgroundDeferred<>(task, mainThreadHandler);
-        taskHandler.post(deferred);
-        return deferred;
+        return postTask(Priority.INTERACTIVE, task);
+    }
+
+    public <V> SimpleFuture<V> postTask(@NonNull Priority priority, @NonNull Callable<V> task) {
+        synchronized (this) {
+            BackgroundDeferred<V> deferred = new BackgroundDeferred<>(
+                    task, mainThreadHandler, this, priority);
+            lanes.get(priority.ordinal()).addLast(deferred);
+            if (idleWorkers > 0) {
+                notify();
+            } else if (workers.size() < workerCount) {
+                startWorker();
+            }
+            return deferred;
+        }
+    }
+
+    // Called (on the main thread) when a future is cancelled.
+    synchronized void cancel(@NonNull BackgroundDeferred<?> deferred) {
+        if (!lanes.get(deferred.priority.ordinal()).remove(deferred)) {
+            if (deferred.runner != null) {
+                deferred.runner.interrupt();
+            }
+        }
+    }
+
+    // Whether a lane may start another task. Scans run one at a time so that their results
+    // arrive in the order they were asked for. Between them, the less urgent lanes may
+    // occupy all but one worker, so that one is always there for INTERACTIVE work (given at
+    // least two workers; with one, everything simply takes turns).
+    private boolean laneHasRoom(int lane) {
+        Priority priority = Priority.values()[lane];
+        if (priority == Priority.INTERACTIVE) {
+            return true;
+        }
+        if (priority == Priority.SCAN && runningInLane[lane] >= 1) {
+            return false;
+        }
+        int runningNonInteractive = runningInLane[Priority.SCAN.ordinal()]
+                + runningInLane[Priority.BACKGROUND.ordinal()];
+        return runningNonInteractive < Math.max(1, workerCount - 1);
+    }
+
+    private BackgroundDeferred<?> nextTask() {
+        for (int lane = 0; lane < lanes.size(); lane++) {
+            ArrayDeque<BackgroundDeferred<?>> queue = lanes.get(lane);
+            if (!queue.isEmpty() && laneHasRoom(lane)) {
+                return queue.removeFirst();
+            }
+        }
+        return null;
+    }
+
+    private void startWorker() {
+        Thread worker = new Thread(this::workerLoop, name + "-" + workers.size());
+        workers.add(worker);
+        worker.start();
+    }
+
+    private void workerLoop() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            BackgroundDeferred<?> task;
+            synchronized (this) {
+                while ((task = nextTask()) == null) {
+                    idleWorkers++;
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // A stale cancellation; nothing to do.
+                    } finally {
+                        idleWorkers--;
+                    }
+                }
+                runningInLane[task.priority.ordinal()]++;
+                task.runner = Thread.currentThread();
+            }
+
+            if (!task.isCancelled()) {
+                task.run();
+            }
+
+            synchronized (this) {
+                task.runner = null;
+                runningInLane[task.priority.ordinal()]--;
+                // Don't let a late cancellation leak into the next task.
+                //noinspection ResultOfMethodCallIgnored
+                Thread.interrupted();
+                // A lane's limit may have been holding something back.
+                notifyAll();
+            }
+        }
     }
 }
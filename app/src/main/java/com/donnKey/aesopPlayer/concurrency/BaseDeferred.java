@@ -29,42 +29,91 @@ import androidx.annotation.Nullable;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 
 /**
  * A straightforward implementation of SimpleFuture.
- * It's intended for use only on a single thread.
+ * It may be completed from any thread; listeners run on the thread that completes it
+ * (or, if it's already complete, on the thread adding the listener).
  *
  * Note: I don't need the full power of ListenableFutures nor Rx yet.
  */
 public class BaseDeferred<V> implements SimpleFuture<V> {
 
+    // All guarded by "this"; listeners are always called outside the lock.
     private final @NonNull List<Listener<V>> listeners = new ArrayList<>();
     private @Nullable V result;
     private @Nullable Throwable exception;
+    private boolean done;
+    // Read by worker threads, so that cancelled work can be skipped or abandoned.
+    private volatile boolean cancelled;
 
     @Override
     public void addListener(@NonNull Listener<V> listener) {
-        listeners.add(listener);
-        if (result != null)
-            listener.onResult(result);
-        else if (exception != null)
-            listener.onException(exception);
+        boolean isDone;
+        V r;
+        Throwable e;
+        synchronized (this) {
+            listeners.add(listener);
+            isDone = done;
+            r = result;
+            e = exception;
+        }
+        if (e != null)
+            listener.onException(e);
+        else if (isDone)
+            listener.onResult(r);
     }
 
     @Override
-    public void removeListener(@NonNull Listener<V> listener) {
+    public synchronized void removeListener(@NonNull Listener<V> listener) {
         listeners.remove(listener);
     }
 
+    @Override
+    public void cancel() {
+        synchronized (this) {
+            if (done)
+                return;
+            cancelled = true;
+        }
+        onCancel();
+        setException(new CancellationException());
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    // Hook for subclasses that have something running on behalf of this future.
+    void onCancel() {
+    }
+
     void setResult(@NonNull V result) {
-        this.result = result;
-        for (Listener<V> listener : listeners)
+        List<Listener<V>> toNotify;
+        synchronized (this) {
+            // Once completed (including by cancellation), later results are ignored.
+            if (done)
+                return;
+            done = true;
+            this.result = result;
+            toNotify = new ArrayList<>(listeners);
+        }
+        for (Listener<V> listener : toNotify)
             listener.onResult(result);
     }
 
     void setException(@NonNull Throwable exception) {
-        this.exception = exception;
-        for (Listener<V> listener : listeners)
+        List<Listener<V>> toNotify;
+        synchronized (this) {
+            if (done)
+                return;
+            done = true;
+            this.exception = exception;
+            toNotify = new ArrayList<>(listeners);
+        }
+        for (Listener<V> listener : toNotify)
             listener.onException(exception);
     }
 }
@@ -0,0 +1,267 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Donn S. Terry
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.donnKey.aesopPlayer.concurrency;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The future produced by the SimpleFuture combinators. Cancelling it cancels whatever
+ * it depends on.
+ */
+class ChainedDeferred<V> extends BaseDeferred<V> {
+
+    private final @NonNull List<SimpleFuture<?>> upstream = new ArrayList<>();
+
+    private static Handler timeoutHandler;
+
+    private ChainedDeferred(SimpleFuture<?>... upstream) {
+        this.upstream.addAll(Arrays.asList(upstream));
+    }
+
+    private synchronized void addUpstream(@NonNull SimpleFuture<?> future) {
+        upstream.add(future);
+    }
+
+    @Override
+    void onCancel() {
+        List<SimpleFuture<?>> toCancel;
+        synchronized (this) {
+            toCancel = new ArrayList<>(upstream);
+        }
+        for (SimpleFuture<?> future : toCancel) {
+            future.cancel();
+        }
+    }
+
+    // Listener that passes exceptions along, leaving results to the caller.
+    private abstract static class Forward<T, R> implements SimpleFuture.Listener<T> {
+        final ChainedDeferred<R> target;
+
+        Forward(ChainedDeferred<R> target) {
+            this.target = target;
+        }
+
+        @Override
+        public void onException(@NonNull Throwable t) {
+            target.setException(t);
+        }
+    }
+
+    static <V, R> SimpleFuture<R> thenApply(@NonNull SimpleFuture<V> source,
+                                            @NonNull SimpleFuture.Transform<V, R> fn) {
+        ChainedDeferred<R> result = new ChainedDeferred<>(source);
+        source.addListener(new Forward<V, R>(result) {
+            @Override
+            public void onResult(@NonNull V value) {
+                try {
+                    target.setResult(fn.apply(value));
+                } catch (Exception e) {
+                    target.setException(e);
+                }
+            }
+        });
+        return result;
+    }
+
+    static <V, R> SimpleFuture<R> thenCompose(@NonNull SimpleFuture<V> source,
+                                              @NonNull SimpleFuture.AsyncTransform<V, R> fn) {
+        ChainedDeferred<R> result = new ChainedDeferred<>(source);
+        source.addListener(new Forward<V, R>(result) {
+            @Override
+            public void onResult(@NonNull V value) {
+                SimpleFuture<R> next;
+                try {
+                    next = fn.apply(value);
+                } catch (Exception e) {
+                    target.setException(e);
+                    return;
+                }
+                target.addUpstream(next);
+                if (target.isCancelled()) {
+                    next.cancel();
+                    return;
+                }
+                next.addListener(new Forward<R, R>(target) {
+                    @Override
+                    public void onResult(@NonNull R r) {
+                        target.setResult(r);
+                    }
+                });
+            }
+        });
+        return result;
+    }
+
+    static <V> SimpleFuture<V> deliverOn(@NonNull SimpleFuture<V> source,
+                                         @NonNull Executor executor) {
+        ChainedDeferred<V> result = new ChainedDeferred<>(source);
+        source.addListener(new SimpleFuture.Listener<V>() {
+            @Override
+            public void onResult(@NonNull V value) {
+                executor.execute(() -> result.setResult(value));
+            }
+
+            @Override
+            public void onException(@NonNull Throwable t) {
+                executor.execute(() -> result.setException(t));
+            }
+        });
+        return result;
+    }
+
+    static <V> SimpleFuture<V> withTimeout(@NonNull SimpleFuture<V> source,
+                                           long timeout, @NonNull TimeUnit unit) {
+        ChainedDeferred<V> result = new ChainedDeferred<>(source);
+        Runnable expire = () -> {
+            result.setException(new TimeoutException(
+                    "No result after " + unit.toMillis(timeout) + "ms"));
+            source.cancel();
+        };
+        Handler handler = getTimeoutHandler();
+        handler.postDelayed(expire, unit.toMillis(timeout));
+        source.addListener(new SimpleFuture.Listener<V>() {
+            @Override
+            public void onResult(@NonNull V value) {
+                handler.removeCallbacks(expire);
+                result.setResult(value);
+            }
+
+            @Override
+            public void onException(@NonNull Throwable t) {
+                handler.removeCallbacks(expire);
+                result.setException(t);
+            }
+        });
+        return result;
+    }
+
+    static <V> SimpleFuture<List<V>> allOf(
+            @NonNull List<? extends SimpleFuture<? extends V>> futures) {
+        ChainedDeferred<List<V>> result = new ChainedDeferred<>(futures.toArray(new SimpleFuture<?>[0]));
+        if (futures.isEmpty()) {
+            result.setResult(new ArrayList<>());
+            return result;
+        }
+
+        final List<V> values = new ArrayList<>(futures.size());
+        for (int i = 0; i < futures.size(); i++) {
+            values.add(null);
+        }
+        final int[] remaining = {futures.size()};
+        for (int i = 0; i < futures.size(); i++) {
+            final int index = i;
+            addTo(futures.get(i), new SimpleFuture.Listener<V>() {
+                @Override
+                public void onResult(@NonNull V value) {
+                    boolean last;
+                    synchronized (values) {
+                        values.set(index, value);
+                        last = --remaining[0] == 0;
+                    }
+                    if (last) {
+                        result.setResult(values);
+                    }
+                }
+
+                @Override
+                public void onException(@NonNull Throwable t) {
+                    result.setException(t);
+                }
+            });
+        }
+        return result;
+    }
+
+    // Captures the wildcard type for allOf.
+    private static <T extends V, V> void addTo(@NonNull SimpleFuture<T> future,
+                                               @NonNull SimpleFuture.Listener<V> listener) {
+        future.addListener(new SimpleFuture.Listener<T>() {
+            @Override
+            public void onResult(@NonNull T result) {
+                listener.onResult(result);
+            }
+
+            @Override
+            public void onException(@NonNull Throwable t) {
+                listener.onException(t);
+            }
+        });
+    }
+
+    static <V> V await(@NonNull SimpleFuture<V> source, long timeout, @NonNull TimeUnit unit)
+            throws Exception {
+        Preconditions.checkState(Looper.myLooper() != Looper.getMainLooper(),
+                "SimpleFuture.await on the main thread");
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Object[] value = new Object[1];
+        final Throwable[] failure = new Throwable[1];
+        source.addListener(new SimpleFuture.Listener<V>() {
+            @Override
+            public void onResult(@NonNull V result) {
+                value[0] = result;
+                latch.countDown();
+            }
+
+            @Override
+            public void onException(@NonNull Throwable t) {
+                failure[0] = t;
+                latch.countDown();
+            }
+        });
+
+        if (!latch.await(timeout, unit)) {
+            source.cancel();
+            throw new TimeoutException("No result after " + unit.toMillis(timeout) + "ms");
+        }
+        if (failure[0] != null) {
+            if (failure[0] instanceof Exception) {
+                throw (Exception) failure[0];
+            }
+            throw new ExecutionException(failure[0]);
+        }
+        //noinspection unchecked
+        return (V) value[0];
+    }
+
+    private static synchronized Handler getTimeoutHandler() {
+        if (timeoutHandler == null) {
+            timeoutHandler = new Handler(Looper.getMainLooper());
+        }
+        return timeoutHandler;
+    }
+}
@@ -25,9 +25,18 @@
 package com.donnKey.aesopPlayer.concurrency;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A very simple future that has listeners for notifying when the result is available.
+ *
+ * Futures can be chained (thenApply, thenCompose, allOf), bounded in time (withTimeout)
+ * and moved to another thread (deliverOn) without anything waiting on a thread. Cancelling
+ * a chained future cancels whatever it's waiting on.
  */
 public interface SimpleFuture<V> {
 
@@ -36,6 +45,76 @@ public interface SimpleFuture<V> {
         void onException(@NonNull Throwable t);
     }
 
+    interface Transform<V, R> {
+        R apply(V value) throws Exception;
+    }
+
+    interface AsyncTransform<V, R> {
+        @NonNull SimpleFuture<R> apply(V value) throws Exception;
+    }
+
     void addListener(@NonNull Listener<V> listener);
     void removeListener(@NonNull Listener<V> listener);
+
+    /**
+     * Cancel the computation. If it hasn't completed, listeners get onException with a
+     * CancellationException and any later result is dropped. Work that's already running
+     * is only stopped if it cooperates (see BackgroundExecutor).
+     */
+    void cancel();
+    boolean isCancelled();
+
+    /**
+     * A future for fn applied to this one's result. fn runs on the thread that delivers
+     * the result; an exception (from here or from fn) is passed along.
+     */
+    default @NonNull <R> SimpleFuture<R> thenApply(@NonNull Transform<V, R> fn) {
+        return ChainedDeferred.thenApply(this, fn);
+    }
+
+    /**
+     * A future for the future fn makes from this one's result.
+     */
+    default @NonNull <R> SimpleFuture<R> thenCompose(@NonNull AsyncTransform<V, R> fn) {
+        return ChainedDeferred.thenCompose(this, fn);
+    }
+
+    /**
+     * The same result, but with listeners called via executor (e.g. a Handler's post).
+     */
+    default @NonNull SimpleFuture<V> deliverOn(@NonNull Executor executor) {
+        return ChainedDeferred.deliverOn(this, executor);
+    }
+
+    /**
+     * The same result, or a TimeoutException if it isn't available in time. (This one
+     * is then cancelled.)
+     */
+    default @NonNull SimpleFuture<V> withTimeout(long timeout, @NonNull TimeUnit unit) {
+        return ChainedDeferred.withTimeout(this, timeout, unit);
+    }
+
+    /**
+     * Block until the result is available, for code that's still sequential. Never call
+     * this on the thread the result will be delivered on.
+     * @throws java.util.concurrent.TimeoutException if it takes longer than timeout
+     */
+    @WorkerThread
+    default V await(long timeout, @NonNull TimeUnit unit) throws Exception {
+        return ChainedDeferred.await(this, timeout, unit);
+    }
+
+    /**
+     * All of the results, in order, once every one is available; or the first exception.
+     */
+    static @NonNull <V> SimpleFuture<List<V>> allOf(
+            @NonNull List<? extends SimpleFuture<? extends V>> futures) {
+        return ChainedDeferred.allOf(futures);
+    }
+
+    static @NonNull <V> SimpleFuture<V> completed(@NonNull V value) {
+        SimpleDeferred<V> deferred = new SimpleDeferred<>();
+        deferred.setResult(value);
+        return deferred;
+    }
 }
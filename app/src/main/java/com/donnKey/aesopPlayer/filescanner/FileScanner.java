@@ -37,7 +37,6 @@ import java.io.File;
 import java.io.IOException;
 import java.util.List;
 import java.util.Objects;
-import java.util.concurrent.Callable;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -62,9 +61,14 @@ public class FileScanner {
     }
 
     public SimpleFuture<List<FileSet>> scanAudioBooksDirectories() {
-        ensureDefaultAudioBooksDirectory();
+        // The directory must exist before the scan, and the executor has several workers,
+        // so it's done as part of the same task.
+        final File defaultAudiobooksPath = getDefaultAudioBooksDirectory();
         ScanFilesTask task = new ScanFilesTask(applicationContext);
-        return ioExecutor.postTask(task);
+        return ioExecutor.postTask(BackgroundExecutor.Priority.SCAN, () -> {
+            ensureAudioBooksDirectory(applicationContext, defaultAudiobooksPath);
+            return task.call();
+        });
     }
 
     /**
@@ -78,15 +82,6 @@ public class FileScanner {
         return new File(externalStorage, audioBooksDirectoryName);
     }
 
-    @SuppressWarnings("SameReturnValue")
-    private void ensureDefaultAudioBooksDirectory() {
-        final File defaultAudiobooksPath = getDefaultAudioBooksDirectory();
-        ioExecutor.postTask((Callable<Void>) () -> {
-            ensureAudioBooksDirectory(applicationContext, defaultAudiobooksPath);
-            return null;
-        });
-    }
-
     private static void ensureAudioBooksDirectory(Context applicationContext, File path) {
         if (!path.exists()) {
             if (Objects.requireNonNull(path.getParentFile()).canWrite()) {
@@ -120,26 +120,35 @@ public class AudioBook {
         // (StackOverflow rumor has it that it's a Samsung issue in part.)
         // This is (apparently inherently) slow. Cache.
 
-        String author = null;
-        String newTitle = null;
+        if (file == null) {
+            return null;
+        }
 
-        if (file != null) {
-            try {
-                AudioFile audioFile = AudioFileIO.read(file);
-                Tag tag = audioFile.getTag();
-                if (tag != null) {
-                    newTitle = titleClean(tag.getFirst(FieldKey.ALBUM));
-                    author = titleClean(tag.getFirst(FieldKey.ARTIST));
-                }
-            } catch (Exception e) {
-                // Ignore any errors
+        if (ZipMetadataProbe.isInZip(file)) {
+            return ZipMetadataProbe.metadataTitle(file);
+        }
+
+        try {
+            AudioFile audioFile = AudioFileIO.read(file);
+            Tag tag = audioFile.getTag();
+            if (tag != null) {
+                return tagTitle(tag.getFirst(FieldKey.ALBUM), tag.getFirst(FieldKey.ARTIST));
             }
+        } catch (Exception e) {
+            // Ignore any errors
         }
 
+        return null;
+    }
+
+    // Title and author from the album and artist tags, or null if there's no title.
+    static TitleAndAuthor tagTitle(String album, String artist) {
+        String newTitle = titleClean(album);
         if (newTitle == null || newTitle.isEmpty()) {
             return null;
         }
 
+        String author = titleClean(artist);
         if (author == null) {
             author = "";
         }
@@ -204,8 +213,9 @@ public class AudioBook {
         // First, get it from an associated information (.opf) file
         File opf = FileUtilities.findFileMatching(bookPath, (name)->name.endsWith(".opf"));
         if (opf != null) {
-            title = new OpfParser().getTitle(opf);
-            FileUtilities.removeIfTemp(opf);
+            title = ZipMetadataProbe.isInZip(opf)
+                    ? ZipMetadataProbe.opfTitle(opf)
+                    : new OpfParser().getTitle(opf);
         }
 
         // Then get it from the metadata
@@ -45,69 +45,76 @@ import static com.donnKey.aesopPlayer.model.AudioBook.titleClean;
 // which in turn references the EPUB standard.
 class OpfParser {
     public AudioBook.TitleAndAuthor getTitle(File file) {
+        try (InputStream xmlStream = new FileInputStream(file)) {
+            return getTitle(xmlStream);
+        } catch (IOException e) {
+            CrashWrapper.recordException(e);
+            return null;
+        }
+    }
+
+    // The stream is left for the caller to close.
+    public AudioBook.TitleAndAuthor getTitle(InputStream xmlStream) {
         // Again... order unclear
         String title = null;
         String author = null;
         String creator = null;
         try {
             try {
-                try (InputStream xmlStream = new FileInputStream(file)) {
+                XmlPullParser xmlParser = Xml.newPullParser();
+                xmlParser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
+                xmlParser.setInput(xmlStream, null);
+                xmlParser.nextTag();
 
-                    XmlPullParser xmlParser = Xml.newPullParser();
-                    xmlParser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
-                    xmlParser.setInput(xmlStream, null);
-                    xmlParser.nextTag();
+                // EPUB says there must be one "package" element and it must be the root
+                xmlParser.require(XmlPullParser.START_TAG, null, "package");
 
-                    // EPUB says there must be one "package" element and it must be the root
-                    xmlParser.require(XmlPullParser.START_TAG, null, "package");
-
-                    while (xmlParser.next() != XmlPullParser.END_TAG) {
-                        if (xmlParser.getEventType() != XmlPullParser.START_TAG) {
-                            continue;
-                        }
-                        // The standard isn't clear about whether the "metadata" tag is first
-                        if (xmlParser.getName().equals("metadata")) {
-                            while (xmlParser.next() != XmlPullParser.END_TAG) {
-                                if (xmlParser.getEventType() != XmlPullParser.START_TAG) {
-                                    continue;
-                                }
+                while (xmlParser.next() != XmlPullParser.END_TAG) {
+                    if (xmlParser.getEventType() != XmlPullParser.START_TAG) {
+                        continue;
+                    }
+                    // The standard isn't clear about whether the "metadata" tag is first
+                    if (xmlParser.getName().equals("metadata")) {
+                        while (xmlParser.next() != XmlPullParser.END_TAG) {
+                            if (xmlParser.getEventType() != XmlPullParser.START_TAG) {
+                                continue;
+                            }
 
-                                // Again... order unclear
-                                if (xmlParser.getName().equals("dc-metadata")) {
-                                    while (xmlParser.next() != XmlPullParser.END_TAG) {
-                                        if (xmlParser.getEventType() != XmlPullParser.START_TAG) {
-                                            continue;
-                                        }
-                                        // Take the first title entry
-                                        if (xmlParser.getName().equals("dc:Title")) {
-                                            String t = xmlParser.nextText();
-                                            if (title == null) {
-                                                title = t;
-                                            }
+                            // Again... order unclear
+                            if (xmlParser.getName().equals("dc-metadata")) {
+                                while (xmlParser.next() != XmlPullParser.END_TAG) {
+                                    if (xmlParser.getEventType() != XmlPullParser.START_TAG) {
+                                        continue;
+                                    }
+                                    // Take the first title entry
+                                    if (xmlParser.getName().equals("dc:Title")) {
+                                        String t = xmlParser.nextText();
+                                        if (title == null) {
+                                            title = t;
                                         }
-                                        else if (xmlParser.getName().equals("dc:Creator")) {
-                                            String role = xmlParser.getAttributeValue(null, "role");
-                                            String c = xmlParser.nextText();
-                                            if (creator == null) {
-                                                creator = c;
-                                            }
-                                            if (role != null && role.equals("aut") && author == null) {
-                                                author = c;
-                                            }
+                                    }
+                                    else if (xmlParser.getName().equals("dc:Creator")) {
+                                        String role = xmlParser.getAttributeValue(null, "role");
+                                        String c = xmlParser.nextText();
+                                        if (creator == null) {
+                                            creator = c;
                                         }
-                                        else {
-                                            xmlParser.nextText();
+                                        if (role != null && role.equals("aut") && author == null) {
+                                            author = c;
                                         }
                                     }
-                                }
-                                else {
-                                    skipTag(xmlParser);
+                                    else {
+                                        xmlParser.nextText();
+                                    }
                                 }
                             }
+                            else {
+                                skipTag(xmlParser);
+                            }
                         }
-                        else {
-                            skipTag(xmlParser);
-                        }
+                    }
+                    else {
+                        skipTag(xmlParser);
                     }
                 }
             } catch (IOException e) {
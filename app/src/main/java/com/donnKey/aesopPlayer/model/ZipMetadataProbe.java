@@ -0,0 +1,493 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Donn S. Terry
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.donnKey.aesopPlayer.model;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.donnKey.aesopPlayer.analytics.CrashWrapper;
+import com.donnKey.aesopPlayer.ui.provisioning.FileUtilities;
+
+import org.jaudiotagger.tag.FieldKey;
+import org.jaudiotagger.tag.Tag;
+import org.jaudiotagger.tag.id3.AbstractID3v2Tag;
+import org.jaudiotagger.tag.id3.ID3v1Tag;
+import org.jaudiotagger.tag.id3.ID3v22Tag;
+import org.jaudiotagger.tag.id3.ID3v23Tag;
+import org.jaudiotagger.tag.id3.ID3v24Tag;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+// Titles from files inside a zip, without extracting anything.
+// FileUtilities.findFileMatching names a file in a zip as if the zip were a directory
+// (book.zip/dir/ch01.mp3); for those, the .opf is parsed straight from the entry stream
+// and only the bytes holding an audio file's tags are read: the ID3v2 tag at the front
+// (or ID3v1 at the end), the album and artist items of an MP4, or the comment header of an
+// Ogg file. Skipping within a stored entry is a seek; within a deflated one it costs
+// inflating, but still nothing is written. (That's why ID3v1, at the very end, is only
+// looked for in stored entries.)
+class ZipMetadataProbe {
+    // Tags bigger than this (it's always cover art) aren't worth reading.
+    private static final int MAX_TAG_BYTES = 4 * 1024 * 1024;
+    // The Vorbis comment header is always near the front.
+    private static final int OGG_PROBE_BYTES = 64 * 1024;
+    private static final int ID3V2_HEADER_BYTES = 10;
+    private static final int ID3V1_BYTES = 128;
+
+    private static final int BOX_MOOV = fourcc("moov");
+    private static final int BOX_UDTA = fourcc("udta");
+    private static final int BOX_META = fourcc("meta");
+    private static final int BOX_HDLR = fourcc("hdlr");
+    private static final int BOX_ILST = fourcc("ilst");
+    private static final int BOX_DATA = fourcc("data");
+    private static final int BOX_ALBUM = 0xA9000000 | fourcc("alb");
+    private static final int BOX_ARTIST = 0xA9000000 | fourcc("ART");
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static class EntryPath {
+        final File zip;
+        final String entryName;
+
+        EntryPath(File zip, String entryName) {
+            this.zip = zip;
+            this.entryName = entryName;
+        }
+    }
+
+    // True if path names something inside a zip rather than a real file.
+    static boolean isInZip(@NonNull File path) {
+        return !path.exists() && locate(path) != null;
+    }
+
+    @Nullable
+    private static EntryPath locate(@NonNull File path) {
+        String entryName = path.getName();
+        for (File parent = path.getParentFile(); parent != null; parent = parent.getParentFile()) {
+            if (FileUtilities.isZip(parent.getName()) && parent.isFile()) {
+                return new EntryPath(parent, entryName);
+            }
+            entryName = parent.getName() + "/" + entryName;
+        }
+        return null;
+    }
+
+    @Nullable
+    static AudioBook.TitleAndAuthor opfTitle(@NonNull File path) {
+        EntryPath entryPath = locate(path);
+        if (entryPath == null) {
+            return null;
+        }
+        try (ZipFile zipFile = new ZipFile(entryPath.zip)) {
+            ZipEntry entry = zipFile.getEntry(entryPath.entryName);
+            if (entry == null) {
+                return null;
+            }
+            try (InputStream in = zipFile.getInputStream(entry)) {
+                return new OpfParser().getTitle(in);
+            }
+        } catch (IOException e) {
+            CrashWrapper.recordException(e);
+            return null;
+        }
+    }
+
+    @Nullable
+    static AudioBook.TitleAndAuthor metadataTitle(@NonNull File path) {
+        EntryPath entryPath = locate(path);
+        if (entryPath == null) {
+            return null;
+        }
+        String name = entryPath.entryName.toLowerCase(Locale.US);
+        try (ZipFile zipFile = new ZipFile(entryPath.zip)) {
+            ZipEntry entry = zipFile.getEntry(entryPath.entryName);
+            if (entry == null) {
+                return null;
+            }
+            try (InputStream in = new BufferedInputStream(zipFile.getInputStream(entry))) {
+                if (name.endsWith(".ogg")) {
+                    return oggTitle(in);
+                }
+                if (name.endsWith(".mp3")) {
+                    AudioBook.TitleAndAuthor title = id3v2Title(in);
+                    if (title != null) {
+                        return title;
+                    }
+                    if (entry.getMethod() != ZipEntry.STORED) {
+                        return null;
+                    }
+                    try (InputStream tail = zipFile.getInputStream(entry)) {
+                        return id3v1Title(tail, entry.getSize());
+                    }
+                }
+                return mp4Title(in);
+            }
+        } catch (Exception e) {
+            // Anything malformed just means no title from here.
+            return null;
+        }
+    }
+
+    @Nullable
+    private static AudioBook.TitleAndAuthor tagTitle(@NonNull Tag tag) {
+        return AudioBook.tagTitle(tag.getFirst(FieldKey.ALBUM), tag.getFirst(FieldKey.ARTIST));
+    }
+
+    @Nullable
+    private static AudioBook.TitleAndAuthor id3v2Title(@NonNull InputStream in) throws Exception {
+        byte[] header = new byte[ID3V2_HEADER_BYTES];
+        if (!readFully(in, header, 0, header.length)
+                || header[0] != 'I' || header[1] != 'D' || header[2] != '3') {
+            return null;
+        }
+        int size = ((header[6] & 0x7f) << 21) | ((header[7] & 0x7f) << 14)
+                | ((header[8] & 0x7f) << 7) | (header[9] & 0x7f);
+        if (size > MAX_TAG_BYTES) {
+            return null;
+        }
+        byte[] tagBytes = new byte[ID3V2_HEADER_BYTES + size];
+        System.arraycopy(header, 0, tagBytes, 0, ID3V2_HEADER_BYTES);
+        if (!readFully(in, tagBytes, ID3V2_HEADER_BYTES, size)) {
+            return null;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(tagBytes);
+        AbstractID3v2Tag tag;
+        switch (header[3]) {
+        case 2:
+            tag = new ID3v22Tag(buffer, "");
+            break;
+        case 3:
+            tag = new ID3v23Tag(buffer, "");
+            break;
+        case 4:
+            tag = new ID3v24Tag(buffer, "");
+            break;
+        default:
+            return null;
+        }
+        return tagTitle(tag);
+    }
+
+    @Nullable
+    private static AudioBook.TitleAndAuthor id3v1Title(@NonNull InputStream in, long size) throws Exception {
+        if (size < ID3V1_BYTES || !skipFully(in, size - ID3V1_BYTES)) {
+            return null;
+        }
+        byte[] tagBytes = new byte[ID3V1_BYTES];
+        if (!readFully(in, tagBytes, 0, tagBytes.length)) {
+            return null;
+        }
+        ID3v1Tag tag = new ID3v1Tag();
+        tag.read(ByteBuffer.wrap(tagBytes));
+        return tagTitle(tag);
+    }
+
+    // Walk down moov/udta/meta/ilst to the album and artist items, reading only box headers
+    // on the way and skipping everything else (mdat, and moov's sample tables, which get
+    // big in a long book); only the two items are buffered.
+    @Nullable
+    private static AudioBook.TitleAndAuthor mp4Title(@NonNull InputStream in) throws IOException {
+        BoxStream boxes = new BoxStream(in);
+        if (!boxes.find(BOX_MOOV, Long.MAX_VALUE)
+                || !boxes.find(BOX_UDTA, boxes.bodyEnd)
+                || !boxes.find(BOX_META, boxes.bodyEnd)) {
+            return null;
+        }
+        long end = boxes.bodyEnd;
+
+        // iTunes style meta is a full box (4 bytes of version and flags), QuickTime style
+        // isn't; either way hdlr comes first.
+        boxes.mark();
+        if (!boxes.next(end) || boxes.type != BOX_HDLR) {
+            boxes.reset();
+            boxes.skipTo(boxes.position + 4);
+            if (!boxes.next(end) || boxes.type != BOX_HDLR) {
+                return null;
+            }
+        }
+        boxes.skipTo(boxes.bodyEnd);
+        if (!boxes.find(BOX_ILST, end)) {
+            return null;
+        }
+        end = boxes.bodyEnd;
+
+        String album = null;
+        String artist = null;
+        while ((album == null || artist == null) && boxes.next(end)) {
+            int type = boxes.type;
+            long size = boxes.bodyEnd - boxes.position;
+            if ((type == BOX_ALBUM || type == BOX_ARTIST) && size <= MAX_TAG_BYTES) {
+                byte[] item = new byte[(int) size];
+                boxes.read(item);
+                if (type == BOX_ALBUM) {
+                    album = itemText(ByteBuffer.wrap(item));
+                } else {
+                    artist = itemText(ByteBuffer.wrap(item));
+                }
+            }
+            boxes.skipTo(boxes.bodyEnd);
+        }
+        return AudioBook.tagTitle(album, artist);
+    }
+
+    // Box headers read from a stream, keeping track of where we are in it.
+    private static class BoxStream {
+        private final DataInputStream data;
+        // Where the next byte read comes from
+        long position;
+        // The type of the last box header read, and where that box ends
+        int type;
+        long bodyEnd;
+        private long markedPosition;
+
+        BoxStream(@NonNull InputStream in) {
+            data = new DataInputStream(in.markSupported() ? in : new BufferedInputStream(in));
+        }
+
+        // Read the header of the next box that starts before end (Long.MAX_VALUE at the
+        // top level). False at end, or if the header is garbage.
+        boolean next(long end) throws IOException {
+            if (end - position < 8) {
+                return false;
+            }
+            long start = position;
+            long size = data.readInt() & 0xffffffffL;
+            type = data.readInt();
+            position += 8;
+            if (size == 1) {
+                if (end - position < 8) {
+                    return false;
+                }
+                size = data.readLong();
+                position += 8;
+            } else if (size == 0) {
+                // To the end of the parent; at the top level the end of the file isn't known.
+                if (end == Long.MAX_VALUE) {
+                    return false;
+                }
+                size = end - start;
+            }
+            if (size < position - start || size > end - start) {
+                return false;
+            }
+            bodyEnd = start + size;
+            return true;
+        }
+
+        // Skip to the body of the first box of this type before end.
+        boolean find(int wanted, long end) throws IOException {
+            while (next(end)) {
+                if (type == wanted) {
+                    return true;
+                }
+                skipTo(bodyEnd);
+            }
+            return false;
+        }
+
+        void skipTo(long to) throws IOException {
+            if (to < position) {
+                throw new IOException("Box overlaps its parent");
+            }
+            if (!skipFully(data, to - position)) {
+                throw new IOException("Box runs past the end of the file");
+            }
+            position = to;
+        }
+
+        // For going back over no more than a box header
+        void mark() {
+            data.mark(16);
+            markedPosition = position;
+        }
+
+        void reset() throws IOException {
+            data.reset();
+            position = markedPosition;
+        }
+
+        void read(@NonNull byte[] b) throws IOException {
+            data.readFully(b);
+            position += b.length;
+        }
+    }
+
+    @Nullable
+    private static String itemText(@NonNull ByteBuffer item) {
+        ByteBuffer data = findBox(item, BOX_DATA);
+        // 4 bytes of type indicator and 4 of locale precede the value
+        if (data == null || data.remaining() < 8) {
+            return null;
+        }
+        byte[] text = new byte[data.remaining() - 8];
+        data.position(8);
+        data.get(text);
+        return new String(text, UTF_8);
+    }
+
+    // The body of the first child box of the given type, or null.
+    @Nullable
+    private static ByteBuffer findBox(@Nullable ByteBuffer parent, int type) {
+        if (parent == null) {
+            return null;
+        }
+        ByteBuffer b = parent.duplicate();
+        b.position(0);
+        while (b.remaining() >= 8) {
+            int start = b.position();
+            long size = b.getInt() & 0xffffffffL;
+            int boxType = b.getInt();
+            int headerSize = 8;
+            if (size == 1) {
+                if (b.remaining() < 8) {
+                    return null;
+                }
+                size = b.getLong();
+                headerSize = 16;
+            } else if (size == 0) {
+                size = b.limit() - start;
+            }
+            if (size < headerSize || start + size > b.limit()) {
+                return null;
+            }
+            if (boxType == type) {
+                b.limit((int) (start + size));
+                b.position(start + headerSize);
+                return b.slice();
+            }
+            b.position((int) (start + size));
+        }
+        return null;
+    }
+
+    // Find the Vorbis comment header ("\3vorbis") and read ALBUM= and ARTIST= from it.
+    @Nullable
+    private static AudioBook.TitleAndAuthor oggTitle(@NonNull InputStream in) throws IOException {
+        byte[] probe = new byte[OGG_PROBE_BYTES];
+        int length = 0;
+        int n;
+        while (length < probe.length && (n = in.read(probe, length, probe.length - length)) > 0) {
+            length += n;
+        }
+
+        byte[] marker = {3, 'v', 'o', 'r', 'b', 'i', 's'};
+        int start = indexOf(probe, length, marker);
+        if (start < 0) {
+            return null;
+        }
+        ByteBuffer b = ByteBuffer.wrap(probe, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+        b.position(start + marker.length);
+
+        String album = null;
+        String artist = null;
+        try {
+            int vendorLength = b.getInt();
+            b.position(b.position() + vendorLength);
+            int count = b.getInt();
+            for (int i = 0; i < count; i++) {
+                int commentLength = b.getInt();
+                if (commentLength < 0 || commentLength > b.remaining()) {
+                    break;
+                }
+                byte[] comment = new byte[commentLength];
+                b.get(comment);
+                String s = new String(comment, UTF_8);
+                int eq = s.indexOf('=');
+                if (eq <= 0) {
+                    continue;
+                }
+                String key = s.substring(0, eq).toUpperCase(Locale.US);
+                if (album == null && key.equals("ALBUM")) {
+                    album = s.substring(eq + 1);
+                } else if (artist == null && key.equals("ARTIST")) {
+                    artist = s.substring(eq + 1);
+                }
+            }
+        } catch (RuntimeException e) {
+            // Ran off the end of what we read (e.g. the comments span an Ogg page);
+            // use whatever was found.
+        }
+        return AudioBook.tagTitle(album, artist);
+    }
+
+    private static int indexOf(@NonNull byte[] data, int length, @NonNull byte[] pattern) {
+        outer:
+        for (int i = 0; i + pattern.length <= length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static boolean readFully(@NonNull InputStream in, @NonNull byte[] b, int offset, int length)
+            throws IOException {
+        while (length > 0) {
+            int n = in.read(b, offset, length);
+            if (n < 0) {
+                return false;
+            }
+            offset += n;
+            length -= n;
+        }
+        return true;
+    }
+
+    private static boolean skipFully(@NonNull InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                // skip() may legitimately return 0; a read tells us if it's really the end.
+                if (in.read() < 0) {
+                    return false;
+                }
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+        return true;
+    }
+
+    private static int fourcc(@NonNull String s) {
+        int result = 0;
+        for (int i = 0; i < s.length(); i++) {
+            result = (result << 8) | (s.charAt(i) & 0xff);
+        }
+        return result;
+    }
+}
@@ -33,7 +33,8 @@ public interface PlaybackController {
 
         /**
          * Playback position progressed. Called more or less once per second of playback in media
-         * time (i.e. affected by the playback speed).
+         * time (i.e. affected by the playback speed), but only while progress updates are
+         * enabled (see setProgressUpdatesEnabled).
          */
         void onPlaybackProgressed(long segmentPositionMs);
 
@@ -66,4 +67,11 @@ public interface PlaybackController {
     void stop();
     void release();
     long getSegmentPositionMs();
+
+    /**
+     * Turn the once-a-second progress reports on or off. When nobody can see them (the
+     * screen is off) there's no reason to wake up for them. Turning them back on reports
+     * the current position immediately.
+     */
+    void setProgressUpdatesEnabled(boolean enabled);
 }
@@ -31,11 +31,13 @@ import android.os.Looper;
 
 import androidx.annotation.NonNull;
 
+import com.google.android.exoplayer2.DefaultRenderersFactory;
 import com.google.android.exoplayer2.ExoPlaybackException;
 import com.google.android.exoplayer2.ExoPlayerFactory;
 import com.google.android.exoplayer2.Format;
 import com.google.android.exoplayer2.PlaybackParameters;
 import com.google.android.exoplayer2.SimpleExoPlayer;
+import com.google.android.exoplayer2.audio.AudioProcessor;
 import com.google.android.exoplayer2.extractor.DefaultExtractorsFactory;
 import com.google.android.exoplayer2.extractor.mp3.Mp3Extractor;
 import com.google.android.exoplayer2.source.MediaSource;
@@ -60,12 +62,20 @@ public class Player {
 
     private final SimpleExoPlayer exoPlayer;
     private final EventBus eventBus;
+    private final SleepFadeAudioProcessor sleepFade = new SleepFadeAudioProcessor();
     private ProgressiveMediaSource.Factory mediaSourceFactory;
 
     private float playbackSpeed = 1.0f;
 
     public Player(Context context, EventBus eventBus) {
-        exoPlayer = ExoPlayerFactory.newSimpleInstance(context, new DefaultTrackSelector());
+        DefaultRenderersFactory renderersFactory = new DefaultRenderersFactory(context) {
+            @Override
+            protected AudioProcessor[] buildAudioProcessors() {
+                return new AudioProcessor[] {sleepFade};
+            }
+        };
+        exoPlayer = ExoPlayerFactory.newSimpleInstance(
+                context, renderersFactory, new DefaultTrackSelector());
         this.eventBus = eventBus;
     }
 
@@ -95,6 +105,20 @@ public class Player {
         return exoPlayer.getVolume();
     }
 
+    /**
+     * Fade the audio out starting delayMs from now, taking durationMs to reach silence.
+     * The fade is done in the audio pipeline, so nothing runs periodically meanwhile.
+     * onFaded is run (once) on the calling thread when the audio has become silent.
+     */
+    public void startFadeOut(long delayMs, long durationMs, @NonNull Runnable onFaded) {
+        Handler handler = new Handler(Objects.requireNonNull(Looper.myLooper()));
+        sleepFade.arm(delayMs, durationMs, playbackSpeed, () -> handler.post(onFaded));
+    }
+
+    public void cancelFadeOut() {
+        sleepFade.disarm();
+    }
+
     private void prepareAudioFile(File file, long startPositionMs) {
         Uri fileUri = Uri.fromFile(file);
         MediaSource source = getExtractorMediaSourceFactory().createMediaSource(fileUri);
@@ -123,6 +147,7 @@ public class Player {
         private int lastPlaybackState;
         private final Handler handler;
         private final Runnable updateProgressTask = this::updateProgress;
+        private boolean progressUpdatesEnabled = true;
 
         private PlaybackControllerImpl(Handler handler) {
             this.handler = handler;
@@ -198,6 +223,17 @@ public class Player {
             return exoPlayer.getCurrentPosition();
         }
 
+        @Override
+        public void setProgressUpdatesEnabled(boolean enabled) {
+            if (enabled == progressUpdatesEnabled)
+                return;
+            progressUpdatesEnabled = enabled;
+            handler.removeCallbacks(updateProgressTask);
+            if (enabled && isPlaying) {
+                updateProgress();
+            }
+        }
+
         @Override
         public void onPlayerStateChanged(boolean playWhenReady, int playbackState) {
             if (playbackState == lastPlaybackState)
@@ -253,7 +289,7 @@ public class Player {
             if (delayMs < 100)
                 delayMs += (long) (1000 * playbackSpeed);
 
-            if (isPlaying) {
+            if (isPlaying && progressUpdatesEnabled) {
                 // Clearing updateProgressTask from the handler doesn't always work (I think that
                 // the runnable, once posted to run, isn't removed). That can cause this to run away, so
                 // belt and suspenders...
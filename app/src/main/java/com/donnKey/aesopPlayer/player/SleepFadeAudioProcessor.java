@@ -0,0 +1,230 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Donn S. Terry
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.donnKey.aesopPlayer.player;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.audio.AudioProcessor;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Sleep timer fade-out, done as a gain ramp on the PCM samples themselves.
+ *
+ * The ramp is armed once (from the main thread) with a wall-clock start time and a
+ * duration. Everything after that happens on ExoPlayer's playback thread as buffers flow
+ * through: when the start time passes the gain falls linearly, frame by frame, to zero,
+ * and when it gets there the listener is called exactly once. There's no periodic timer.
+ *
+ * DefaultAudioSink converts everything to 16 bit PCM before custom processors run (and
+ * applies speed changes after them), so that's the only format handled.
+ */
+class SleepFadeAudioProcessor implements AudioProcessor {
+
+    interface Listener {
+        // Called on the playback thread; the listener must get itself to the right thread.
+        void onFadeComplete();
+    }
+
+    private int sampleRateHz = NO_VALUE;
+    private int channelCount = NO_VALUE;
+    private int encoding = NO_VALUE;
+
+    private @NonNull ByteBuffer buffer = EMPTY_BUFFER;
+    private @NonNull ByteBuffer outputBuffer = EMPTY_BUFFER;
+    private boolean inputEnded;
+
+    // Written on the main thread, read on the playback thread.
+    private volatile long fadeStartRealtimeMs = NOT_ARMED;
+    private volatile long fadeDurationMs;
+    private volatile float playbackSpeed = 1.0f;
+    private volatile @Nullable Listener listener;
+
+    // Playback thread only.
+    private long armedStartRealtimeMs = NOT_ARMED;
+    private long rampFrames;
+    private long rampFramesDone;
+    private boolean fadeReported;
+
+    private static final long NOT_ARMED = -1;
+    private static final int NO_VALUE = -1;
+
+    /**
+     * Arm the ramp: start fading at delayMs from now, reaching silence durationMs later.
+     * Speed is needed because the samples seen here are pre-speed-change.
+     */
+    void arm(long delayMs, long durationMs, float speed, @NonNull Listener listener) {
+        this.listener = listener;
+        this.fadeDurationMs = durationMs;
+        this.playbackSpeed = speed;
+        this.fadeStartRealtimeMs = SystemClock.elapsedRealtime() + delayMs;
+    }
+
+    void disarm() {
+        fadeStartRealtimeMs = NOT_ARMED;
+        listener = null;
+    }
+
+    @Override
+    public boolean configure(int sampleRateHz, int channelCount, @C.PcmEncoding int encoding)
+            throws UnhandledFormatException {
+        if (encoding != C.ENCODING_PCM_16BIT) {
+            throw new UnhandledFormatException(sampleRateHz, channelCount, encoding);
+        }
+        boolean changed = this.sampleRateHz != sampleRateHz
+                || this.channelCount != channelCount
+                || this.encoding != encoding;
+        this.sampleRateHz = sampleRateHz;
+        this.channelCount = channelCount;
+        this.encoding = encoding;
+        return changed;
+    }
+
+    @Override
+    public boolean isActive() {
+        // Always in the chain: arming happens mid-stream, and the sink only asks this
+        // when (re)configuring.
+        return sampleRateHz != NO_VALUE;
+    }
+
+    @Override
+    public int getOutputChannelCount() {
+        return channelCount;
+    }
+
+    @Override
+    public int getOutputEncoding() {
+        return C.ENCODING_PCM_16BIT;
+    }
+
+    @Override
+    public int getOutputSampleRateHz() {
+        return sampleRateHz;
+    }
+
+    @Override
+    public void queueInput(@NonNull ByteBuffer inputBuffer) {
+        int position = inputBuffer.position();
+        int limit = inputBuffer.limit();
+        int size = limit - position;
+
+        if (buffer.capacity() < size) {
+            buffer = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        } else {
+            buffer.clear();
+        }
+
+        // (This also picks up arming, and the start of the ramp.)
+        currentGain();
+        if (rampFrames == 0) {
+            // The usual case, not (yet) fading: just pass it along.
+            buffer.put(inputBuffer);
+        }
+        else {
+            int frameSize = 2 * channelCount;
+            for (int i = position; i + frameSize <= limit; i += frameSize) {
+                float gain = currentGain();
+                for (int c = 0; c < channelCount; c++) {
+                    short sample = inputBuffer.getShort(i + 2 * c);
+                    buffer.putShort((short) (sample * gain));
+                }
+                if (rampFramesDone < rampFrames) {
+                    rampFramesDone++;
+                }
+            }
+            inputBuffer.position(limit);
+            if (rampFramesDone >= rampFrames && !fadeReported) {
+                fadeReported = true;
+                Listener l = listener;
+                if (l != null) {
+                    l.onFadeComplete();
+                }
+            }
+        }
+
+        buffer.flip();
+        outputBuffer = buffer;
+    }
+
+    // Gain for the next frame, picking up (re)arming as it happens.
+    private float currentGain() {
+        long startMs = fadeStartRealtimeMs;
+        if (startMs != armedStartRealtimeMs) {
+            // Newly armed, re-armed, or disarmed: start over.
+            armedStartRealtimeMs = startMs;
+            rampFrames = 0;
+            rampFramesDone = 0;
+            fadeReported = false;
+        }
+        if (startMs == NOT_ARMED) {
+            return 1.0f;
+        }
+        if (rampFrames == 0) {
+            if (SystemClock.elapsedRealtime() < startMs) {
+                return 1.0f;
+            }
+            rampFrames = Math.max(1,
+                    (long) (fadeDurationMs * sampleRateHz * playbackSpeed / 1000));
+        }
+        return 1.0f - (float) rampFramesDone / rampFrames;
+    }
+
+    @Override
+    public void queueEndOfStream() {
+        inputEnded = true;
+    }
+
+    @NonNull
+    @Override
+    public ByteBuffer getOutput() {
+        ByteBuffer output = outputBuffer;
+        outputBuffer = EMPTY_BUFFER;
+        return output;
+    }
+
+    @Override
+    public boolean isEnded() {
+        return inputEnded && outputBuffer == EMPTY_BUFFER;
+    }
+
+    @Override
+    public void flush() {
+        outputBuffer = EMPTY_BUFFER;
+        inputEnded = false;
+    }
+
+    @Override
+    public void reset() {
+        flush();
+        buffer = EMPTY_BUFFER;
+        sampleRateHz = NO_VALUE;
+        channelCount = NO_VALUE;
+        encoding = NO_VALUE;
+    }
+}
@@ -24,17 +24,25 @@
  */
 package com.donnKey.aesopPlayer.service;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
+import android.hardware.TriggerEvent;
+import android.hardware.TriggerEventListener;
+import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
 
 import com.donnKey.aesopPlayer.GlobalSettings;
 import com.donnKey.aesopPlayer.AesopPlayerApplication;
+import com.donnKey.aesopPlayer.analytics.CrashWrapper;
 import com.donnKey.aesopPlayer.ui.TouchRateJoystick;
 
 import static android.content.Context.SENSOR_SERVICE;
@@ -71,11 +79,44 @@ public class DeviceMotionDetector implements SensorEventListener {
     private static final long MIN_TIME_WINDOW = TimeUnit.MILLISECONDS.toNanos(500);
     private static final long AVG_SMOOTH_TIME_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
 
+    // Sampling is fast while the motion state might be changing, and slow (and batched in
+    // the sensor's FIFO, where there is one) once it's been settled face down or face up
+    // for a while, which is most of a listening session. The price of batching: the first
+    // sample of a pick-up can wait in the FIFO for up to SLOW_REPORT_LATENCY_US before
+    // it's seen at all.
+    private static final int FAST_SAMPLING = SensorManager.SENSOR_DELAY_UI;
+    private static final int SLOW_SAMPLING_US = (int) TimeUnit.MILLISECONDS.toMicros(200);
+    private static final int SLOW_REPORT_LATENCY_US = (int) TimeUnit.SECONDS.toMicros(2);
+    private static final long SETTLE_TIME_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private boolean slowSampling;
+    private long settledSince;
+
+    // For the log: callbacks per minute, and how long the last detection took.
+    private static final String TAG = "DeviceMotionDetector";
+    private static final long STATS_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private int statsCallbacks;
+    private long statsStart;
+    private long transitionStart;
+    private long lastDetectionLatencyMs = -1;
+
+    // Idle mode (see DetectUserInterest): after a while with nothing happening, only a
+    // low-power trigger stays armed, and full-rate sensing comes back when it fires.
+    private static final long IDLE_WATCH_MS = TimeUnit.SECONDS.toMillis(30);
+    private static final int IDLE_SAMPLING_US = (int) TimeUnit.MILLISECONDS.toMicros(500);
+    private static final int IDLE_REPORT_LATENCY_US = (int) TimeUnit.SECONDS.toMicros(1);
+    private final Sensor wakeUpAccelerometer;
+    private final Sensor significantMotion;
+    private TriggerEventListener significantMotionListener;
+    private boolean idle;
+    private boolean idleHaveValues;
+    private final float[] idleValues = new float[3];
+    private final Runnable goIdle = this::goIdle;
+
     private final float[] avgAcceleration = new float[3];
 
     private long previousTimestamp = 0;
     private final float[] previousValues = new float[3];
-    private SamplesQueue queue;
+    private final SamplesQueue queue = new SamplesQueue();
 
     private final SensorManager sensorManager;
     private final Sensor accelerometer;
@@ -129,9 +170,26 @@ public class DeviceMotionDetector implements SensorEventListener {
         return deviceMotionDetector;
     }
 
+    // For tests: a detector built from what would otherwise be injected, installed as
+    // our single instance (so DetectUserInterest() and the rest use it).
+    @VisibleForTesting
+    @NonNull
+    static DeviceMotionDetector createForTest(@NonNull Context context,
+                                              @NonNull GlobalSettings globalSettings) {
+        enabled = false;
+        priorType = MotionType.OTHER;
+        deviceMotionDetector = new DeviceMotionDetector(context, globalSettings);
+        return deviceMotionDetector;
+    }
+
     // Singleton private constructor
     private DeviceMotionDetector(Context context) {
+        this(context, null);
         AesopPlayerApplication.getComponent().inject(this);
+    }
+
+    private DeviceMotionDetector(Context context, GlobalSettings globalSettings) {
+        this.globalSettings = globalSettings;
 
         // Get the sensor. If it isn't there null things so that callers can simply
         // make the call and not have to think about whether it's there or not.
@@ -139,6 +197,8 @@ public class DeviceMotionDetector implements SensorEventListener {
         if (sensorManager == null) {
             accelerometer = null;
             proximity = null;
+            wakeUpAccelerometer = null;
+            significantMotion = null;
             powerManager = null;
             return;
         }
@@ -153,10 +213,23 @@ public class DeviceMotionDetector implements SensorEventListener {
             midRange = range/2;
         }
 
+        // Low-power triggers for idle mode, best first; either may be missing.
+        // Where the only accelerometer is a wake-up one, it's also the default one, and
+        // can't be told apart from it (events are routed by sensor), so it's not used.
+        Sensor wakeUp = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            wakeUp = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER, true);
+        }
+        wakeUpAccelerometer = wakeUp != accelerometer ? wakeUp : null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            significantMotion = sensorManager.getDefaultSensor(Sensor.TYPE_SIGNIFICANT_MOTION);
+        }
+        else {
+            significantMotion = null;
+        }
+
         // We'll need this later when we don't have a context.
         powerManager = (PowerManager)context.getSystemService(Context.POWER_SERVICE);
-
-        queue = new SamplesQueue();
     }
 
     public void enable() {
@@ -168,8 +241,40 @@ public class DeviceMotionDetector implements SensorEventListener {
         if (accelerometer == null) {
             return;
         }
-        // 4 argument form requires Api19
-        sensorManager.registerListener(this, accelerometer, SensorManager.SENSOR_DELAY_UI);
+        slowSampling = false;
+        updateTiltSensing();
+        settledSince = 0;
+        statsStart = 0;
+        sensorManager.registerListener(this, accelerometer, FAST_SAMPLING);
+    }
+
+    private void sampleFast() {
+        if (!slowSampling || !enabled) {
+            return;
+        }
+        slowSampling = false;
+        sensorManager.unregisterListener(this, accelerometer);
+        sensorManager.registerListener(this, accelerometer, FAST_SAMPLING);
+        updateTiltSensing();
+    }
+
+    private void sampleSlow() {
+        if (slowSampling || !enabled) {
+            return;
+        }
+        slowSampling = true;
+        sensorManager.unregisterListener(this, accelerometer);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                && accelerometer.getFifoMaxEventCount() > 0) {
+            // Let the hardware collect samples and deliver them in bursts, so the CPU
+            // can sleep in between.
+            sensorManager.registerListener(this, accelerometer, SLOW_SAMPLING_US,
+                    SLOW_REPORT_LATENCY_US);
+        }
+        else {
+            sensorManager.registerListener(this, accelerometer, SLOW_SAMPLING_US);
+        }
+        updateTiltSensing();
     }
 
     public void disable() {
@@ -177,9 +282,10 @@ public class DeviceMotionDetector implements SensorEventListener {
         if (accelerometer == null) {
             return;
         }
+        updateTiltSensing();
         // unregister all listeners just so they don't build up if there's a bug
         sensorManager.unregisterListener(this);
-        queue = new SamplesQueue();
+        queue.clear();
         priorType = MotionType.OTHER;
     }
 
@@ -190,7 +296,10 @@ public class DeviceMotionDetector implements SensorEventListener {
 
     @Override
     public void onSensorChanged(SensorEvent event) {
-        if (event.sensor.getType() == Sensor.TYPE_PROXIMITY) {
+        if (event.sensor == wakeUpAccelerometer) {
+            onIdleSensorChanged(event);
+        }
+        else if (event.sensor.getType() == Sensor.TYPE_PROXIMITY) {
             onPSensorChanged(event);
         }
         else if (event.sensor.getType() == Sensor.TYPE_ACCELEROMETER) {
@@ -227,9 +336,7 @@ public class DeviceMotionDetector implements SensorEventListener {
             previousValues[i] = event.values[i];
         }
 
-        if (tiltListener != null) {
-            checkTiltAngle(x, y, z);
-        }
+        countCallback(event.timestamp);
 
         // accDeltaSum is the sum of the absolute deviations from g (still == 0)
         // sampleDeltaSum is the sum of the changes from the last sample (still == 0)
@@ -249,6 +356,8 @@ public class DeviceMotionDetector implements SensorEventListener {
                 : isAccelerating ? MotionType.ACCELERATING
                 : MotionType.OTHER;
 
+        adjustSampling(event.timestamp, sampleType);
+
         // Add this sample, and from that determine the overall motion type if a majority
         // has been accumulated yet.
         queue.add(event.timestamp, sampleType);
@@ -259,7 +368,17 @@ public class DeviceMotionDetector implements SensorEventListener {
 
         // Purge the queue completely if we resolved a motion type.
         if (detectedType != MotionType.OTHER) {
-            queue = new SamplesQueue();
+            queue.clear();
+        }
+
+        if (detectedType != MotionType.OTHER && transitionStart != 0) {
+            // From the first sample that disagreed with the old state to the one that
+            // decided it. Both are sensor timestamps: only on newer devices are those
+            // guaranteed to share a base with elapsedRealtimeNanos(). (So any time spent
+            // waiting in the FIFO isn't counted.)
+            lastDetectionLatencyMs = TimeUnit.NANOSECONDS.toMillis(
+                    event.timestamp - transitionStart);
+            transitionStart = 0;
         }
 
         // events could potentially come in after disable, so  don't pass them on
@@ -285,77 +404,96 @@ public class DeviceMotionDetector implements SensorEventListener {
         }
     }
 
+    // Slow down once settled face down or up; speed up as soon as that might be changing.
+    private void adjustSampling(long timestamp, MotionType sampleType) {
+        boolean settled = sampleType == priorType
+                && (priorType == MotionType.FACE_DOWN || priorType == MotionType.FACE_UP);
+        if (!settled) {
+            settledSince = 0;
+            if (transitionStart == 0) {
+                transitionStart = timestamp;
+            }
+            sampleFast();
+            return;
+        }
+        transitionStart = 0;
+        if (settledSince == 0) {
+            settledSince = timestamp;
+        }
+        else if (timestamp - settledSince > SETTLE_TIME_NANOS) {
+            sampleSlow();
+        }
+    }
+
+    private void countCallback(long timestamp) {
+        statsCallbacks++;
+        if (statsStart == 0) {
+            statsStart = timestamp;
+            statsCallbacks = 0;
+        }
+        else if (timestamp - statsStart >= STATS_INTERVAL_NANOS) {
+            CrashWrapper.log(TAG, statsCallbacks * STATS_INTERVAL_NANOS / (timestamp - statsStart)
+                    + " callbacks/min, " + (slowSampling ? "slow" : "fast")
+                    + ", last detection " + lastDetectionLatencyMs + "ms");
+            statsStart = timestamp;
+            statsCallbacks = 0;
+        }
+    }
+
     @SuppressWarnings("EmptyMethod")
     @Override
     public void onAccuracyChanged(Sensor sensor, int accuracy) {
     }
 
 
-    // Inspired by Square's seismic ShakeDetector.
+    // Inspired by Square's seismic ShakeDetector. The samples in the time window, kept
+    // in a fixed ring of arrays (allocated once), with running counts of each type.
     private static class SamplesQueue {
         private static final int MIN_LENGTH = 4;
+        // Far more than a time window's worth at any rate we ask for; if it's ever
+        // exceeded, the oldest samples go first.
+        private static final int CAPACITY = 256;
 
-        private static class SampleEntry {
-            MotionType motionType;
-            private long timestamp;
-
-            SampleEntry next = null;
-        }
-
-        private SampleEntry newest = null;
-        private SampleEntry oldest = null;
+        private final long[] timestamps = new long[CAPACITY];
+        private final MotionType[] types = new MotionType[CAPACITY];
+        private int oldest = 0;
         private int count = 0;
         private int acceleratingCount = 0;
         private int faceDownCount = 0;
         private int faceUpCount = 0;
 
-        private SampleEntry unused = null;
-
-        // Insert an entry in the linked list, incrementing the counter for its type
+        // Add an entry, incrementing the counter for its type
         void add(long timestamp, MotionType type) {
-            SampleEntry newSample;
-            if (unused != null) {
-                newSample = unused;
-                unused = newSample.next;
-            } else {
-                newSample = new SampleEntry();
-            }
-            newSample.timestamp = timestamp;
-            newSample.motionType = type;
-            newSample.next = null;
-
-            if (newest != null)
-              newest.next = newSample;
-            newest = newSample;
-            if (oldest == null)
-                oldest = newest;
-            switch (type) {
-                case ACCELERATING:
-                    ++acceleratingCount;
-                    break;
-                case FACE_DOWN:
-                    ++faceDownCount;
-                    break;
-                case FACE_UP:
-                    ++faceUpCount;
-                    break;
+            if (count == CAPACITY) {
+                removeOldest();
             }
+            int newest = (oldest + count) % CAPACITY;
+            timestamps[newest] = timestamp;
+            types[newest] = type;
+            adjustCount(type, 1);
             ++count;
         }
 
         // Purge old entries (prior to timestamp), retaining a minimum list length
         void purgeOld(long timestamp) {
-            while(oldest != null && count > MIN_LENGTH && oldest.timestamp < timestamp) {
-                SampleEntry removed = oldest;
-                oldest = removed.next;
-                remove(removed);
+            while (count > MIN_LENGTH && timestamps[oldest] < timestamp) {
+                removeOldest();
             }
         }
 
+        void clear() {
+            oldest = 0;
+            count = 0;
+            acceleratingCount = 0;
+            faceDownCount = 0;
+            faceUpCount = 0;
+        }
+
         // For the entries in the list, which one (if any) constitutes 75% of the reports
         // (We're caching counts.)
         MotionType getMotionType() {
-            if (newest.timestamp - oldest.timestamp > MIN_TIME_WINDOW) {
+            long newestTimestamp = timestamps[(oldest + count - 1) % CAPACITY];
+            if (newestTimestamp - timestamps[oldest] > MIN_TIME_WINDOW) {
                 int threshold = (count >> 1) + (count >> 2);  // count * 0.75
                 if (faceDownCount >= threshold)
                     return MotionType.FACE_DOWN;
@@ -368,22 +506,25 @@ public class DeviceMotionDetector implements SensorEventListener {
             return MotionType.OTHER;
         }
 
-        // Remove an entry, decrementing the count of its type
-        private void remove(SampleEntry sample) {
+        // Remove the oldest entry, decrementing the count of its type
+        private void removeOldest() {
+            adjustCount(types[oldest], -1);
+            oldest = (oldest + 1) % CAPACITY;
             --count;
-            switch (sample.motionType) {
+        }
+
+        private void adjustCount(MotionType type, int delta) {
+            switch (type) {
                 case ACCELERATING:
-                    --acceleratingCount;
+                    acceleratingCount += delta;
                     break;
                 case FACE_DOWN:
-                    --faceDownCount;
+                    faceDownCount += delta;
                     break;
                 case FACE_UP:
-                    --faceUpCount;
+                    faceUpCount += delta;
                     break;
             }
-            sample.next = unused;
-            unused = sample;
         }
     }
 
@@ -456,6 +597,7 @@ public class DeviceMotionDetector implements SensorEventListener {
     }
 
     private void reawaken() {
+        idleStop();
         motionDetectorStop();
         proximityDetectorStop();
         busy = false;
@@ -478,18 +620,114 @@ public class DeviceMotionDetector implements SensorEventListener {
 
     // Set up a motion detector that runs when the playback and bookList windows get
     // turned off for device sleep. When a motion is detected, wake up the device.
+    // The full-rate detectors run for a while (the user may well still be nearby), and
+    // then give way to an idle trigger; see goIdle().
     static public void DetectUserInterest() {
-        // Ideally we'd use TYPE_SIGNIFICANT_MOTION for this, but that (on devices where it's
-        // even present) is too insensitive. "Significant" means really significant,
-        // apparently (as in a full-arm shake).
         DeviceMotionDetector detector = getDeviceMotionDetector();
         if (detector.busy || detector.suspended) {
             return;
         }
 
         detector.busy = true;
-        detector.motionDetectorStart();
-        detector.proximityDetectorStart();
+        detector.watchStart();
+    }
+
+    private void watchStart() {
+        motionDetectorStart();
+        proximityDetectorStart();
+        // (enable() clears busy, as it should when playback takes the detector over.)
+        busy = true;
+        handler.removeCallbacks(goIdle);
+        handler.postDelayed(goIdle, IDLE_WATCH_MS);
+    }
+
+    // Nothing happened during the watch, so stop the full-rate detectors and arm only a
+    // low-power trigger. A batched wake-up accelerometer is preferred: TYPE_SIGNIFICANT_MOTION
+    // is much cheaper but too insensitive to be the first choice. "Significant" means really
+    // significant, apparently (as in a full-arm shake). With neither, just keep watching.
+    private void goIdle() {
+        // (Leave it alone if playback has taken the detector over in the meantime.)
+        if (!busy || suspended || idle || listener != reawakenListener) {
+            return;
+        }
+        if (wakeUpAccelerometer != null
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            motionDetectorStop();
+            proximityDetectorStop();
+            idleHaveValues = false;
+            sensorManager.registerListener(this, wakeUpAccelerometer, IDLE_SAMPLING_US,
+                    IDLE_REPORT_LATENCY_US);
+            idle = true;
+        }
+        else if (significantMotion != null
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            motionDetectorStop();
+            proximityDetectorStop();
+            if (significantMotionListener == null) {
+                significantMotionListener = new SignificantMotionListener();
+            }
+            idle = sensorManager.requestTriggerSensor(significantMotionListener,
+                    significantMotion);
+            if (!idle) {
+                watchStart();
+                return;
+            }
+        }
+        else {
+            return;
+        }
+        CrashWrapper.log(TAG, "Idle on " + (wakeUpAccelerometer != null
+                ? "wake-up accelerometer" : "significant motion"));
+    }
+
+    private void idleStop() {
+        handler.removeCallbacks(goIdle);
+        if (!idle) {
+            return;
+        }
+        idle = false;
+        if (wakeUpAccelerometer != null) {
+            sensorManager.unregisterListener(this, wakeUpAccelerometer);
+        }
+        else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            sensorManager.cancelTriggerSensor(significantMotionListener, significantMotion);
+        }
+    }
+
+    // The trigger fired: back to the full-rate detectors for another watch.
+    private void idleTriggered() {
+        idleStop();
+        if (!busy || suspended) {
+            return;
+        }
+        CrashWrapper.log(TAG, "Idle trigger fired");
+        watchStart();
+    }
+
+    // Any real change between (batched, slow) samples counts; the full-rate detectors
+    // sort out what it was.
+    private void onIdleSensorChanged(SensorEvent event) {
+        if (!idle) {
+            return;
+        }
+        float delta = 0f;
+        for (int i = 0; i < idleValues.length; ++i) {
+            delta += Math.abs(event.values[i] - idleValues[i]);
+            idleValues[i] = event.values[i];
+        }
+        if (idleHaveValues && delta > MAX_STILL_TOLERANCE) {
+            idleTriggered();
+        }
+        idleHaveValues = true;
+    }
+
+    @TargetApi(18)
+    private class SignificantMotionListener extends TriggerEventListener {
+        @Override
+        public void onTrigger(TriggerEvent event) {
+            // (The system disarms a trigger as it fires.)
+            idleTriggered();
+        }
     }
 
     // We don't want to run the DetectUserInterest stuff under certain circumstances that the
@@ -500,6 +738,7 @@ public class DeviceMotionDetector implements SensorEventListener {
     static public void suspend() {
         DeviceMotionDetector detector = getDeviceMotionDetector();
         detector.suspended = true;
+        detector.idleStop();
         detector.motionDetectorStop();
         detector.proximityDetectorStop();
     }
@@ -508,20 +747,42 @@ public class DeviceMotionDetector implements SensorEventListener {
         DeviceMotionDetector detector = getDeviceMotionDetector();
         detector.suspended = false;
         if (detector.busy) {
-            detector.motionDetectorStart();
-            detector.proximityDetectorStart();
+            detector.watchStart();
         }
     }
 
     @SuppressWarnings("UnusedReturnValue")
     public static DeviceMotionDetector getDeviceMotionDetector(TouchRateJoystick.Listener tiltListener) {
-        deviceMotionDetector.tiltState = TiltState.UNESTABLISHED;
-        deviceMotionDetector.counter = 0;
         deviceMotionDetector.tiltListener = tiltListener;
+        deviceMotionDetector.updateTiltSensing();
         return deviceMotionDetector;
     }
 
+    // Tilt control has its own accelerometer listener. Its events, the angle math and the
+    // tick FSM below all run on the tilt thread, so they don't compete with the UI while
+    // the user is working the controls; only the (debounced) decisions are posted back.
+    // tiltListener and tiltSensing belong to the UI thread, the rest to the tilt thread.
     private TouchRateJoystick.Listener tiltListener;
+    private boolean tiltSensing;
+    private HandlerThread tiltThread;
+    private Handler tiltHandler;
+    private final Runnable tick = this::onTick;
+    private final SensorEventListener tiltSensorListener = new SensorEventListener() {
+        @Override
+        public void onSensorChanged(SensorEvent event) {
+            // (Stamped on arrival: event.timestamp isn't in the elapsedRealtimeNanos() base
+            // on every device we support.)
+            checkTiltAngle(SystemClock.elapsedRealtimeNanos(),
+                    event.values[0], event.values[1], event.values[2]);
+        }
+
+        @SuppressWarnings("EmptyMethod")
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy) {
+        }
+    };
+
+    // The UI thread's
     private final Handler handler = new Handler();
     private static final int INTERVAL = 1000;
     private long startT = 0;
@@ -539,8 +800,70 @@ public class DeviceMotionDetector implements SensorEventListener {
     private enum TiltState {UNESTABLISHED, ESTABLISHING, ESTABLISHED, CLEARING}
     private TiltState tiltState = TiltState.UNESTABLISHED;
 
+    // For the latency trace: when the sensor event that started the pending state change
+    // arrived (elapsedRealtimeNanos), or 0.
+    private long tiltEventNanos;
+
+    // Tilt sensing runs while there's a tilt listener and the detector is enabled, except
+    // while it's settled face down: tilt control only works face up, and the sensor runs at
+    // the fastest rate any listener asks for, so ours would undo sampleSlow().
+    private void updateTiltSensing() {
+        boolean wanted = tiltListener != null && enabled && accelerometer != null
+                && !(slowSampling && priorType == MotionType.FACE_DOWN);
+        if (wanted == tiltSensing) {
+            return;
+        }
+        tiltSensing = wanted;
+        if (!wanted) {
+            sensorManager.unregisterListener(tiltSensorListener);
+            tiltHandler.removeCallbacks(tick);
+            // Don't leave a control held down
+            tiltHandler.post(() -> {
+                if (tiltState == TiltState.ESTABLISHED || tiltState == TiltState.CLEARING) {
+                    postTouchRate(direction, RELEASE);
+                }
+                tiltState = TiltState.UNESTABLISHED;
+            });
+            return;
+        }
+        if (tiltThread == null) {
+            tiltThread = new HandlerThread("TiltSensor");
+            tiltThread.start();
+            tiltHandler = new Handler(tiltThread.getLooper());
+        }
+        tiltHandler.removeCallbacks(tick);
+        tiltHandler.post(() -> {
+            tiltState = TiltState.UNESTABLISHED;
+            counter = 0;
+            tiltEventNanos = 0;
+        });
+        sensorManager.registerListener(tiltSensorListener, accelerometer, FAST_SAMPLING,
+                tiltHandler);
+    }
+
+    // Tilt thread: hand a decision to the UI thread, tracing how long it took from the
+    // sensor event that caused it (if any) to being applied.
+    private void postTouchRate(final TouchRateJoystick.Direction direction, final int counter) {
+        final long eventNanos = tiltEventNanos;
+        tiltEventNanos = 0;
+        final long postedNanos = SystemClock.elapsedRealtimeNanos();
+        handler.post(() -> {
+            if (tiltListener == null) {
+                // Stopped in the meantime
+                return;
+            }
+            tiltListener.onTouchRate(direction, counter);
+            if (eventNanos != 0) {
+                long now = SystemClock.elapsedRealtimeNanos();
+                CrashWrapper.log(TAG, "Tilt " + direction + " " + counter + ": "
+                        + TimeUnit.NANOSECONDS.toMillis(now - eventNanos) + "ms from sensor event, "
+                        + TimeUnit.NANOSECONDS.toMillis(now - postedNanos) + "ms on UI queue");
+            }
+        });
+    }
+
     @SuppressWarnings({"DuplicateExpressions", "RedundantSuppression"})
-    private void checkTiltAngle(float x, float y, float z) {
+    private void checkTiltAngle(long arrivalNanos, float x, float y, float z) {
         // We rely on the fact that it's not physically possible to change directions
         // without going through the UNESTABLISHED state.
         float p = (float)Math.toDegrees(Math.atan2(x,z));
@@ -578,8 +901,9 @@ public class DeviceMotionDetector implements SensorEventListener {
                 // is thus ignored pretty well.
                 // A shorter initial interval the first time seems subjectively better
                 delayNs = INTERVAL/2;
-                handler.postDelayed(this::onTick, INTERVAL/2);
+                tiltHandler.postDelayed(tick, INTERVAL/2);
                 counter = 0;
+                tiltEventNanos = arrivalNanos;
             }
             break;
         }
@@ -623,6 +947,7 @@ public class DeviceMotionDetector implements SensorEventListener {
                 else {
                     // Clear the state on next tick
                     tiltState = TiltState.CLEARING;
+                    tiltEventNanos = arrivalNanos;
                 }
             }
             }
@@ -634,7 +959,7 @@ public class DeviceMotionDetector implements SensorEventListener {
     }
 
     private void onTick() {
-        handler.removeCallbacksAndMessages(null); // in case of several
+        tiltHandler.removeCallbacks(tick); // in case of several
         switch (tiltState) {
         case UNESTABLISHED: {
             // Happens when we momentarily enter ESTABLISHING but leave before a tick.
@@ -649,19 +974,19 @@ public class DeviceMotionDetector implements SensorEventListener {
         }
         case CLEARING: {
             tiltState = TiltState.UNESTABLISHED;
-            tiltListener.onTouchRate(direction, RELEASE);
+            postTouchRate(direction, RELEASE);
             return;
         }
         }
 
-        handler.postDelayed(this::onTick, INTERVAL);
+        tiltHandler.postDelayed(tick, INTERVAL);
 
         final long nanoT = System.nanoTime();
         final long deltaT = nanoT-startT;
 
         if (deltaT > delayNs) {
             startT = nanoT;
-            tiltListener.onTouchRate(direction, counter);
+            postTouchRate(direction, counter);
             delayNs = INTERVAL;
             counter++;
         }
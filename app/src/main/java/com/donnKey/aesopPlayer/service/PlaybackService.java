@@ -25,11 +25,16 @@
 package com.donnKey.aesopPlayer.service;
 
 import android.app.Notification;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.media.AudioManager;
 import android.media.MediaRouter;
+import android.os.Build;
 import android.os.Handler;
+import android.os.PowerManager;
+import android.os.SystemClock;
 import androidx.annotation.NonNull;
 import android.app.Service;
 import android.content.Intent;
@@ -87,6 +92,17 @@ public class PlaybackService
     private Handler handler;
     private boolean userPaused;
     private final SleepFadeOut sleepFadeOut = new SleepFadeOut();
+    private boolean screenOn = true;
+    private final BroadcastReceiver screenStateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            setScreenOn(Intent.ACTION_SCREEN_ON.equals(intent.getAction()));
+        }
+    };
+
+    // Wakeups for progress ticks (UI and persistence), for measuring the cost of playing.
+    private int progressWakeups;
+    private long progressWakeupsStartMs;
 
     @Override
     public IBinder onBind(Intent intent) {
@@ -99,15 +115,35 @@ public class PlaybackService
         AesopPlayerApplication.getComponent().inject(this);
 
         handler = new Handler(getMainLooper());
+
+        PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        assert powerManager != null;
+        screenOn = Build.VERSION.SDK_INT >= 20
+                ? powerManager.isInteractive()
+                : powerManager.isScreenOn();
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_SCREEN_ON);
+        filter.addAction(Intent.ACTION_SCREEN_OFF);
+        registerReceiver(screenStateReceiver, filter);
     }
 
     @Override
     public void onDestroy() {
         CrashWrapper.log(TAG, "PlaybackService.onDestroy");
         super.onDestroy();
+        unregisterReceiver(screenStateReceiver);
         stopPlayback();
     }
 
+    private void setScreenOn(boolean on) {
+        if (on == screenOn)
+            return;
+        screenOn = on;
+        if (playbackInProgress != null) {
+            playbackInProgress.setScreenOn(on);
+        }
+    }
+
     public void startPlayback(AudioBook book) {
         if (playbackInProgress != null) {
             Preconditions.checkState(player != null);
@@ -135,6 +171,8 @@ public class PlaybackService
 
             // Start playback even if the duration query isn't done; we'll update the screen later
             CrashWrapper.log(TAG,"PlaybackService.startPlayback: create AudioBookPlayback");
+            progressWakeups = 0;
+            progressWakeupsStartMs = SystemClock.elapsedRealtime();
             playbackInProgress = new AudioBookPlayback(
                     player, handler, book, globalSettings.getJumpBackPreferenceMs());
             playbackInProgress.start();
@@ -231,6 +269,7 @@ public class PlaybackService
 
     private void onPlaybackEnded() {
         CrashWrapper.log(TAG, "PlaybackService.onPlaybackEnded");
+        logProgressWakeups();
         playbackInProgress = null;
 
         stopSleepTimer();
@@ -249,6 +288,15 @@ public class PlaybackService
         stopSelf();
     }
 
+    private void logProgressWakeups() {
+        long elapsedMs = SystemClock.elapsedRealtime() - progressWakeupsStartMs;
+        if (playbackInProgress == null || elapsedMs <= 0)
+            return;
+        long perHour = progressWakeups * TimeUnit.HOURS.toMillis(1) / elapsedMs;
+        CrashWrapper.log(TAG, "Progress wakeups: " + progressWakeups + " in "
+                + TimeUnit.MILLISECONDS.toSeconds(elapsedMs) + "s (" + perHour + "/hour)");
+    }
+
     private void requestAudioFocus() {
         AudioManager audioManager =
                 (AudioManager) getApplicationContext().getSystemService(Context.AUDIO_SERVICE);
@@ -284,12 +332,19 @@ public class PlaybackService
         private final @NonNull Runnable updatePosition = new Runnable() {
             @Override
             public void run() {
+                progressWakeups++;
                 audioBook.updatePosition(controller.getSegmentPositionMs());
-                handler.postDelayed(updatePosition, UPDATE_TIME_MS);
+                handler.postDelayed(updatePosition, updateTimeMs());
             }
         };
 
+        // With the screen off nobody sees progress, so only save the position, and less often.
         private final long UPDATE_TIME_MS = TimeUnit.SECONDS.toMillis(10);
+        private final long SCREEN_OFF_UPDATE_TIME_MS = TimeUnit.SECONDS.toMillis(30);
+
+        private long updateTimeMs() {
+            return screenOn ? UPDATE_TIME_MS : SCREEN_OFF_UPDATE_TIME_MS;
+        }
 
         private AudioBookPlayback(
                 @NonNull Player player,
@@ -302,6 +357,28 @@ public class PlaybackService
 
             controller = player.createPlayback();
             controller.setObserver(this);
+            controller.setProgressUpdatesEnabled(screenOn);
+        }
+
+        void setScreenOn(boolean on) {
+            controller.setProgressUpdatesEnabled(on);
+            if (positionUpdatesRunning) {
+                // Pick up the new cadence now rather than at the next tick.
+                stopPositionUpdates();
+                startPositionUpdates();
+            }
+        }
+
+        private boolean positionUpdatesRunning;
+
+        private void startPositionUpdates() {
+            positionUpdatesRunning = true;
+            handler.postDelayed(updatePosition, updateTimeMs());
+        }
+
+        private void stopPositionUpdates() {
+            positionUpdatesRunning = false;
+            handler.removeCallbacks(updatePosition);
         }
 
         void start() {
@@ -310,7 +387,7 @@ public class PlaybackService
             long startPositionMs = Math.max(0, position.seekPosition - jumpBackMs);
             resetSleepTimer();
             controller.start(audioBook.getFile(position), startPositionMs, false);
-            handler.postDelayed(updatePosition, UPDATE_TIME_MS);
+            startPositionUpdates();
         }
 
         void stop() {
@@ -318,7 +395,7 @@ public class PlaybackService
         }
 
         void pauseForRewind() {
-            handler.removeCallbacks(updatePosition);
+            stopPositionUpdates();
             stopSleepTimer();
             controller.pause();
         }
@@ -333,7 +410,7 @@ public class PlaybackService
         void resumeFromRewind() {
             BookPosition position = audioBook.getLastPosition();
             controller.start(audioBook.getFile(position), position.seekPosition, false);
-            handler.postDelayed(updatePosition, UPDATE_TIME_MS);
+            startPositionUpdates();
             resetSleepTimer();
             if (userPaused) {
                 controller.pause();
@@ -345,7 +422,7 @@ public class PlaybackService
             BookPosition position = audioBook.getLastPosition();
             long startPositionMs = Math.max(0, position.seekPosition - jumpBackMs);
             controller.resume(audioBook.getFile(position), startPositionMs);
-            handler.postDelayed(updatePosition, UPDATE_TIME_MS);
+            startPositionUpdates();
             resetSleepTimer();
         }
 
@@ -355,6 +432,7 @@ public class PlaybackService
 
         @Override
         public void onPlaybackProgressed(long segmentPositionMs) {
+            progressWakeups++;
             BookPosition currentPosition = new BookPosition(audioBook, segmentPositionMs);
             eventBus.post(new PlaybackProgressedEvent(
                     audioBook, audioBook.toMs(currentPosition)));
@@ -393,7 +471,7 @@ public class PlaybackService
 
         @Override
         public void onPlayerReleased() {
-            handler.removeCallbacks(updatePosition);
+            stopPositionUpdates();
             PlaybackService.this.onPlayerReleased();
         }
     }
@@ -443,33 +521,25 @@ public class PlaybackService
         }
     }
 
-    private class SleepFadeOut implements Runnable {
-        private float currentVolume = 1.0f;
-        private final long STEP_INTERVAL_MS = 100;
-        private final float VOLUME_DOWN_STEP =  (float) STEP_INTERVAL_MS / FADE_OUT_DURATION_MS;
-
+    private class SleepFadeOut {
+        // The fade itself is done by the player's audio pipeline; we just arm it once
+        // and get called back (on this thread) when the audio has gone silent.
         void scheduleStart(long delay) {
-            handler.postDelayed(this, delay);
+            if (player != null)
+                player.startFadeOut(delay, FADE_OUT_DURATION_MS, this::onFaded);
         }
 
         void reset() {
-            handler.removeCallbacks(this);
-            currentVolume = 1.0f;
-
             // The player may have been released already.
             if (player != null)
-              player.setPlaybackVolume(currentVolume);
+                player.cancelFadeOut();
         }
 
-        @Override
-        public void run() {
-            currentVolume -= VOLUME_DOWN_STEP;
-            player.setPlaybackVolume(currentVolume);
-            if (currentVolume <= 0) {
+        private void onFaded() {
+            // A stale callback can arrive after playback has stopped for some other reason.
+            if (playbackInProgress != null) {
                 CrashWrapper.log(TAG, "SleepFadeOut stop");
                 stopPlayback();
-            } else {
-                handler.postDelayed(this, STEP_INTERVAL_MS);
             }
         }
     }
@@ -226,6 +226,9 @@ public class CandidateFragment extends Fragment {
         MenuItem renameBox = menu.findItem(R.id.rename);
         renameBox.setChecked(globalSettings.getRenameFiles());
 
+        MenuItem verifyBox = menu.findItem(R.id.verify);
+        verifyBox.setChecked(globalSettings.getVerifyCopies());
+
         super.onCreateOptionsMenu(menu, inflater);
     }
 
@@ -269,6 +272,12 @@ public class CandidateFragment extends Fragment {
             globalSettings.setRenameFiles(isChecked);
             return true;
 
+        case R.id.verify:
+            boolean verify = !item.isChecked();
+            item.setChecked(verify);
+            globalSettings.setVerifyCopies(verify);
+            return true;
+
         case R.id.search_dir:
             showDirectoriesDialog();
             return true;
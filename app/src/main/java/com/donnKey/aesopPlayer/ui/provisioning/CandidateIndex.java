@@ -0,0 +1,189 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Donn S. Terry
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.donnKey.aesopPlayer.ui.provisioning;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.File;
+import java.util.Map;
+import java.util.Set;
+
+// What analyzing each candidate found, keyed by its path and checked against its size and
+// modification time. (For a directory, the total size and newest modification time of
+// everything under it: its own don't change when something deeper does, such as a book
+// that was still being copied in when it was looked at.) Rebuilding the candidate list
+// (reopening provisioning, or a remote "downloads:books") then only digs into entries
+// that changed.
+// Entries that turned out not to be books are remembered too, so they aren't probed again.
+class CandidateIndex {
+    private static final String PREFERENCES_NAME = CandidateIndex.class.getSimpleName();
+
+    private static final String FIELD_SIZE = "size";
+    private static final String FIELD_MODIFIED = "modified";
+    private static final String FIELD_AUDIO_PATH = "audioPath";
+    private static final String FIELD_METADATA_TITLE = "metadataTitle";
+    private static final String FIELD_METADATA_AUTHOR = "metadataAuthor";
+    private static final String FIELD_BOOK_TITLE = "bookTitle";
+
+    private final SharedPreferences preferences;
+    // Changes are batched; save() writes them.
+    private SharedPreferences.Editor pending;
+
+    static class Entry {
+        // null if this isn't a book
+        final File audioPath;
+        final String metadataTitle;
+        final String metadataAuthor;
+        final String bookTitle;
+
+        Entry(File audioPath, String metadataTitle, String metadataAuthor, String bookTitle) {
+            this.audioPath = audioPath;
+            this.metadataTitle = metadataTitle;
+            this.metadataAuthor = metadataAuthor;
+            this.bookTitle = bookTitle;
+        }
+    }
+
+    CandidateIndex(@NonNull Context context) {
+        this.preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    // The remembered analysis of path, or null if there's none or path has changed since.
+    @Nullable
+    Entry lookup(@NonNull File path) {
+        String data = preferences.getString(path.getPath(), null);
+        if (data == null) {
+            return null;
+        }
+        try {
+            JSONObject json = (JSONObject) new JSONTokener(data).nextValue();
+            long[] signature = signature(path);
+            if (json.getLong(FIELD_SIZE) != signature[0]
+                    || json.getLong(FIELD_MODIFIED) != signature[1]) {
+                return null;
+            }
+            String audioPath = json.optString(FIELD_AUDIO_PATH, null);
+            if (audioPath == null) {
+                return new Entry(null, null, null, null);
+            }
+            String bookTitle = json.optString(FIELD_BOOK_TITLE, null);
+            if (bookTitle == null) {
+                return null;
+            }
+            return new Entry(new File(audioPath),
+                    json.optString(FIELD_METADATA_TITLE, null),
+                    json.optString(FIELD_METADATA_AUTHOR, null),
+                    bookTitle);
+        } catch (JSONException | ClassCastException e) {
+            // Unreadable: just redo it.
+            return null;
+        }
+    }
+
+    void putNotCandidate(@NonNull File path) {
+        put(path, null, null, null, null);
+    }
+
+    void putCandidate(@NonNull File path, @NonNull Provisioning.Candidate candidate) {
+        put(path, candidate.audioPath, candidate.metadataTitle, candidate.metadataAuthor,
+                candidate.bookTitle);
+    }
+
+    private void put(@NonNull File path, File audioPath,
+                     String metadataTitle, String metadataAuthor, String bookTitle) {
+        JSONObject json = new JSONObject();
+        try {
+            long[] signature = signature(path);
+            json.put(FIELD_SIZE, signature[0]);
+            json.put(FIELD_MODIFIED, signature[1]);
+            if (audioPath != null) {
+                json.put(FIELD_AUDIO_PATH, audioPath.getPath());
+                json.putOpt(FIELD_METADATA_TITLE, metadataTitle);
+                json.putOpt(FIELD_METADATA_AUTHOR, metadataAuthor);
+                json.putOpt(FIELD_BOOK_TITLE, bookTitle);
+            }
+        } catch (JSONException e) {
+            // Should never happen, none of the values is NaN nor Infinity.
+            return;
+        }
+        synchronized (this) {
+            if (pending == null) {
+                pending = preferences.edit();
+            }
+            pending.putString(path.getPath(), json.toString());
+        }
+    }
+
+    // {size, modified} of a file; {total size, newest modified} of a directory tree.
+    @NonNull
+    private static long[] signature(@NonNull File path) {
+        long[] signature = {0, 0};
+        addToSignature(path, signature);
+        return signature;
+    }
+
+    private static void addToSignature(@NonNull File path, @NonNull long[] signature) {
+        signature[1] = Math.max(signature[1], path.lastModified());
+        File[] children = path.listFiles();
+        if (children == null) {
+            // A file (or unreadable)
+            signature[0] += path.length();
+            return;
+        }
+        for (File child : children) {
+            addToSignature(child, signature);
+        }
+    }
+
+    // Forget entries in directory that aren't there any more.
+    void prune(@NonNull File directory, @NonNull Set<String> present) {
+        Map<String, ?> entries = preferences.getAll();
+        synchronized (this) {
+            for (String key : entries.keySet()) {
+                File f = new File(key);
+                if (directory.equals(f.getParentFile()) && !present.contains(f.getName())) {
+                    if (pending == null) {
+                        pending = preferences.edit();
+                    }
+                    pending.remove(key);
+                }
+            }
+        }
+    }
+
+    synchronized void save() {
+        if (pending != null) {
+            pending.apply();
+            pending = null;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Donn S. Terry
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.donnKey.aesopPlayer.ui.provisioning;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import com.donnKey.aesopPlayer.analytics.CrashWrapper;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// What each socket download fetched: where it went, the server's validator (ETag or
+// Last-Modified) and the SHA-256 of what arrived. If that file is still around, a
+// conditional request tells us whether it's still current, and if it is there's no need
+// to transfer it again (or to make yet another name-1.zip beside it).
+class DownloadCache {
+    private static final String TAG = "DownloadCache";
+    private static final String PREFERENCES_NAME = DownloadCache.class.getSimpleName();
+
+    private static final String FIELD_PATH = "path";
+    private static final String FIELD_VALIDATOR = "validator";
+    private static final String FIELD_LENGTH = "length";
+    private static final String FIELD_SHA256 = "sha256";
+
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final SharedPreferences preferences;
+
+    DownloadCache(@NonNull Context context) {
+        this.preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    // The earlier download of requested, if it's still there, intact, and the server says
+    // it hasn't changed; otherwise null.
+    @WorkerThread
+    @Nullable
+    File unchangedCopy(@NonNull String requested) {
+        String data = preferences.getString(requested, null);
+        if (data == null) {
+            return null;
+        }
+
+        File file;
+        String validator;
+        String sha256;
+        try {
+            JSONObject json = (JSONObject) new JSONTokener(data).nextValue();
+            file = new File(json.getString(FIELD_PATH));
+            validator = json.getString(FIELD_VALIDATOR);
+            sha256 = json.getString(FIELD_SHA256);
+            if (!file.exists() || file.length() != json.getLong(FIELD_LENGTH)) {
+                forget(requested);
+                return null;
+            }
+        } catch (JSONException | ClassCastException e) {
+            forget(requested);
+            return null;
+        }
+
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(requested).openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setRequestProperty("accept-encoding", "identity");
+            if (validator.startsWith("\"")) {
+                connection.setRequestProperty("If-None-Match", validator);
+            }
+            else {
+                connection.setRequestProperty("If-Modified-Since", validator);
+            }
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_NOT_MODIFIED) {
+                // Changed (or the server doesn't do conditionals): download it. (The body
+                // isn't read; disconnecting drops it.)
+                return null;
+            }
+        } catch (IOException e) {
+            // Let the download proper report the problem.
+            return null;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+
+        // Unchanged on the server, but make sure nobody's touched our copy.
+        if (!sha256.equals(sha256Of(file))) {
+            forget(requested);
+            return null;
+        }
+        CrashWrapper.log(TAG, "Unchanged since downloaded, reusing " + file.getPath());
+        return file;
+    }
+
+    // Remember what was downloaded from requested. Without a validator there's nothing
+    // to ask the server later, so it's not worth remembering.
+    @WorkerThread
+    void put(@NonNull String requested, @NonNull File file, @Nullable String validator) {
+        if (validator == null) {
+            forget(requested);
+            return;
+        }
+        String sha256 = sha256Of(file);
+        if (sha256 == null) {
+            return;
+        }
+        JSONObject json = new JSONObject();
+        try {
+            json.put(FIELD_PATH, file.getPath());
+            json.put(FIELD_VALIDATOR, validator);
+            json.put(FIELD_LENGTH, file.length());
+            json.put(FIELD_SHA256, sha256);
+        } catch (JSONException e) {
+            // Should never happen, none of the values is NaN nor Infinity.
+            return;
+        }
+        preferences.edit().putString(requested, json.toString()).apply();
+    }
+
+    private void forget(@NonNull String requested) {
+        preferences.edit().remove(requested).apply();
+    }
+
+    @Nullable
+    private static String sha256Of(@NonNull File file) {
+        try (InputStream input = new FileInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = input.read(buffer)) > 0) {
+                digest.update(buffer, 0, n);
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            CrashWrapper.recordException(TAG, e);
+            return null;
+        }
+    }
+}
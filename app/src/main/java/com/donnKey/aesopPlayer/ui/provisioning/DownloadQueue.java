@@ -0,0 +1,225 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Donn S. Terry
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.donnKey.aesopPlayer.ui.provisioning;
+
+import android.net.Uri;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import com.donnKey.aesopPlayer.analytics.CrashWrapper;
+import com.donnKey.aesopPlayer.concurrency.SimpleDeferred;
+import com.donnKey.aesopPlayer.concurrency.SimpleFuture;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+// Socket downloads for a RemoteAuto script, fetched ahead of the commands that use them.
+// Up to `parallel` run at once, with at most PER_HOST_MAX connections (a segmented download
+// has several) to any one host, all sharing one bandwidth limit (if any). The caller takes
+// each result in script order, so installs still happen one at a time.
+class DownloadQueue {
+    private static final String TAG = "DownloadQueue";
+    // Connections; servers tend to treat more than this as abuse.
+    static final int PER_HOST_MAX = 2;
+    private static final int SHUTDOWN_WAIT_SECONDS = 10;
+
+    private final ExecutorService pool;
+    private final Throttle throttle;
+    private final Map<String, Semaphore> hosts = new HashMap<>();
+    private final Map<String, Queued> queued = new HashMap<>();
+
+    private static class Queued {
+        final SimpleDeferred<File> result = new SimpleDeferred<>();
+        final File target;
+
+        Queued(File target) {
+            this.target = target;
+        }
+    }
+
+    // A null throttle means no limit.
+    DownloadQueue(int parallel, @Nullable Throttle throttle) {
+        pool = Executors.newFixedThreadPool(parallel);
+        this.throttle = throttle;
+    }
+
+    boolean isQueued(@NonNull String requested) {
+        return queued.containsKey(requested);
+    }
+
+    // Start fetching requested into target. Target is created (empty) now, so that the
+    // unique names chosen for queued downloads can't collide.
+    @WorkerThread
+    void enqueue(@NonNull String requested, @NonNull File target, int segments) {
+        Queued q = new Queued(target);
+        try {
+            //noinspection ResultOfMethodCallIgnored
+            target.createNewFile();
+        } catch (Exception e) {
+            // Then it just isn't reserved.
+        }
+        queued.put(requested, q);
+
+        String host = Uri.parse(requested).getHost();
+        Semaphore hostPermits = hostPermits(host == null ? "" : host);
+        // A permit for each connection it will open.
+        int connections = Math.max(1, Math.min(segments, PER_HOST_MAX));
+        pool.execute(() -> {
+            try {
+                hostPermits.acquire(connections);
+                try {
+                    q.result.setResult(new Http(null).getFile_socket(requested, target,
+                            connections, throttle));
+                } finally {
+                    hostPermits.release(connections);
+                }
+            } catch (Exception e) {
+                //noinspection ResultOfMethodCallIgnored
+                target.delete();
+                q.result.setException(e);
+            }
+        });
+    }
+
+    // The download of requested (and forget it), or null if it wasn't queued.
+    @Nullable
+    SimpleFuture<File> take(@NonNull String requested) {
+        Queued q = queued.remove(requested);
+        return q == null ? null : q.result;
+    }
+
+    // Abandon whatever wasn't taken. The partial files of unfinished ones remain for a
+    // later resume.
+    void shutdown() {
+        pool.shutdownNow();
+        try {
+            pool.awaitTermination(SHUTDOWN_WAIT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Queued q : queued.values()) {
+            //noinspection ResultOfMethodCallIgnored
+            q.target.delete();
+        }
+        if (!queued.isEmpty()) {
+            CrashWrapper.log(TAG, "Abandoned " + queued.size() + " queued downloads");
+        }
+        queued.clear();
+    }
+
+    @NonNull
+    private Semaphore hostPermits(@NonNull String host) {
+        Semaphore permits = hosts.get(host);
+        if (permits == null) {
+            permits = new Semaphore(PER_HOST_MAX);
+            hosts.put(host, permits);
+        }
+        return permits;
+    }
+
+    // A token bucket shared by every connection of every queued download. It also counts
+    // what came through it; with a limit of 0 that's all it does.
+    static class Throttle {
+        private final long bytesPerSecond;
+        private long available;
+        private long lastRefillMs;
+        private long transferred;
+
+        Throttle(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+            this.available = bytesPerSecond;
+            this.lastRefillMs = SystemClock.elapsedRealtime();
+        }
+
+        // Wait until bytes more may be read.
+        void acquire(int bytes) throws InterruptedException {
+            long waitMs;
+            synchronized (this) {
+                transferred += bytes;
+                if (bytesPerSecond <= 0) {
+                    return;
+                }
+                long now = SystemClock.elapsedRealtime();
+                available = Math.min(bytesPerSecond,
+                        available + (now - lastRefillMs) * bytesPerSecond / 1000);
+                lastRefillMs = now;
+                available -= bytes;
+                // In debt: wait until it's paid off.
+                waitMs = available < 0 ? -available * 1000 / bytesPerSecond : 0;
+            }
+            if (waitMs > 0) {
+                Thread.sleep(waitMs);
+            }
+        }
+
+        synchronized long transferred() {
+            return transferred;
+        }
+
+        // For readers that don't call acquire themselves.
+        @NonNull
+        InputStream meter(@NonNull InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0) {
+                        take(1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(@NonNull byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0) {
+                        take(n);
+                    }
+                    return n;
+                }
+
+                private void take(int n) throws InterruptedIOException {
+                    try {
+                        acquire(n);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+            };
+        }
+    }
+}
@@ -23,28 +23,43 @@
  */
 package com.donnKey.aesopPlayer.ui.provisioning;
 
+import android.os.Build;
+import android.os.SystemClock;
+import android.text.format.Formatter;
+
 import androidx.annotation.NonNull;
+import androidx.annotation.StringRes;
 
-import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 
 import com.donnKey.aesopPlayer.R;
 import com.donnKey.aesopPlayer.analytics.CrashWrapper;
 import com.donnKey.aesopPlayer.util.FilesystemUtil;
 
-import org.apache.commons.compress.utils.IOUtils;
-
 import static com.donnKey.aesopPlayer.AesopPlayerApplication.getAppContext;
 import static com.donnKey.aesopPlayer.ui.provisioning.Provisioning.Severity.SEVERE;
 
@@ -59,8 +74,32 @@ public class FileUtilities {
     }
 
     static public final String UnzipTmpName = ".TmpDir";
+    private static final String TAG = "FileUtilities";
+
+    private static final int FILE_THREADS_MAX = 3;
+    private static final int FILE_BUFFER_SIZE = 256 * 1024;
+    private static final long FILE_PROGRESS_INTERVAL_MS = 500;
+    private static final long FILE_SHUTDOWN_WAIT_SECONDS = 10;
+    // Inflater streams work in byte[], so a (per worker) array is the cheapest buffer.
+    private static final ThreadLocal<byte[]> FILE_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[FILE_BUFFER_SIZE];
+        }
+    };
+
+    // Everything unzipped or copied, for the remote request report.
+    private static final AtomicLong BYTES_WRITTEN = new AtomicLong();
 
-    static boolean isZip(@NonNull String path) {
+    static long bytesWritten() {
+        return BYTES_WRITTEN.get();
+    }
+
+    static void countWritten(long bytes) {
+        BYTES_WRITTEN.addAndGet(bytes);
+    }
+
+    public static boolean isZip(@NonNull String path) {
         return path.endsWith(".zip") || path.endsWith(".ZIP");
     }
 
@@ -161,6 +200,110 @@ public class FileUtilities {
         }
     }
 
+    // Unzip a stream (e.g. straight off the network) into targetTmp, which is created
+    // (replacing any leftover) and is removed again if anything fails. Renaming it into place
+    // is up to the caller, which may want to look at what arrived first. Each entry's CRC and
+    // size are checked by ZipInputStream as it's read, and entries that would land outside
+    // targetTmp are refused. The stream is left for the caller to close. Can log errors.
+    static boolean unzipStream(@NonNull InputStream zipStream, @NonNull File targetTmp,
+                               StringCallback progress, ErrorCallback logError) {
+        if (targetTmp.exists()) {
+            deleteTree(targetTmp,logError);
+        }
+
+        boolean unzipped = false;
+        String newFile_name = "";
+        byte[] buffer = FILE_BUFFER.get();
+        long lastProgressMs = 0;
+        try {
+            if (!mkdirs(targetTmp, logError)) {
+                return false;
+            }
+            String tmpPath = targetTmp.getCanonicalPath() + File.separator;
+            ZipInputStream zipData = new ZipInputStream(zipStream);
+            ZipEntry subFile;
+            while ((subFile = zipData.getNextEntry()) != null) {
+                newFile_name = subFile.getName();
+                File newFile = new File(targetTmp, newFile_name);
+                if (!newFile.getCanonicalPath().startsWith(tmpPath)) {
+                    throw new IOException("Entry is outside the target directory");
+                }
+
+                long now = SystemClock.elapsedRealtime();
+                if (now - lastProgressMs >= FILE_PROGRESS_INTERVAL_MS) {
+                    lastProgressMs = now;
+                    progress.Callback(newFile_name);
+                }
+
+                if (subFile.isDirectory()) {
+                    if (!mkdirs(newFile, logError)) {
+                        return false;
+                    }
+                    continue;
+                }
+                if (!mkdirs(Objects.requireNonNull(newFile.getParentFile()), logError)) {
+                    return false;
+                }
+                try (OutputStream to = new FileOutputStream(newFile)) {
+                    long written = 0;
+                    int n;
+                    while ((n = zipData.read(buffer)) > 0) {
+                        to.write(buffer, 0, n);
+                        written += n;
+                    }
+                    countWritten(written);
+                }
+            }
+            unzipped = true;
+        }
+        catch (IOException | SecurityException e) {
+            logError.Callback(SEVERE, String.format(getAppContext()
+                            .getString(R.string.error_unzip_single_file_with_exception),
+                    newFile_name, e.getLocalizedMessage()));
+        }
+        finally {
+            if (!unzipped && targetTmp.exists()) {
+                deleteTree(targetTmp, logError);
+            }
+        }
+        return unzipped;
+    }
+
+    // Install a zipped book from a stream as toDir: unzipped (see unzipStream) into a temp
+    // directory beside it, inner zips expanded, and renamed into place only if there's some
+    // audio in it (the same test buildCandidateList applies). Whatever happens, nothing is
+    // left behind in the temp directory. Can log errors.
+    static boolean installStream(@NonNull InputStream zipStream, @NonNull File toDir,
+                                 StringCallback progress, ErrorCallback logError) {
+        File toTmp = new File(toDir.getParentFile(), toDir.getName() + UnzipTmpName);
+        if (!unzipStream(zipStream, toTmp, progress, logError)) {
+            return false;
+        }
+
+        boolean installed = false;
+        try {
+            // Just in case there are any inner zips that we unpacked.
+            if (!expandInnerZips(toTmp, progress, logError)) {
+                return false;
+            }
+            if (findFileMatching(toTmp, FilesystemUtil::isAudioPath) == null) {
+                logError.Callback(SEVERE, String.format(getAppContext()
+                                .getString(R.string.error_stream_not_a_book), toDir.getName()));
+                return false;
+            }
+            if (!renameTo(toTmp, toDir, logError)) {
+                return false;
+            }
+            installed = true;
+        }
+        finally {
+            if (!installed && toTmp.exists()) {
+                deleteTree(toTmp, logError);
+            }
+        }
+        return true;
+    }
+
     private static boolean innerUnzipAll(@NonNull ZipFile zipData, File targetTmp,
                                          StringCallback progress, ErrorCallback logError) {
         /*
@@ -172,12 +315,16 @@ public class FileUtilities {
            so any book will get cleaned up. (And probably we don't want to do that for
            non-books anyway.)
          */
+        long startMs = SystemClock.elapsedRealtime();
+
+        // Directories first, here, so the workers never race to make them.
+        List<ZipEntry> fileEntries = new ArrayList<>();
+        long totalBytes = 0;
         Enumeration<? extends ZipEntry> entryList = zipData.entries();
         while (entryList.hasMoreElements()) {
             ZipEntry subFile = entryList.nextElement();
             String newFile_name = subFile.getName();
             File newFile = new File(targetTmp, newFile_name);
-            progress.Callback(newFile_name);
             if (subFile.isDirectory()) {
                 if (!mkdirs(newFile, logError)) {
                     return false;
@@ -195,93 +342,156 @@ public class FileUtilities {
                 if (!mkdirs(targetTmpDir, logError)) {
                     return false;
                 }
-                try (BufferedInputStream from = new BufferedInputStream(zipData.getInputStream(subFile));
-                     OutputStream to = new FileOutputStream(newFile))
-                {
-                    IOUtils.copy(from, to);
-                }
-                catch (IOException e) {
-                    logError.Callback(SEVERE, String.format(getAppContext()
-                                    .getString(R.string.error_unzip_single_file_with_exception),
-                            newFile_name, e.getLocalizedMessage()));
-                    return false;
-                }
-                catch (SecurityException e) {
-                    logError.Callback(SEVERE, String.format(getAppContext()
-                                    .getString(R.string.error_unzip_single_file_with_exception),
-                            newFile_name, e.getLocalizedMessage()));
-                    return false;
-                }
+                fileEntries.add(subFile);
+                totalBytes += Math.max(0, subFile.getSize());
             }
         }
+
+        // Then the files, a few at a time: entries are independent, and while one is
+        // inflating another can be writing.
+        List<Callable<String>> tasks = new ArrayList<>();
+        for (ZipEntry subFile : fileEntries) {
+            tasks.add(() -> {
+                try {
+                    extractEntry(zipData, subFile, new File(targetTmp, subFile.getName()));
+                } catch (IOException | SecurityException e) {
+                    throw new FileTaskException(subFile.getName(), e);
+                }
+                return subFile.getName();
+            });
+        }
+        if (!runFileTasks(tasks, R.string.error_unzip_single_file_with_exception, progress, logError)) {
+            return false;
+        }
+
+        long elapsedMs = Math.max(1, SystemClock.elapsedRealtime() - startMs);
+        CrashWrapper.log(TAG, "Unzipped " + fileEntries.size() + " files, " + totalBytes + " bytes in "
+                + elapsedMs + "ms (" + (totalBytes / 1024 * 1000 / elapsedMs) + " KB/s)");
         return true;
     }
 
-    public static File findZipFileMatching(@NonNull File zipFile, FileFilter filter) {
-        String baseName = zipFile.getName();
-        int extensionPos = baseName.lastIndexOf('.');
-        if (extensionPos > 0) {
-            baseName = baseName.substring(0, extensionPos);
+    // One entry, through a large buffer, into a file allocated to its final size up front
+    // where the filesystem can really do that.
+    private static void extractEntry(@NonNull ZipFile zipData, @NonNull ZipEntry entry,
+                                     @NonNull File target) throws IOException {
+        byte[] buffer = FILE_BUFFER.get();
+        try (InputStream from = zipData.getInputStream(entry);
+             FileOutputStream to = new FileOutputStream(target))
+        {
+            boolean allocated = entry.getSize() > 0
+                    && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                    && API21.fallocate(to.getFD(), entry.getSize());
+            long written = 0;
+            int n;
+            while ((n = from.read(buffer)) > 0) {
+                to.write(buffer, 0, n);
+                written += n;
+            }
+            countWritten(written);
+            if (allocated && written != entry.getSize()) {
+                // The size was wrong
+                to.getChannel().truncate(written);
+            }
         }
+    }
 
-        try (ZipFile fileData = new ZipFile(zipFile))
-        {
-            return innerFindZipFileMatching(baseName, fileData, filter);
+    @androidx.annotation.RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private static class API21 {
+        // Real block allocation, or nothing. (RandomAccessFile.setLength isn't that: it
+        // leaves a sparse file on ext4, and zero-fills, writing everything twice, on vfat.)
+        static boolean fallocate(FileDescriptor fd, long length) {
+            try {
+                android.system.Os.posix_fallocate(fd, 0, length);
+                return true;
+            } catch (android.system.ErrnoException e) {
+                // Typically EOPNOTSUPP: the filesystem can't.
+                return false;
+            }
         }
-        catch (IOException e) {
-            // ignore
-            CrashWrapper.recordException(e);
+    }
+
+    private static class FileTaskException extends Exception {
+        final String name;
+
+        FileTaskException(String name, Throwable cause) {
+            super(cause);
+            this.name = name;
         }
-        return null;
     }
 
-    private static File innerFindZipFileMatching(String tmpdirName, @NonNull ZipFile inputData, FileFilter filter) {
+    // Run file tasks (each returning the name of what it did) a few at a time. The pool is
+    // private: the caller may itself be on a shared executor lane, and waiting on that same
+    // lane could deadlock. Progress (a toast, for the user) is throttled; the files fly by
+    // too fast to read. The first failure is reported using errorFormat (name, exception
+    // text) and stops the rest.
+    private static boolean runFileTasks(@NonNull List<Callable<String>> tasks, @StringRes int errorFormat,
+                                        StringCallback progress, ErrorCallback logError) {
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(FILE_THREADS_MAX, Runtime.getRuntime().availableProcessors())));
+        CompletionService<String> completions = new ExecutorCompletionService<>(pool);
         try {
-            Enumeration<? extends ZipEntry> entryList = inputData.entries();
+            for (Callable<String> task : tasks) {
+                completions.submit(task);
+            }
+
+            long lastProgressMs = 0;
+            for (int i = 0; i < tasks.size(); i++) {
+                String name;
+                try {
+                    name = completions.take().get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    String failedName = cause instanceof FileTaskException
+                            ? ((FileTaskException) cause).name : "";
+                    Throwable reason = cause != null && cause.getCause() != null ? cause.getCause() : cause;
+                    logError.Callback(SEVERE, String.format(getAppContext().getString(errorFormat),
+                            failedName, reason == null ? "" : reason.getLocalizedMessage()));
+                    return false;
+                }
+                long now = SystemClock.elapsedRealtime();
+                if (now - lastProgressMs >= FILE_PROGRESS_INTERVAL_MS || i == tasks.size() - 1) {
+                    lastProgressMs = now;
+                    progress.Callback(name);
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        finally {
+            pool.shutdownNow();
+            try {
+                // Nothing may still be writing once we return.
+                pool.awaitTermination(FILE_SHUTDOWN_WAIT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return true;
+    }
+
+    // The result names the entry as if the zip were a directory (book.zip/dir/ch01.mp3);
+    // nothing is extracted. See model.ZipMetadataProbe for reading from it.
+    public static File findZipFileMatching(@NonNull File zipFile, FileFilter filter) {
+        try (ZipFile fileData = new ZipFile(zipFile))
+        {
+            Enumeration<? extends ZipEntry> entryList = fileData.entries();
             while (entryList.hasMoreElements()) {
                 ZipEntry entry = entryList.nextElement();
-                String name = entry.getName();
-
-                if (filter.filterFunc(name)) {
-                    // Some zippers put in a partial path name as the filename; for this,
-                    // just strip that out.
-                    File longName = new File("", name);
-                    name = longName.getName();
-
-                    // Make a copy of the data file in <cacheDir>/basename(zipFile)/name
-                    // We use the source name to make it unique (so we don't collide when 2 books both
-                    // have a "Book.opf", e.g.)
-                    File cache = getAppContext().getCacheDir();
-                    File tmpDir = new File(cache, tmpdirName);
-                    if (tmpDir.exists()) {
-                        // Just in case
-                        deleteTree(tmpDir, (a,b)->{});
-                    }
-                    if (!tmpDir.mkdirs()) {
-                        return null;
-                    }
-                    File targetFile = new File(tmpDir, name);
-                    try (BufferedInputStream from = new BufferedInputStream(inputData.getInputStream(entry));
-                         OutputStream to = new FileOutputStream(targetFile))
-                    {
-                        IOUtils.copy(from, to);
-                    }
-                    // files closed by try-with-resources
-                    return targetFile;
+                if (!entry.isDirectory() && filter.filterFunc(entry.getName())) {
+                    return new File(zipFile, entry.getName());
                 }
                 /*
                    Nested zip files are possible, but we haven't seen one yet for audiobooks.
-                   Big performance concern here: we'd either have to extract the inner zip
-                   as a new file or use a zip stream to do this. Zip streams are VERY slow compared
-                   to files, but if the inner zip is big, we hit space issues.
                    For picking individual files, we'll assume we won't need to deal with that.
                  */
             }
         }
         catch (IOException e) {
             // ignore
+            CrashWrapper.recordException(e);
         }
-
         return null;
     }
 
@@ -322,7 +532,43 @@ public class FileUtilities {
         return false;
     }
 
-    static boolean atomicTreeCopy(File from, @NonNull File to, StringCallback progress, ErrorCallback logError) {
+    // The total size of a zip's contents once expanded, from the central directory alone.
+    static long zipExpandedSize(@NonNull File zipFile) {
+        long total = 0;
+        try (ZipFile zipData = new ZipFile(zipFile)) {
+            Enumeration<? extends ZipEntry> entryList = zipData.entries();
+            while (entryList.hasMoreElements()) {
+                ZipEntry entry = entryList.nextElement();
+                // The size is always in the central directory, but be safe.
+                total += entry.getSize() >= 0 ? entry.getSize() : Math.max(0, entry.getCompressedSize());
+            }
+        } catch (IOException e) {
+            // Then it'll fail (and be reported) when unzipped; the file size is a guess.
+            return zipFile.length();
+        }
+        return total;
+    }
+
+    // The total size of the files in a tree (or of a single file).
+    static long treeSize(@NonNull File tree) {
+        if (!tree.isDirectory()) {
+            return tree.length();
+        }
+        long total = 0;
+        File[] files = tree.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                total += treeSize(f);
+            }
+        }
+        return total;
+    }
+
+    // Copy a tree into place via a temp directory, renamed only on success.
+    // If verify, each copy is read back and compared with its original (see copyFile).
+    // The throughput is logged as INFO.
+    static boolean atomicTreeCopy(File from, @NonNull File to, boolean verify,
+                                  StringCallback progress, ErrorCallback logError) {
         // Get a temp directory and make sure it doesn't exist. (That's "free" housekeeping
         // if previously something had dong wrong.)
         File targetParent = to.getParentFile();
@@ -331,16 +577,42 @@ public class FileUtilities {
             deleteTree(targetTmp, logError);
         }
 
-        boolean result = treeCopy(from, targetTmp, progress, logError);
+        long startMs = SystemClock.elapsedRealtime();
+        List<File[]> fileCopies = new ArrayList<>();
+        if (!treeCopyDirs(from, targetTmp, fileCopies, logError)) {
+            return false;
+        }
+
+        AtomicLong totalBytes = new AtomicLong();
+        List<Callable<String>> tasks = new ArrayList<>();
+        for (File[] copy : fileCopies) {
+            tasks.add(() -> {
+                try {
+                    totalBytes.addAndGet(copyFile(copy[0], copy[1], verify));
+                } catch (IOException | SecurityException e) {
+                    throw new FileTaskException(copy[0].getPath(), e);
+                }
+                return copy[0].getName();
+            });
+        }
+        boolean result = runFileTasks(tasks, R.string.error_copy_single_failed, progress, logError);
 
         if (result) {
+            long elapsedMs = Math.max(1, SystemClock.elapsedRealtime() - startMs);
+            logError.Callback(Provisioning.Severity.INFO, String.format(getAppContext()
+                            .getString(R.string.info_copy_throughput),
+                    fileCopies.size(),
+                    Formatter.formatShortFileSize(getAppContext(), totalBytes.get()),
+                    elapsedMs / 1000.0,
+                    Formatter.formatShortFileSize(getAppContext(), totalBytes.get() * 1000 / elapsedMs)));
             renameTo(targetTmp, to, logError);
         }
         return result;
     }
 
-    // Copy a tree; return true on success, error description is posted
-    private static boolean treeCopy(@NonNull File from, File to, StringCallback progress, ErrorCallback logError) {
+    // Make the directories of a tree copy, collecting the files to be copied as {from, to}
+    private static boolean treeCopyDirs(@NonNull File from, File to, List<File[]> fileCopies,
+                                        ErrorCallback logError) {
         if (!from.exists()) {
             throw new RuntimeException("Attempt to copy nonexistent directory");
         }
@@ -359,38 +631,64 @@ public class FileUtilities {
             File f = new File(from, file);
             File t = new File(to, file);
             if (f.isDirectory()) {
-                if (!mkdirs(t, logError)) {
-                    logError.Callback(SEVERE, String.format(getAppContext()
-                            .getString(R.string.error_could_not_create_books), t.getPath()));
-                    return false;
-                }
-                if (!treeCopy(f,t,progress, logError)) {
+                if (!treeCopyDirs(f, t, fileCopies, logError)) {
                     return false;
                 }
             }
             else {
-                progress.Callback(file);
-                try(InputStream fs = new FileInputStream(f);
-                    OutputStream ts = new FileOutputStream(t)) {
-                    IOUtils.copy(fs, ts);
-                }
-                catch (IOException e) {
-                    logError.Callback(SEVERE, String.format(getAppContext()
-                        .getString(R.string.error_copy_single_failed), from.getPath(),
-                        e.getLocalizedMessage()));
-                    return false;
-                }
-                catch (SecurityException e) {
-                    logError.Callback(SEVERE, String.format(getAppContext()
-                                    .getString(R.string.error_copy_single_failed), from.getPath(),
-                            e.getLocalizedMessage()));
-                    return false;
-                }
+                fileCopies.add(new File[] {f, t});
             }
         }
         return true;
     }
 
+    // Copy one file; returns its size. The kernel moves the bytes (transferTo).
+    // If verify, the copy is synced (so a write-back error fails it) and then both files are
+    // read back and their CRCs compared. That catches a copy that came out short or mangled;
+    // the copy's bytes may well come back from the page cache, so it says nothing about what
+    // the media will return later.
+    private static long copyFile(@NonNull File from, @NonNull File to, boolean verify) throws IOException {
+        long size;
+        try (FileInputStream fs = new FileInputStream(from);
+             FileOutputStream ts = new FileOutputStream(to)) {
+            FileChannel source = fs.getChannel();
+            FileChannel target = ts.getChannel();
+            size = source.size();
+            long done = 0;
+            while (done < size) {
+                long n = source.transferTo(done, size - done, target);
+                if (n <= 0) {
+                    break;
+                }
+                done += n;
+            }
+            countWritten(done);
+            if (done != size) {
+                throw new IOException("Copied " + done + " of " + size + " bytes");
+            }
+            if (verify) {
+                ts.getFD().sync();
+            }
+        }
+
+        if (verify && checksum(to) != checksum(from)) {
+            throw new IOException("Copy does not match original");
+        }
+        return size;
+    }
+
+    private static long checksum(@NonNull File file) throws IOException {
+        byte[] buffer = FILE_BUFFER.get();
+        CRC32 crc = new CRC32();
+        try (InputStream in = new FileInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, n);
+            }
+        }
+        return crc.getValue();
+    }
+
     // Fix filenames containing single digits to add leading zeros so it will sort correctly
     // when file names contain some sort of sequence number that isn't already with leading zeros
     // Tne number of leading zeros is determined by the number of files to be renamed.
@@ -510,7 +808,7 @@ public class FileUtilities {
         }
 
         if (isZip(parentPath.getName())) {
-            // The result will be in CacheDir
+            // The result is inside the zip, not a real file
             return findZipFileMatching(parentPath, filter);
         }
 
@@ -532,21 +830,6 @@ public class FileUtilities {
         return null;
     }
 
-    public static void removeIfTemp(@NonNull File file) {
-        File cache = getAppContext().getCacheDir();
-        String cacheName = cache.getPath();
-        if (file.getName().regionMatches(0, cacheName, 0, cacheName.length())) {
-            // It's in a directory named by the original dir name in which it was found;
-            // delete both directory and file. This should never fail, but if it does
-            // Android will clean up later, and there's nothing sensible to do about it
-            // since it has no consequence for the user.
-            //noinspection ResultOfMethodCallIgnored
-            file.delete();
-            //noinspection ResultOfMethodCallIgnored
-            Objects.requireNonNull(file.getParentFile()).delete();
-        }
-    }
-
     public interface FileFilter {
         boolean filterFunc(String name);
     }
@@ -24,25 +24,55 @@
 
 package com.donnKey.aesopPlayer.ui.provisioning;
 
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
 import com.donnKey.aesopPlayer.analytics.CrashWrapper;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.net.ftp.FTP;
 import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
 
+// Binary, passive mode ftp downloads that pick up where they left off. The data goes
+// into a hidden ".partial" file beside the target, with the server's size and
+// modification time for it kept in a ".partial.id" beside that; a broken transfer is
+// resumed (REST) a few times right away, and a later request for the same file resumes
+// too, unless the file changed on the server.
 class Ftp {
     private static final String TAG = "Ftp";
 
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int DATA_TIMEOUT_MS = 30000;
+    private static final int RETRIES_MAX = 5;
+    private static final long RETRY_BACKOFF_MS = 2000;
+    private static final long PROGRESS_INTERVAL_MS = 1000;
+    // This commons-net reads replies on a thread of its own; an interrupt while waiting for
+    // one comes out as an IOException with this message (and the interrupt cleared).
+    private static final String INTERRUPTED_READ = "Fatal thread interruption during read.";
+
+    interface Progress {
+        // total is -1 if the server didn't say.
+        void progress(long done, long total);
+    }
+
     Ftp() {
     }
 
+    @WorkerThread
     public void getFile(String server, int port, String user, String password,
-                        String fileToGet, File fileToPut) throws Exception {
+                        String fileToGet, File fileToPut, @Nullable Progress progress,
+                        @Nullable DownloadQueue.Throttle throttle) throws Exception {
         if (port == -1) {
             port = 21;
         }
@@ -53,28 +83,161 @@ class Ftp {
             password = "anonymous";
         }
 
-        FTPClient ftpClient = new FTPClient();
-        try ( OutputStream outputStream1 = new BufferedOutputStream(new FileOutputStream(fileToPut)) ){
-            ftpClient.setDataTimeout(1000);
+        String id = server + ":" + port + fileToGet;
+        // Named for what's fetched (not the unique fileToPut), so a later request finds it.
+        File partialFile = new File(fileToPut.getParentFile(), "." + new File(fileToGet).getName()
+                + "." + Integer.toHexString(id.hashCode()) + ".partial");
+        File idFile = new File(partialFile.getPath() + ".id");
+
+        int retries = 0;
+        while (true) {
+            long before = partialFile.length();
+            FTPClient ftpClient = new FTPClient();
+            try {
+                ftpClient.setDataTimeout(DATA_TIMEOUT_MS);
 
-            ftpClient.connect(server, port);
-            ftpClient.login(user, password);
-            ftpClient.enterLocalPassiveMode();
-            ftpClient.setFileType(FTP.BINARY_FILE_TYPE);
+                ftpClient.connect(server, port);
+                if (!ftpClient.login(user, password)) {
+                    throw new Exception("Ftp login failed.");
+                }
+                ftpClient.enterLocalPassiveMode();
+                ftpClient.setFileType(FTP.BINARY_FILE_TYPE);
 
-            boolean success = ftpClient.retrieveFile(fileToGet, outputStream1);
+                long total = query(ftpClient, "SIZE", fileToGet);
+                String version = total + " " + queryString(ftpClient, "MDTM", fileToGet);
+                if (!partialFile.exists() || !idFile.exists()
+                        || !version.equals(FileUtils.readFileToString(idFile).trim())) {
+                    // Nothing (valid) to resume.
+                    truncate(partialFile);
+                    FileUtils.writeStringToFile(idFile, version);
+                }
 
-            if (!success) {
-                throw new Exception("Ftp download failed for unknown reason.");
+                if (!fetch(ftpClient, fileToGet, partialFile, total, progress, throttle)) {
+                    throw new Exception("Ftp download failed: " + ftpClient.getReplyString());
+                }
+                if (total >= 0 && partialFile.length() != total) {
+                    throw new IOException("Ftp download incomplete: "
+                            + partialFile.length() + " of " + total + " bytes");
+                }
+                break;
+            } catch (IOException e) {
+                if (INTERRUPTED_READ.equals(e.getMessage())) {
+                    // Stopped, not disconnected: no retries, and the partial file stays.
+                    throw new InterruptedException(e.getMessage());
+                }
+                if (partialFile.length() > before) {
+                    // Some progress: full retries again.
+                    retries = 0;
+                }
+                if (++retries > RETRIES_MAX) {
+                    CrashWrapper.recordException(TAG, e);
+                    throw e;
+                }
+                CrashWrapper.log(TAG, "Ftp transfer interrupted (" + e.getMessage() + "); resuming");
+                Thread.sleep(RETRY_BACKOFF_MS * retries);
+            } finally {
+                if (ftpClient.isConnected()) {
+                    try {
+                        ftpClient.logout();
+                    } catch (IOException e) {
+                        // It's going away regardless.
+                    }
+                    ftpClient.disconnect();
+                }
+            }
+        }
+
+        if (!partialFile.renameTo(fileToPut)) {
+            FileUtils.copyFile(partialFile, fileToPut);
+            //noinspection ResultOfMethodCallIgnored
+            partialFile.delete();
+        }
+        //noinspection ResultOfMethodCallIgnored
+        idFile.delete();
+    }
+
+    // Append the rest of the file to partialFile, from where it ends now. False if the server
+    // won't send it.
+    private boolean fetch(@NonNull FTPClient ftpClient, String fileToGet, @NonNull File partialFile,
+                          long total, @Nullable Progress progress,
+                          @Nullable DownloadQueue.Throttle throttle) throws IOException {
+        long offset = partialFile.length();
+        if (total >= 0 && offset >= total) {
+            return true;
+        }
+        if (offset > 0) {
+            ftpClient.setRestartOffset(offset);
+        }
+
+        InputStream input = ftpClient.retrieveFileStream(fileToGet);
+        if (input == null && offset > 0) {
+            // Perhaps REST isn't supported: start over.
+            CrashWrapper.log(TAG, "Ftp restart refused: " + ftpClient.getReplyString());
+            truncate(partialFile);
+            offset = 0;
+            ftpClient.setRestartOffset(0);
+            input = ftpClient.retrieveFileStream(fileToGet);
+        }
+        if (input == null) {
+            return false;
+        }
+
+        InputStream metered = throttle == null ? input : throttle.meter(input);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long lastProgressMs = 0;
+        try (OutputStream output = new FileOutputStream(partialFile, true)) {
+            int n;
+            while ((n = metered.read(buffer)) > 0) {
+                output.write(buffer, 0, n);
+                offset += n;
+                long now = SystemClock.elapsedRealtime();
+                if (progress != null && now - lastProgressMs >= PROGRESS_INTERVAL_MS) {
+                    lastProgressMs = now;
+                    progress.progress(offset, total);
+                }
             }
-        } catch (IOException e) {
-            CrashWrapper.recordException(TAG, e);
-            throw e;
         } finally {
-            if (ftpClient.isConnected()) {
-                ftpClient.logout();
-                ftpClient.disconnect();
+            input.close();
+        }
+        if (progress != null) {
+            progress.progress(offset, total);
+        }
+        if (!ftpClient.completePendingCommand()) {
+            // Typically 426: the data connection was lost. That's worth resuming, unlike
+            // a refusal to send the file at all.
+            throw new IOException("Ftp transfer failed: " + ftpClient.getReplyString().trim());
+        }
+        return true;
+    }
+
+    // The numeric answer to a command like SIZE, or -1 if there isn't one.
+    private static long query(@NonNull FTPClient ftpClient, String command, String file) {
+        try {
+            return Long.parseLong(queryString(ftpClient, command, file));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // The answer to a command like MDTM, or "" if there isn't one.
+    @NonNull
+    private static String queryString(@NonNull FTPClient ftpClient, String command, String file) {
+        try {
+            if (FTPReply.isPositiveCompletion(ftpClient.sendCommand(command, file))) {
+                String[] reply = ftpClient.getReplyString().trim().split("\\s+", 2);
+                if (reply.length == 2) {
+                    return reply[1];
+                }
             }
+        } catch (IOException e) {
+            // Just unknown.
+        }
+        return "";
+    }
+
+    private static void truncate(@NonNull File file) throws IOException {
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.setLength(0);
         }
     }
 }
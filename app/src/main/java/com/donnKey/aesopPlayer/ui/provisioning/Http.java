@@ -12,18 +12,17 @@ import android.os.Handler;
 import android.os.Looper;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
 
 import com.donnKey.aesopPlayer.analytics.CrashWrapper;
-import com.donnKey.aesopPlayer.util.AwaitResume;
+import com.donnKey.aesopPlayer.concurrency.SimpleDeferred;
+import com.donnKey.aesopPlayer.concurrency.SimpleFuture;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -32,14 +31,12 @@ import static com.donnKey.aesopPlayer.AesopPlayerApplication.getAppContext;
 //import static com.donnKey.aesopPlayer.service.DemoSamplesInstallerService.enableTlsOnAndroid4;
 
 class Http {
-    private final AwaitResume downloadCompletes = new AwaitResume();
+    private SimpleDeferred<File> downloadCompletes;
     private final static int DOWNLOAD_BUFFER_SIZE = 32768;
     private final String TAG="Http";
 
     private final DownloadManager downloadManager;
-    private String downloadedUrlString;
     private final Context appContext;
-    private String errorStatus = null;
     private Handler handler = null;
 
     final int RETRIES_MAX = 5;
@@ -54,21 +51,50 @@ class Http {
         this.downloadManager = downloadManager;
 
         if (downloadManager != null) {
-            try {
-                // This is required but one-time only, but we might be running on the same thread
-                // a previous incarnation had used, so just ignore any duplication.
-                Looper.prepare();
-            } catch (RuntimeException e) {
-                // ignore
-            }
-            handler = new Handler();
+            // Progress checks run on the main thread (as do the completion broadcasts), so
+            // nothing needs to wait on the calling thread.
+            handler = new Handler(Looper.getMainLooper());
         }
     }
 
     @WorkerThread
-    File getFile_socket(String requested, File tmpFile) throws Exception{
-        byte[] inputBuffer = new byte[DOWNLOAD_BUFFER_SIZE];
+    File getFile_socket(String requested, File tmpFile, int segments,
+                        @Nullable DownloadQueue.Throttle throttle) throws Exception{
+        // The partial file is named for the URL (not the unique tmpFile) so that a
+        // later attempt at the same URL finds it. (The hash keeps two URLs ending in
+        // the same name apart.)
+        String name = Uri.parse(requested).getLastPathSegment();
+        File partialFile = new File(tmpFile.getParentFile(),
+                "." + name + "." + Integer.toHexString(requested.hashCode()) + ".partial");
+
+        DownloadCache cache = new DownloadCache(appContext);
+        File unchanged = cache.unchangedCopy(requested);
+        if (unchanged != null) {
+            if (tmpFile.length() == 0) {
+                // (A name reserved by DownloadQueue.)
+                //noinspection ResultOfMethodCallIgnored
+                tmpFile.delete();
+            }
+            return unchanged;
+        }
+
+        try {
+            ResumableDownload download = new ResumableDownload(requested, partialFile, throttle);
+            File result = download.download(tmpFile, segments);
+            cache.put(requested, result, download.getValidator());
+            return result;
+        } catch (MalformedURLException e) {
+            throw new Exception("URL is incorrectly formed, could not parse.");
+        } catch (IOException e) {
+            CrashWrapper.recordException(TAG, e);
+            throw e;
+        }
+    }
 
+    // The body of requested, for the caller to read (and close, which also releases
+    // the connection).
+    @WorkerThread
+    InputStream openStream_socket(String requested) throws Exception {
         final URL url;
         try {
             url = new URL(requested);
@@ -76,58 +102,50 @@ class Http {
             throw new Exception("URL is incorrectly formed, could not parse.");
         }
 
+        HttpURLConnection connection;
+        connection = (HttpURLConnection)url.openConnection();
+        // See comment in RemoteAuto about TLS
+        //enableTlsOnAndroid4(connection);
+
+        // Disable gzip, apparently Java and/or Android's okhttp has problems with it
+        // (possibly https://bugs.java.com/bugdatabase/view_bug.do?bug_id=7003462).
+        connection.setRequestProperty("accept-encoding", "identity");
+
         try {
-            OutputStream output = new BufferedOutputStream(new FileOutputStream(tmpFile));
-            HttpURLConnection connection;
-            connection = (HttpURLConnection)url.openConnection();
-            // See comment in RemoteAuto about TLS
-            //enableTlsOnAndroid4(connection);
-
-            // Disable gzip, apparently Java and/or Android's okhttp has problems with it
-            // (possibly https://bugs.java.com/bugdatabase/view_bug.do?bug_id=7003462).
-            connection.setRequestProperty("accept-encoding", "identity");
-
-            InputStream input = new BufferedInputStream(connection.getInputStream());
-            int bytesRead;
-            while((bytesRead = input.read(inputBuffer, 0, inputBuffer.length)) > 0) {
-                output.write(inputBuffer, 0, bytesRead);
-            }
-            output.close();
-            connection.disconnect();
+            return new BufferedInputStream(connection.getInputStream(), DOWNLOAD_BUFFER_SIZE);
         } catch (IOException e) {
+            connection.disconnect();
             CrashWrapper.recordException(TAG, e);
             throw e;
         }
-
-        return tmpFile;
     }
 
-    @WorkerThread
-    File getFile_manager(String requested) throws Exception {
-        errorStatus = null;
-        downloadCompletes.prepare();
-        downloadedUrlString = null;
-        if (downloadUsingManager_start(requested)) {
-            downloadCompletes.await();
-            if (errorStatus != null) {
-                throw new Exception(errorStatus);
-            }
-        }
+    // The result is the downloaded file, or an exception describing the failure.
+    SimpleFuture<File> getFile_manager(String requested) {
+        downloadCompletes = new SimpleDeferred<>();
+        downloadUsingManager_start(requested);
+        return downloadCompletes;
+    }
 
+    private void downloadSucceeded(String downloadedUrlString) {
         String name = Uri.parse(downloadedUrlString).getPath();
         if (name == null) {
-            throw new Exception("Cannot parse downloaded file name");
+            downloadFailed("Cannot parse downloaded file name");
+            return;
         }
-        return new File(name);
+        downloadCompletes.setResult(new File(name));
     }
 
-    @WorkerThread
-    private boolean downloadUsingManager_start(String requested) {
+    private void downloadFailed(String errorStatus) {
+        downloadCompletes.setException(new Exception(errorStatus));
+    }
+
+    private void downloadUsingManager_start(String requested) {
         Uri uri = Uri.parse(requested);
         String downloadFileName = uri.getLastPathSegment();
         if (downloadFileName == null) {
-            errorStatus = "Target filename could not be found";
-            return false;
+            downloadFailed("Target filename could not be found");
+            return;
         }
 
         // We allow mobile data here because we can't get here if the setting prevents it.
@@ -195,10 +213,8 @@ class Http {
         retriesDone = 0;
         cancelsDone = 0;
         checkDownloadProgress(requested, lastDownload);
-        return true;
     }
 
-    @WorkerThread
     void downloadUsingManager_end(long lastDownload) {
         Cursor cursor = downloadManager.query(new DownloadManager.Query().setFilterById(lastDownload));
         if (cursor == null) {
@@ -215,8 +231,7 @@ class Http {
 
                     switch (status) {
                         case DownloadManager.STATUS_SUCCESSFUL: {
-                            downloadedUrlString = fileLocalUriString;
-                            downloadCompletes.resume();
+                            downloadSucceeded(fileLocalUriString);
                             break;
                         }
 
@@ -263,11 +278,9 @@ class Http {
                                     break;
                             }
 
-                            downloadedUrlString = null;
                             // Remove failures.  (This removes files, so not for successes.)
                             downloadManager.remove(lastDownload);
-                            errorStatus = "Error: download of " + fileUriString + " failed with download error: " + reasonText;
-                            downloadCompletes.resume();
+                            downloadFailed("Error: download of " + fileUriString + " failed with download error: " + reasonText);
                         }
                         default:
                             // nothing: ignore (not for us)
@@ -24,31 +24,50 @@
 
 package com.donnKey.aesopPlayer.ui.provisioning;
 
+import android.content.Context;
+import android.content.SharedPreferences;
+
 import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
 import androidx.core.text.HtmlCompat;
 
 import com.donnKey.aesopPlayer.AesopPlayerApplication;
 import com.donnKey.aesopPlayer.GlobalSettings;
 import com.donnKey.aesopPlayer.analytics.CrashWrapper;
 import com.sun.mail.imap.IMAPBodyPart;
+import com.sun.mail.imap.IMAPFolder;
 import com.sun.mail.imap.IMAPStore;
 import com.sun.mail.util.MailConnectException;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.Properties;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.inject.Inject;
 import javax.mail.Address;
 import javax.mail.BodyPart;
+import javax.mail.FetchProfile;
 import javax.mail.Flags;
 import javax.mail.Folder;
 import javax.mail.Message;
@@ -56,6 +75,7 @@ import javax.mail.MessagingException;
 import javax.mail.PasswordAuthentication;
 import javax.mail.Session;
 import javax.mail.Transport;
+import javax.mail.UIDFolder;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
@@ -81,6 +101,13 @@ public class Mail implements Iterable<Mail.Request> {
     static public final int MISSING_TAGS = 9;
 
     static public final String TAG = "MAIL";
+    // How often awaitNewMail() ends an IDLE, once its time is up, until that's seen.
+    private static final long IDLE_EXPIRY_REPEAT_MS = 1000;
+    // A server may drop an IDLE after 30 minutes (RFC 2177), so a long wait ends it and
+    // begins another this often.
+    private static final long IDLE_REFRESH_MS = TimeUnit.MINUTES.toMillis(29);
+    @VisibleForTesting
+    long idleRefreshMs = IDLE_REFRESH_MS;
 
     private String login;
     private String password;
@@ -94,9 +121,28 @@ public class Mail implements Iterable<Mail.Request> {
 
     private final String SMTPHostname;
     private final String IMAPHostname;
+    // -1 for the protocols' own ports.
+    private final int SMTPPort;
+    private final int IMAPPort;
+    // Both connections are TLS from the start (imaps, and smtp over ssl); only the tests,
+    // with servers of their own, turn that off.
+    private final boolean secure;
 
     IMAPStore imapStore = null;
     Message[] messages;
+
+    // Incremental reading (see loadCursor())
+    private static final String CURSOR_PREFERENCES = "MailCursor";
+    private static final String FIELD_UID_VALIDITY = "uidValidity";
+    private static final String FIELD_LAST_UID = "lastUid";
+    private static final String FIELD_RETAINED = "retained";
+    private long uidValidity;
+    private long lastUid;
+    private long highestUid;
+    private final Set<Long> retained = new HashSet<>();
+    // Processed this time, but not deleted (so to be looked at again next time).
+    private final Set<Long> nextRetained = new HashSet<>();
+    private boolean cursorRead;
     Folder inbox;
     Flags inboxFlags;
     boolean flagsSupported;
@@ -110,6 +156,24 @@ public class Mail implements Iterable<Mail.Request> {
         login = globalSettings.getMailLogin();
         password = globalSettings.getMailPassword();
         deviceName = globalSettings.getMailDeviceName().toLowerCase();
+        SMTPPort = -1;
+        IMAPPort = -1;
+        secure = true;
+    }
+
+    // Plain imap and smtp at hostname, for tests.
+    @VisibleForTesting
+    Mail(String hostname, int IMAPPort, int SMTPPort,
+         String login, String password, String deviceName) {
+        SMTPHostname = hostname;
+        IMAPHostname = hostname;
+        this.SMTPPort = SMTPPort;
+        this.IMAPPort = IMAPPort;
+        secure = false;
+
+        this.login = login;
+        this.password = password;
+        this.deviceName = deviceName.toLowerCase();
     }
 
     public int open() {
@@ -122,8 +186,12 @@ public class Mail implements Iterable<Mail.Request> {
             // Proguard/R8 gets that wrong, and the creation of receiverSession throws.
             // That's fixed in proguard-rules.pro, but if this changes to use imap (not 's')
             // proguard will need a fix as well.
-            props.put("mail.imaps.host", IMAPHostname);
-            props.put("mail.imaps.connectiontimeout", "5000");
+            String protocol = secure ? "imaps" : "imap";
+            props.put("mail." + protocol + ".host", IMAPHostname);
+            props.put("mail." + protocol + ".connectiontimeout", "5000");
+            if (IMAPPort >= 0) {
+                props.put("mail." + protocol + ".port", Integer.toString(IMAPPort));
+            }
             Session receiverSession = Session.getInstance(props,
                     new javax.mail.Authenticator() {
                         protected PasswordAuthentication getPasswordAuthentication() {
@@ -132,7 +200,7 @@ public class Mail implements Iterable<Mail.Request> {
                     });
 
             // Get the store
-            imapStore = (IMAPStore) receiverSession.getStore("imaps");
+            imapStore = (IMAPStore) receiverSession.getStore(protocol);
             imapStore.connect(login, password);
             inbox = imapStore.getFolder("INBOX");
 
@@ -159,6 +227,61 @@ public class Mail implements Iterable<Mail.Request> {
         return result;
     }
 
+    // Wait for new mail to arrive (using IMAP IDLE, on the connection open() made), for
+    // at most timeoutMs. Returns true if something arrived, false if the time ran out.
+    // Throws if the server can't IDLE or the connection is lost.
+    @WorkerThread
+    public boolean awaitNewMail(long timeoutMs) throws MessagingException {
+        if (!imapStore.hasCapability("IDLE")) {
+            throw new MessagingException("Server does not support IDLE");
+        }
+        final IMAPFolder folder = (IMAPFolder) inbox;
+
+        // Using the folder from another thread ends an IDLE; that's the timeout. It's the
+        // timer that says when time's up, and it keeps at it (in case the IDLE began just
+        // after it first ran) until we're done.
+        final AtomicBoolean expired = new AtomicBoolean();
+        Timer timer = new Timer(true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                expired.set(true);
+                try {
+                    folder.getMessageCount();
+                } catch (MessagingException e) {
+                    // The idle() below will see it too.
+                }
+            }
+        }, timeoutMs, IDLE_EXPIRY_REPEAT_MS);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    folder.getMessageCount();
+                } catch (MessagingException e) {
+                    // The idle() below will see it too.
+                }
+            }
+        }, idleRefreshMs, idleRefreshMs);
+
+        try {
+            int count = folder.getMessageCount();
+            while (!expired.get()) {
+                // Returns after the server says anything (new mail, flag changes from
+                // other devices, our own timer...).
+                folder.idle(true);
+                int newCount = folder.getMessageCount();
+                if (newCount > count) {
+                    return true;
+                }
+                count = newCount;
+            }
+            return false;
+        } finally {
+            timer.cancel();
+        }
+    }
+
     public boolean userFlagsSupported() {
         return flagsSupported;
     }
@@ -187,7 +310,70 @@ public class Mail implements Iterable<Mail.Request> {
                 andTerm = new AndTerm(andTerm, fromTerm);
             }
              */
-            messages = inbox.search(andTerm);
+
+            IMAPFolder folder = (IMAPFolder) inbox;
+            long uidValidity = folder.getUIDValidity();
+            long uidNext = folder.getUIDNext();
+            Message[] found;
+            if (loadCursor(uidValidity)) {
+                // Only what's arrived since last time, plus what we were told to look
+                // at again (run:every), checked here rather than by a search.
+                ArrayList<Message> candidates = new ArrayList<>();
+                if (uidNext < 0 || uidNext > lastUid + 1) {
+                    for (Message m : folder.getMessagesByUID(lastUid + 1, UIDFolder.LASTUID)) {
+                        // (n:* always includes the last message, even if it's older than n.)
+                        if (m != null && folder.getUID(m) > lastUid) {
+                            candidates.add(m);
+                        }
+                    }
+                }
+                if (!retained.isEmpty()) {
+                    long[] uids = new long[retained.size()];
+                    int i = 0;
+                    for (Long uid : retained) {
+                        uids[i++] = uid;
+                    }
+                    for (Message m : folder.getMessagesByUID(uids)) {
+                        if (m != null) {
+                            // (null if expunged)
+                            candidates.add(m);
+                        }
+                    }
+                }
+                found = candidates.toArray(new Message[0]);
+                prefetch(found);
+
+                ArrayList<Message> matching = new ArrayList<>();
+                for (Message m : found) {
+                    highestUid = Math.max(highestUid, folder.getUID(m));
+                    if (andTerm.match(m)) {
+                        matching.add(m);
+                    }
+                }
+                found = matching.toArray(new Message[0]);
+            }
+            else {
+                found = inbox.search(andTerm);
+                prefetch(found);
+                for (Message m : found) {
+                    highestUid = Math.max(highestUid, folder.getUID(m));
+                }
+            }
+            if (uidNext > 0) {
+                highestUid = Math.max(highestUid, uidNext - 1);
+            }
+
+            // In arrival order, as a search would have them.
+            Arrays.sort(found, (l, r) -> {
+                try {
+                    return Long.compare(folder.getUID(l), folder.getUID(r));
+                } catch (MessagingException e) {
+                    return 0;
+                }
+            });
+            messages = found;
+            this.uidValidity = uidValidity;
+            cursorRead = true;
         } catch (Exception e) {
             result = OTHER_ERROR;
             CrashWrapper.recordException(TAG, e);
@@ -196,12 +382,102 @@ public class Mail implements Iterable<Mail.Request> {
         return result;
     }
 
+    // True if nothing can have changed since the last readMail(): no new messages, and
+    // none to look at again. (Both UID numbers come with opening the folder, so this
+    // costs no round trip.)
+    public boolean nothingNew() {
+        try {
+            IMAPFolder folder = (IMAPFolder) inbox;
+            long uidNext = folder.getUIDNext();
+            return uidNext > 0 && loadCursor(folder.getUIDValidity())
+                    && retained.isEmpty() && uidNext == lastUid + 1;
+        } catch (MessagingException e) {
+            return false;
+        }
+    }
+
+    // Get what checkSeen() and the reports need in one round trip, rather than one
+    // (or more) per message. Bodies are only fetched for messages that will be processed.
+    private void prefetch(Message[] found) throws MessagingException {
+        FetchProfile profile = new FetchProfile();
+        profile.add(FetchProfile.Item.ENVELOPE);
+        profile.add(FetchProfile.Item.FLAGS);
+        profile.add(UIDFolder.FetchProfileItem.UID);
+        inbox.fetch(found, profile);
+    }
+
+    // Where the last poll of this mailbox got to: the highest UID it saw and the messages
+    // that were processed but left in place. False if there's nothing usable (first time,
+    // or the server renumbered the mailbox), and a full search is needed.
+    private boolean loadCursor(long uidValidity) {
+        lastUid = -1;
+        highestUid = -1;
+        retained.clear();
+        String data = cursorPreferences().getString(cursorKey(), null);
+        if (data == null) {
+            return false;
+        }
+        try {
+            JSONObject json = (JSONObject) new JSONTokener(data).nextValue();
+            if (json.getLong(FIELD_UID_VALIDITY) != uidValidity) {
+                return false;
+            }
+            lastUid = json.getLong(FIELD_LAST_UID);
+            JSONArray jsonRetained = json.getJSONArray(FIELD_RETAINED);
+            for (int i = 0; i < jsonRetained.length(); i++) {
+                retained.add(jsonRetained.getLong(i));
+            }
+            highestUid = lastUid;
+            return true;
+        } catch (JSONException | ClassCastException e) {
+            lastUid = -1;
+            retained.clear();
+            return false;
+        }
+    }
+
+    private void saveCursor() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put(FIELD_UID_VALIDITY, uidValidity);
+            json.put(FIELD_LAST_UID, highestUid);
+            JSONArray jsonRetained = new JSONArray();
+            for (Long uid : nextRetained) {
+                jsonRetained.put(uid.longValue());
+            }
+            json.put(FIELD_RETAINED, jsonRetained);
+        } catch (JSONException e) {
+            // Should never happen, none of the values is NaN nor Infinity.
+            return;
+        }
+        cursorPreferences().edit().putString(cursorKey(), json.toString()).apply();
+    }
+
+    private SharedPreferences cursorPreferences() {
+        return AesopPlayerApplication.getAppContext()
+                .getSharedPreferences(CURSOR_PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    // Which messages are of interest depends on the device name too.
+    @NonNull
+    private String cursorKey() {
+        return login + "@" + IMAPHostname + "/" + deviceName;
+    }
+
     public class Request {
         final Message message;
+        final long uid;
         String[] subjectTags;
         Flags messageFlags;
         Request(@NonNull Message message) {
             this.message = message;
+            long u;
+            try {
+                u = ((IMAPFolder) inbox).getUID(message);
+            } catch (MessagingException e) {
+                u = -1;
+            }
+            uid = u;
             try {
                 messageFlags = message.getFlags();
             } catch (MessagingException e) {
@@ -287,6 +563,16 @@ public class Mail implements Iterable<Mail.Request> {
         }
 
         public int checkSeen() {
+            int result = checkSeenFlags();
+            if (result == NOT_SEEN && uid >= 0) {
+                // It'll be processed; unless delete() says otherwise, it stays around.
+                // (A skipped one is deleted after its complaint is reported, as it always was.)
+                nextRetained.add(uid);
+            }
+            return result;
+        }
+
+        private int checkSeenFlags() {
             if (deviceName.isEmpty()) {
                 if (subjectTags.length == 0) {
                    return NOT_SEEN; // not previously seen
@@ -336,6 +622,7 @@ public class Mail implements Iterable<Mail.Request> {
 
         public void delete()
         {
+            nextRetained.remove(uid);
             if (!checkAllSeen()) {
                 // Not all seen, add myself
                 Flags fl = new Flags();
@@ -380,6 +667,10 @@ public class Mail implements Iterable<Mail.Request> {
     }
 
     public void close() {
+        if (cursorRead) {
+            saveCursor();
+            cursorRead = false;
+        }
         try {
             if (inbox != null) {
                 // Close, expunging deleted messages
@@ -398,7 +689,10 @@ public class Mail implements Iterable<Mail.Request> {
 
         // This is for gmail (and likely others)
         props.put("mail.smtp.host", SMTPHostname);
-        props.put("mail.smtp.ssl.enable", "true");
+        props.put("mail.smtp.ssl.enable", Boolean.toString(secure));
+        if (SMTPPort >= 0) {
+            props.put("mail.smtp.port", Integer.toString(SMTPPort));
+        }
         props.put("mail.smtp.auth", "true");
         //props.put("mail.debug", "true"); // just in case
 
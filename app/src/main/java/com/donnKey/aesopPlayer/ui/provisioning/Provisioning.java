@@ -31,19 +31,23 @@ import android.content.ServiceConnection;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.provider.MediaStore;
+import android.text.format.Formatter;
 
 import com.donnKey.aesopPlayer.AesopPlayerApplication;
 import com.donnKey.aesopPlayer.GlobalSettings;
 import com.donnKey.aesopPlayer.MediaStoreUpdateObserver;
 import com.donnKey.aesopPlayer.R;
 import com.donnKey.aesopPlayer.analytics.CrashWrapper;
+import com.donnKey.aesopPlayer.concurrency.BackgroundExecutor;
+import com.donnKey.aesopPlayer.concurrency.SimpleDeferred;
+import com.donnKey.aesopPlayer.concurrency.SimpleFuture;
 import com.donnKey.aesopPlayer.events.AudioBooksChangedEvent;
 import com.donnKey.aesopPlayer.model.AudioBook;
 import com.donnKey.aesopPlayer.model.AudioBookManager;
 import com.donnKey.aesopPlayer.service.PlaybackService;
 import com.donnKey.aesopPlayer.ui.UiUtil;
-import com.donnKey.aesopPlayer.util.AwaitResume;
 import com.donnKey.aesopPlayer.util.FilesystemUtil;
 import com.google.common.base.Preconditions;
 
@@ -58,7 +62,10 @@ import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.TimeUnit;
 
@@ -82,6 +89,7 @@ public class Provisioning implements ServiceConnection {
     @Inject @Named("AUDIOBOOKS_DIRECTORY") public String audioBooksDirectoryName;
     @Inject public AudioBookManager audioBookManager;
     @Inject public GlobalSettings globalSettings;
+    @Inject @Named("IO_EXECUTOR") public BackgroundExecutor ioExecutor;
 
     // Types used in this cache
     public enum Severity {INFO, MILD, SEVERE}
@@ -94,8 +102,9 @@ public class Provisioning implements ServiceConnection {
 
     private static final String TAG="Provisioning";
     final MediaStoreUpdateObserver mediaStoreUpdateObserver;
+    private final CandidateIndex candidateIndex = new CandidateIndex(getAppContext());
     PlaybackService playbackService;
-    final AwaitResume pendingPlayback = new AwaitResume();
+    private SimpleDeferred<PlaybackService> pendingPlayback;
 
     public Provisioning() {
         AesopPlayerApplication.getComponent().inject(this);
@@ -139,11 +148,6 @@ public class Provisioning implements ServiceConnection {
             } else {
                 bookTitle = AudioBook.computeTitle(title);
             }
-
-            // If the audio file is in the cache dir, it's extracted from a zip, and should
-            // be tossed now that we've processed it. Otherwise, it's a real file and should
-            // be left alone.
-            FileUtilities.removeIfTemp(audioPath);
         }
     }
 
@@ -272,8 +276,33 @@ public class Provisioning implements ServiceConnection {
     }
 
     // All the tasks we spun off, so we can collect them later to be sure the task
-    // is complete before proceeding.
-    final List<Thread> candidatesSubTasks = new ArrayList<>();
+    // is complete before proceeding. They run in the executor's background lane, so
+    // only a few titles (and a few zips) are being dug into at any one time.
+    final List<SimpleFuture<Candidate>> candidatesSubTasks = new ArrayList<>();
+    private static final long BOOK_DONE_INTERVAL_MS = 250;
+    private static final long CANDIDATES_TIMEOUT_MINUTES = 30;
+
+    // Titles complete on several threads at once; pass along at most one BOOK_DONE
+    // per interval so the UI isn't flooded. The caller sends a final one when all are done.
+    private static class CoalescedProgress {
+        private final Progress progress;
+        private long lastReportMs;
+
+        CoalescedProgress(Progress progress) {
+            this.progress = progress;
+        }
+
+        void bookDone(String title) {
+            synchronized (this) {
+                long now = SystemClock.elapsedRealtime();
+                if (now - lastReportMs < BOOK_DONE_INTERVAL_MS) {
+                    return;
+                }
+                lastReportMs = now;
+            }
+            progress.progress(ProgressKind.BOOK_DONE, title);
+        }
+    }
 
     @WorkerThread
     void buildCandidateList_Task(@NonNull File candidateDirectory, Progress progress) {
@@ -281,6 +310,7 @@ public class Provisioning implements ServiceConnection {
         // We call notifier several times so that there's indication of progress to
         // the user while the long operations of digging into a zip file happen.
         candidatesSubTasks.clear();
+        CoalescedProgress bookDone = new CoalescedProgress(progress);
         String[] dirList = candidateDirectory.list();
         if (dirList == null) {
             return;
@@ -288,14 +318,40 @@ public class Provisioning implements ServiceConnection {
         List<String> files = Arrays.asList(dirList);
         Collections.sort(files, String::compareToIgnoreCase);
 
+        candidateIndex.prune(candidateDirectory, new HashSet<>(files));
+
         for (String fileName : files) {
             File pathToTarget = new File(candidateDirectory, fileName);
 
-            // This might return a file in the cache dir, which should later be deleted.
-            // This can be expensive depending on the content
+            CandidateIndex.Entry known = candidateIndex.lookup(pathToTarget);
+            if (known != null) {
+                // Unchanged since we last looked: no need to dig into it again.
+                if (known.audioPath != null) {
+                    Candidate candidate = new Candidate();
+                    candidate.fill(
+                            AudioBook.filenameCleanup(fileName),
+                            pathToTarget.getPath(),
+                            known.audioPath);
+                    candidate.metadataTitle = known.metadataTitle;
+                    candidate.metadataAuthor = known.metadataAuthor;
+                    candidate.bookTitle = known.bookTitle;
+                    if (scanForDuplicateAudioBook(candidate.newDirName) != null) {
+                        candidate.collides = true;
+                    }
+                    synchronized (candidates) {
+                        candidates.add(candidate);
+                    }
+                }
+                continue;
+            }
+
+            // For a zip, this names a file inside it (nothing is extracted).
             File audioPath = FileUtilities.findFileMatching(pathToTarget, FilesystemUtil::isAudioPath);
 
-            if (audioPath != null) {
+            if (audioPath == null) {
+                candidateIndex.putNotCandidate(pathToTarget);
+            }
+            else {
                 Candidate candidate = new Candidate();
                 candidate.newDirName = AudioBook.filenameCleanup(fileName);
                 progress.progress(ProgressKind.SEND_TOAST, candidate.newDirName);
@@ -314,31 +370,50 @@ public class Provisioning implements ServiceConnection {
                 progress.progress(ProgressKind.SEND_TOAST, candidate.audioFile);
 
                 final Candidate c = candidate;
-                // Theoretically, we should throttle the number of threads, but since the number
-                // of books is small and these terminate soon enough...
-                Thread t = new Thread(()-> {
-                    // This can be very expensive
-                    c.computeDisplayTitle();
-                    progress.progress(ProgressKind.BOOK_DONE, c.bookTitle);
-                });
-                t.setPriority(Thread.MIN_PRIORITY);
-                t.start();
-                candidatesSubTasks.add(t);
+                candidatesSubTasks.add(ioExecutor.postTask(BackgroundExecutor.Priority.BACKGROUND,
+                    () -> {
+                        // This can be very expensive
+                        c.computeDisplayTitle();
+                        candidateIndex.putCandidate(pathToTarget, c);
+                        bookDone.bookDone(c.bookTitle);
+                        return c;
+                    }));
             }
         }
 
+        if (!candidatesSubTasks.isEmpty()) {
+            // The last title may have been coalesced away; make sure it's seen.
+            SimpleFuture.allOf(candidatesSubTasks).addListener(new SimpleFuture.Listener<List<Candidate>>() {
+                @Override
+                public void onResult(@NonNull List<Candidate> result) {
+                    candidateIndex.save();
+                    progress.progress(ProgressKind.BOOK_DONE, null);
+                }
+
+                @Override
+                public void onException(@NonNull Throwable t) {
+                    candidateIndex.save();
+                    progress.progress(ProgressKind.BOOK_DONE, null);
+                }
+            });
+        }
+        candidateIndex.save();
+
         // Just to be sure
         progress.progress(ProgressKind.ALL_DONE, "");
         candidatesTimestamp = candidateDirectory.lastModified();
     }
 
+    @WorkerThread
     void joinCandidatesSubTasks() {
-        for (Thread t : candidatesSubTasks) {
-            try {
-                t.join();
-            } catch (InterruptedException e) {
-                // ignore
-            }
+        if (candidatesSubTasks.isEmpty()) {
+            return;
+        }
+        try {
+            SimpleFuture.allOf(candidatesSubTasks).await(CANDIDATES_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+        } catch (Exception e) {
+            // A candidate whose title couldn't be worked out still shows up, just less nicely.
+            CrashWrapper.recordException(TAG, e);
         }
     }
 
@@ -365,32 +440,81 @@ public class Provisioning implements ServiceConnection {
     }
 
     @WorkerThread
-    void moveOneFile_Task(Provisioning.Candidate candidate,
-                          Progress progress, boolean retainBooks, boolean renameFiles) {
+    void moveOneFile_Task(Provisioning.Candidate candidate, Progress progress,
+                          boolean retainBooks, boolean renameFiles, boolean verifyCopies) {
         clearErrors();
 
         Provisioning.Candidate[] currentCandidates = new Provisioning.Candidate[1];
         currentCandidates[0] = candidate;
 
         moveAllSelected_pass1(currentCandidates, progress, retainBooks, renameFiles);
-        moveAllSelected_pass2(currentCandidates, progress, retainBooks, renameFiles);
+        moveAllSelected_pass2(currentCandidates, progress, retainBooks, renameFiles, verifyCopies);
 
         progress.progress(ProgressKind.ALL_DONE, null);
     }
 
     @WorkerThread
-    void moveAllSelected_Task(Progress progress, boolean retainBooks, boolean renameFiles) {
+    void moveAllSelected_Task(Progress progress, boolean retainBooks, boolean renameFiles,
+                              boolean verifyCopies) {
         clearErrors();
 
         final Provisioning.Candidate[] currentCandidates
                 = candidates.toArray(new Provisioning.Candidate[0]);
 
         moveAllSelected_pass1(currentCandidates, progress, retainBooks, renameFiles);
-        moveAllSelected_pass2(currentCandidates, progress, retainBooks, renameFiles);
+        moveAllSelected_pass2(currentCandidates, progress, retainBooks, renameFiles, verifyCopies);
 
         progress.progress(ProgressKind.ALL_DONE, null);
     }
 
+    // Install a zipped book straight from a stream (e.g. a download), with no copy of the
+    // zip kept anywhere, into the first AudioBooks directory that's writable and not nearly full.
+    @SuppressLint("UsableSpace")
+    @WorkerThread
+    boolean installStream_Task(@NonNull InputStream zipStream, @NonNull String newDirName,
+                               Progress progress, boolean renameFiles) {
+        clearErrors();
+
+        String duplicate = scanForDuplicateAudioBook(newDirName);
+        if (duplicate != null) {
+            logResult(Severity.SEVERE, String.format(getAppContext().getString(R.string.error_duplicate_book_name), duplicate));
+            return false;
+        }
+
+        File activeStorage = null;
+        for (File dir : audioBooksDirs) {
+            if (dir.exists() && dir.canWrite()
+                    && (float) dir.getUsableSpace() / (float) dir.getTotalSpace() >= 0.1f) {
+                activeStorage = dir;
+                break;
+            }
+        }
+        if (activeStorage == null) {
+            logResult(Severity.SEVERE, getAppContext().getString(R.string.error_all_file_systems_full));
+            progress.progress(ProgressKind.FILESYSTEMS_FULL, null);
+            return false;
+        }
+
+        File toDir = new File(activeStorage, newDirName);
+        progress.progress(ProgressKind.SEND_TOAST, newDirName);
+        if (!FileUtilities.installStream(zipStream, toDir,
+                (fn) -> progress.progress(ProgressKind.SEND_TOAST, fn),
+                this::logResult)) {
+            return false;
+        }
+
+        if (renameFiles) {
+            FileUtilities.treeNameFix(toDir, this::logResult);
+        }
+        logResult(Severity.INFO,
+                String.format(getAppContext().getString(R.string.info_book_installed),
+                        newDirName, toDir.getPath()));
+
+        progress.progress(ProgressKind.BOOK_DONE, newDirName);
+        progress.progress(ProgressKind.ALL_DONE, null);
+        return true;
+    }
+
     @SuppressLint("UsableSpace")
     @WorkerThread
     private void moveAllSelected_pass1(Provisioning.Candidate[] currentCandidates,
@@ -451,61 +575,122 @@ public class Provisioning implements ServiceConnection {
         }
     }
 
+    // Which AudioBooks directory each selected book goes to, decided up front from the
+    // books' installed sizes (a zip's from its central directory) and each volume's free space
+    // less a 10% reserve: biggest books first, each onto the first volume with room. Books that
+    // fit nowhere are reported now rather than failing part way through a copy.
+    // A book that will simply be renamed onto its own volume (see moveToSameFs) takes no room,
+    // so it's placed there and charged nothing.
+    @SuppressLint("UsableSpace")
+    @WorkerThread
+    private Map<Candidate, File> planInstall(@NonNull Candidate[] currentCandidates,
+                                             boolean retainBooks) {
+        List<File> volumes = new ArrayList<>();
+        List<Long> room = new ArrayList<>();
+        for (File dir : audioBooksDirs) {
+            if (!dir.exists()) {
+                logResult(Severity.INFO, String.format(getAppContext().getString(R.string.no_such_directory), dir.getPath()));
+                continue;
+            }
+            if (!dir.canWrite()) {
+                logResult(Severity.INFO, String.format(getAppContext().getString(R.string.directory_not_writable), dir.getPath()));
+                continue;
+            }
+            long available = dir.getUsableSpace() - dir.getTotalSpace() / 10;
+            if (available <= 0) {
+                logResult(Severity.MILD, String.format(getAppContext().getString(R.string.error_specific_file_system_full), dir.getPath()));
+                continue;
+            }
+            volumes.add(dir);
+            room.add(available);
+        }
+
+        List<Candidate> toPlace = new ArrayList<>();
+        Map<Candidate, Long> sizes = new HashMap<>();
+        for (Candidate candidate : currentCandidates) {
+            if (candidate.isSelected && !candidate.collides) {
+                toPlace.add(candidate);
+                sizes.put(candidate, installedSize(candidate));
+            }
+        }
+
+        Map<Candidate, File> plan = new HashMap<>();
+        List<Candidate> bySize = new ArrayList<>();
+        for (Candidate candidate : toPlace) {
+            File sameFs = retainBooks || FileUtilities.isZip(candidate.oldDirPath)
+                    ? null : sameFsAudioBooksDir(new File(candidate.oldDirPath));
+            if (sameFs != null) {
+                plan.put(candidate, sameFs);
+            }
+            else {
+                bySize.add(candidate);
+            }
+        }
+        Collections.sort(bySize, (a, b) -> Long.compare(sizes.get(b), sizes.get(a)));
+        for (Candidate candidate : bySize) {
+            long size = sizes.get(candidate);
+            for (int v = 0; v < volumes.size(); v++) {
+                if (room.get(v) >= size) {
+                    plan.put(candidate, volumes.get(v));
+                    room.set(v, room.get(v) - size);
+                    break;
+                }
+            }
+        }
+
+        // Reported in the order they'll be installed.
+        for (Candidate candidate : toPlace) {
+            File volume = plan.get(candidate);
+            String size = Formatter.formatShortFileSize(getAppContext(), sizes.get(candidate));
+            if (volume != null) {
+                logResult(Severity.INFO, String.format(getAppContext().getString(R.string.info_install_plan),
+                        candidate.bookTitle, size, volume.getPath()));
+            }
+            else {
+                logResult(Severity.SEVERE, String.format(getAppContext().getString(R.string.error_install_plan_no_room),
+                        candidate.bookTitle, size));
+            }
+        }
+        return plan;
+    }
+
+    @WorkerThread
+    private static long installedSize(@NonNull Candidate candidate) {
+        File from = new File(candidate.oldDirPath);
+        if (FileUtilities.isZip(candidate.oldDirPath)) {
+            return FileUtilities.zipExpandedSize(from);
+        }
+        return FileUtilities.treeSize(from);
+    }
+
     @SuppressLint("UsableSpace")
     @WorkerThread
     private void moveAllSelected_pass2(@NonNull final Provisioning.Candidate[] currentCandidates,
-                                       Progress progress, boolean retainBooks, boolean renameFiles) {
+                                       Progress progress, boolean retainBooks, boolean renameFiles,
+                                       boolean verifyCopies) {
         // Pass 2: These operations use space (copying or expanding archives)
         // Note: "moveToSameFs" shouldn't normally be called from here (everything got done in pass one)
         // It's a fail-soft in the case of is a nearly full file system than fails a directory move
         // because of the space needed for a name change. (The error will get reported here if
         // the retry fails.)
 
-        // Find the (possibly several) target directories.
-        List<File> dirsToUse = audioBooksDirs;
+        // Decide where everything goes before copying anything.
+        Map<Candidate, File> plan = planInstall(currentCandidates, retainBooks);
+        boolean anyUnplaced = false;
 
-        int nextDir = 0;
-        File activeStorage = null;
-
-        // the several AudioBooks directories when needed.
-        for (int candidateIndex = 0; candidateIndex < currentCandidates.length; /* void */) {
-            Candidate candidate = currentCandidates[candidateIndex];
+        for (Candidate candidate : currentCandidates) {
             if (!candidate.isSelected || candidate.collides) {
                 // So we do nothing when no items selected
-                candidateIndex++;
                 continue;
             }
 
+            File activeStorage = plan.get(candidate);
             if (activeStorage == null) {
-                if (nextDir >= dirsToUse.size()) {
-                    logResult(Severity.SEVERE, getAppContext().getString(R.string.error_all_file_systems_full));
-                    // Force the user to notice this.
-                    progress.progress(ProgressKind.FILESYSTEMS_FULL, null);
-                    break;
-                }
-                activeStorage = dirsToUse.get(nextDir++);
-                if (!activeStorage.exists()) {
-                    logResult(Severity.INFO, String.format(getAppContext().getString(R.string.no_such_directory), activeStorage.getPath()));
-                    activeStorage = null;
-                    continue;
-                }
-                if (!activeStorage.canWrite()) {
-                    logResult(Severity.INFO, String.format(getAppContext().getString(R.string.directory_not_writable), activeStorage.getPath()));
-                    // Try the next one
-                    activeStorage = null;
-                    continue;
-                }
-            }
-
-            if ((float) activeStorage.getUsableSpace() / (float) activeStorage.getTotalSpace() < 0.1f) {
-                logResult(Severity.MILD, String.format(getAppContext().getString(R.string.error_specific_file_system_full), activeStorage.getPath()));
-                // Try the next one
-                activeStorage = null;
+                // No room anywhere; already reported.
+                anyUnplaced = true;
                 continue;
             }
 
-            candidateIndex++;
-
             File fromDir = new File(candidate.oldDirPath);
             File toDir = new File(activeStorage, candidate.newDirName);
             if (toDir.exists()) {
@@ -556,7 +741,8 @@ public class Provisioning implements ServiceConnection {
                 }
                 else {
                     // Move failed (or we're just copying), copy it.
-                    if (!FileUtilities.atomicTreeCopy(fromDir, toDir,
+                    // (Checking a copy is only worth it when the original goes away.)
+                    if (!FileUtilities.atomicTreeCopy(fromDir, toDir, verifyCopies && !retainBooks,
                             (fn) -> progress.progress(ProgressKind.SEND_TOAST, fn),
                             this::logResult)) {
                         FileUtilities.deleteTree(toDir, this::logResult);
@@ -601,7 +787,7 @@ public class Provisioning implements ServiceConnection {
                     progress.progress(ProgressKind.SEND_TOAST, fromDir.getName());
                     try (InputStream fs = new FileInputStream(fromDir);
                          OutputStream ts = new FileOutputStream(toFile)) {
-                        IOUtils.copy(fs, ts);
+                        FileUtilities.countWritten(IOUtils.copyLarge(fs, ts));
                     } catch (IOException e) {
                         logResult(Severity.SEVERE, String.format(getAppContext().getString(R.string.error_could_not_copy_book_with_exception), fromDir.getPath(), e.getLocalizedMessage()));
                         FileUtilities.deleteTree(toDir, this::logResult);
@@ -627,6 +813,11 @@ public class Provisioning implements ServiceConnection {
             }
             progress.progress(ProgressKind.BOOK_DONE, fromDir.getName());
         }
+
+        if (anyUnplaced) {
+            // Force the user to notice this.
+            progress.progress(ProgressKind.FILESYSTEMS_FULL, null);
+        }
     }
 
     @WorkerThread
@@ -634,16 +825,11 @@ public class Provisioning implements ServiceConnection {
         // Try to move it - I didn't find an a-priori way to check that it would succeed.
         // Return the File of the final result (or null)
         try {
-            File toFile = null;
-            for (File f: audioBooksDirs) {
-                if (FilesystemUtil.sameFilesystemAs(f,fromDir) && f.canWrite()) {
-                    toFile = new File(f, toDirName);
-                    break;
-                }
-            }
-            if (toFile == null) {
+            File audioBooksDir = sameFsAudioBooksDir(fromDir);
+            if (audioBooksDir == null) {
                 return null;
             }
+            File toFile = new File(audioBooksDir, toDirName);
             if (toName != null) {
                 if (!FileUtilities.mkdirs(toFile, this::logResult)) {
                     return null;
@@ -659,6 +845,22 @@ public class Provisioning implements ServiceConnection {
         }
     }
 
+    // The AudioBooks directory moveToSameFs renames "from" into (same volume), or null
+    @WorkerThread
+    @Nullable
+    private File sameFsAudioBooksDir(@NonNull File from) {
+        try {
+            for (File f: audioBooksDirs) {
+                if (FilesystemUtil.sameFilesystemAs(f, from) && f.canWrite()) {
+                    return f;
+                }
+            }
+        } catch (SecurityException e) {
+            // As for moveToSameFs: it can't be renamed, so it gets copied.
+        }
+        return null;
+    }
+
     @WorkerThread
     void deleteAllSelected_Task(Progress progress, boolean archiveBooks) {
         clearErrors();
@@ -798,14 +1000,17 @@ public class Provisioning implements ServiceConnection {
         playbackService.computeDuration(book);
     }
 
-    public void assurePlaybackService() {
+    // Completes (on the main thread if a bind was needed) once the service is bound.
+    public synchronized SimpleFuture<PlaybackService> assurePlaybackService() {
         if (playbackService != null) {
-            return;
+            return SimpleFuture.completed(playbackService);
         }
-        pendingPlayback.prepare();
-        Intent serviceIntent = new Intent(getAppContext(), PlaybackService.class);
-        getAppContext().bindService(serviceIntent, this, Context.BIND_AUTO_CREATE);
-        pendingPlayback.await();
+        if (pendingPlayback == null) {
+            pendingPlayback = new SimpleDeferred<>();
+            Intent serviceIntent = new Intent(getAppContext(), PlaybackService.class);
+            getAppContext().bindService(serviceIntent, this, Context.BIND_AUTO_CREATE);
+        }
+        return pendingPlayback;
     }
 
     public void releasePlaybackService() {
@@ -821,7 +1026,14 @@ public class Provisioning implements ServiceConnection {
         CrashWrapper.log(TAG, "onServiceConnected");
         Preconditions.checkState(playbackService == null);
         playbackService = ((PlaybackService.ServiceBinder) service).getService();
-        pendingPlayback.resume();
+        SimpleDeferred<PlaybackService> pending;
+        synchronized (this) {
+            pending = pendingPlayback;
+            pendingPlayback = null;
+        }
+        if (pending != null) {
+            pending.setResult(playbackService);
+        }
     }
 
     @Override
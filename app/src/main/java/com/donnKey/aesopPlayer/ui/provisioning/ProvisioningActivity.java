@@ -317,6 +317,7 @@ public class ProvisioningActivity extends AppCompatActivity
 
     private boolean retainBooks;
     private boolean renameFiles;
+    private boolean verifyCopies;
     private Toast lastToast;
     @UiThread
     private void postMoveProgress_Inner(@NonNull Provisioning.ProgressKind kind, String message) {
@@ -365,7 +366,8 @@ public class ProvisioningActivity extends AppCompatActivity
     @WorkerThread
     private void moveAllSelected_Task() {
         if (activeCandidateFragment != null) activeCandidateFragment.stopChecker();
-        provisioning.moveAllSelected_Task(this::postMoveProgress, retainBooks, renameFiles);
+        provisioning.moveAllSelected_Task(this::postMoveProgress, retainBooks, renameFiles,
+                verifyCopies);
         if (activeCandidateFragment != null) activeCandidateFragment.startChecker();
     }
 
@@ -373,6 +375,7 @@ public class ProvisioningActivity extends AppCompatActivity
     void moveAllSelected() {
         retainBooks = globalSettings.getRetainBooks() || !provisioning.candidateDirectory.canWrite();
         renameFiles = globalSettings.getRenameFiles();
+        verifyCopies = globalSettings.getVerifyCopies();
         Thread t = new Thread(this::moveAllSelected_Task);
         t.start();
     }
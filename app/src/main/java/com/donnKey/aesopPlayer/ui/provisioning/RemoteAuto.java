@@ -27,15 +27,22 @@ package com.donnKey.aesopPlayer.ui.provisioning;
 import android.annotation.SuppressLint;
 import android.app.DownloadManager;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
+import android.os.BatteryManager;
 import android.os.Build;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.UiThread;
 import androidx.annotation.WorkerThread;
 import androidx.work.ExistingPeriodicWorkPolicy;
@@ -46,6 +53,8 @@ import com.donnKey.aesopPlayer.AesopPlayerApplication;
 import com.donnKey.aesopPlayer.BuildConfig;
 import com.donnKey.aesopPlayer.GlobalSettings;
 import com.donnKey.aesopPlayer.analytics.CrashWrapper;
+import com.donnKey.aesopPlayer.concurrency.SimpleDeferred;
+import com.donnKey.aesopPlayer.concurrency.SimpleFuture;
 import com.donnKey.aesopPlayer.events.AnAudioBookChangedEvent;
 import com.donnKey.aesopPlayer.events.AudioBooksChangedEvent;
 import com.donnKey.aesopPlayer.events.MediaStoreUpdateEvent;
@@ -54,7 +63,6 @@ import com.donnKey.aesopPlayer.model.AudioBookManager;
 import com.donnKey.aesopPlayer.ui.UiControllerBookList;
 import com.donnKey.aesopPlayer.ui.UiUtil;
 import com.donnKey.aesopPlayer.ui.settings.RemoteSettingsFragment;
-import com.donnKey.aesopPlayer.util.AwaitResume;
 import com.donnKey.aesopPlayer.util.FilesystemUtil;
 import com.google.android.gms.common.GooglePlayServicesNotAvailableException;
 import com.google.android.gms.common.GooglePlayServicesRepairableException;
@@ -68,6 +76,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -128,9 +137,19 @@ public class RemoteAuto {
     private final Context appContext;
     private final File downloadDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
     private final static String TAG="RemoteAuto";
-    private final AwaitResume booksChanged = new AwaitResume();
-    private final AwaitResume booksModifiedUpdateComplete = new AwaitResume();
-    private final AwaitResume booksPreUseUpdateComplete = new AwaitResume();
+    // Completed by the corresponding events; replaced once used.
+    private SimpleDeferred<Object> booksUpdated;
+    private SimpleDeferred<Object> aBookChanged;
+    // The script is sequential, so these waits (SimpleFuture.await()) block the WorkManager
+    // thread just as the AwaitResume waits they replaced did, for up to these limits.
+    // They are bounded: a step that makes no progress gives up rather than hanging the script.
+    private final static long BOOKS_UPDATE_TIMEOUT_MINUTES = 60;
+    private final static long BOOK_CHANGE_TIMEOUT_MINUTES = 3;
+    private final static long DOWNLOAD_TIMEOUT_MINUTES = 120;
+    // Connections used for a "segmented" socket download (if the server takes ranges);
+    // as many as are allowed to one host.
+    private final static int DOWNLOAD_SEGMENTS = DownloadQueue.PER_HOST_MAX;
+    private final static int PARALLEL_DOWNLOADS_DEFAULT = 3;
     private final static String TAG_WORK = "Remote Auto";
     private final List<String> singleRequestResultLog = new ArrayList<>();
     private final List<String> compositeResultLog = new ArrayList<>();
@@ -147,19 +166,44 @@ public class RemoteAuto {
     File currentCandidateDir;
     boolean candidatesIsAudioBooks; // above File is currently (an) AudioBooks dir.
     boolean audioBooksBeingChanged; // we're making changes to an audioBooks dir right now.
-    int unSizedBooksRemaining;
+    // In batch mode, rescans put off until something reads the book list (or the end).
+    private int rescansDeferred;
+    private boolean rescanRequested; // by this operation
+    volatile int unSizedBooksRemaining;
 
     // Per request state
     private boolean retainBooks;
     private boolean archiveBooks;
     private boolean renameFiles;
+    private boolean verifyCopies;
     private boolean allowMobileData;
     private boolean useDownloadManager;
     private boolean forceDownloadManager;
+    private int parallelDownloads;
+    private long bandwidthLimitKB; // 0 is unlimited
+    private DownloadQueue.Throttle throttle; // Counts, even when it doesn't limit
+    private boolean batchRescans;
+    private int rescansSaved;
+    // What a request cost, for the report.
+    private long bytesDownloaded; // Not counting what the current throttle has seen
+    private long bytesWrittenBefore;
+    private int bookScans;
+    private final List<String> scriptLines = new ArrayList<>();
+    private int nextScriptLine;
+    private DownloadQueue downloadQueue;
+    private ScriptPlan plan;
     private Calendar messageSentTime;
     private int lineCounter; // counts non-comment lines
     private long interval;
 
+    // Push (IMAP IDLE) state
+    private Mail pushMail;
+    private int pushFailures;
+    private long pushRetryAt;
+    private final static long PUSH_BACKOFF_MIN_MS = TimeUnit.SECONDS.toMillis(30);
+    private final static int PUSH_MAX_FAILURES = 3;
+    private final static long PUSH_FALLBACK_MS = TimeUnit.MINUTES.toMillis(30);
+
     // For debugging
     @SuppressWarnings({"CanBeFinal"})
     private boolean consoleLogReport = false;
@@ -196,7 +240,8 @@ public class RemoteAuto {
 
     }
 
-    public void pollSources(long interval) {
+    // Returns true if any request was processed.
+    public boolean pollSources(long interval) {
         this.interval  = interval;
         if (consoleLog) {
             Log.v("AESOP " + TAG
@@ -208,11 +253,11 @@ public class RemoteAuto {
             // This often occurs very early in startup because of the way periodic work is scheduled.
             // Skip the first time.
             firstTime = false;
-            return;
+            return false;
         }
 
         if (RemoteSettingsFragment.getInRemoteSettings()) {
-            return; // we'll try again when it's not busy
+            return false; // we'll try again when it's not busy
         }
         compositeResultLog.clear();
         sendResultTo.clear();
@@ -225,10 +270,94 @@ public class RemoteAuto {
             pollMail();
         }
 
+        boolean active = !compositeResultLog.isEmpty();
         sendFinalReport();
 
         downloadManager = null;
         provisioning.releasePlaybackService();
+        return active;
+    }
+
+    // Wait until it's time for the next poll. Normally that's just interval, but with
+    // push (settings:push) enabled, on WiFi and charging, an IMAP IDLE connection is kept
+    // open and new mail ends the wait within seconds. If the connection fails it's tried
+    // again after a short (growing) delay; after a few failures in a row it's back to plain
+    // polling for a while.
+    @WorkerThread
+    public void awaitNextPoll(long interval) {
+        long end = SystemClock.elapsedRealtime() + interval;
+        long left;
+        while ((left = end - SystemClock.elapsedRealtime()) > 0) {
+            if (!pushUsable()) {
+                closePushMail();
+                sleep(left);
+                return;
+            }
+            if (pushMail == null) {
+                if (SystemClock.elapsedRealtime() < pushRetryAt) {
+                    sleep(left);
+                    return;
+                }
+                pushMail = new Mail();
+                if (pushMail.open() != Mail.SUCCESS) {
+                    pushFailed(left, null);
+                    continue;
+                }
+            }
+            try {
+                if (pushMail.awaitNewMail(left)) {
+                    CrashWrapper.log(TAG, "New mail pushed");
+                }
+                pushFailures = 0;
+                return;
+            } catch (Exception e) {
+                pushFailed(left, e);
+            }
+        }
+    }
+
+    private boolean pushUsable() {
+        if (!globalSettings.getMailPollEnabled() || !globalSettings.getMailPushEnabled()
+                || !isWiFiEnabled()) {
+            return false;
+        }
+        Intent battery = appContext.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery == null) {
+            return false;
+        }
+        int status = battery.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+        return status == BatteryManager.BATTERY_STATUS_CHARGING
+                || status == BatteryManager.BATTERY_STATUS_FULL;
+    }
+
+    private void pushFailed(long left, Exception e) {
+        if (e != null) {
+            CrashWrapper.recordException(TAG, e);
+        }
+        closePushMail();
+        pushFailures++;
+        if (pushFailures >= PUSH_MAX_FAILURES) {
+            pushFailures = 0;
+            pushRetryAt = SystemClock.elapsedRealtime() + PUSH_FALLBACK_MS;
+            return;
+        }
+        sleep(Math.min(PUSH_BACKOFF_MIN_MS << (pushFailures - 1), left));
+    }
+
+    private void closePushMail() {
+        if (pushMail != null) {
+            pushMail.close();
+            pushMail = null;
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            // ignored
+        }
     }
 
     @WorkerThread
@@ -298,6 +427,11 @@ public class RemoteAuto {
                 return;
             }
 
+            if (mail.nothingNew()) {
+                // The usual case: done after just the login.
+                return;
+            }
+
             if (!mail.userFlagsSupported()) {
                 logActivityIndented("This mailbox does not support using multiple device names. See https://donnKey.github.io/aesopPlayer/provisioning.html#device-name.");
             }
@@ -383,9 +517,58 @@ public class RemoteAuto {
     }
 
 
-    @SuppressLint("DefaultLocale")
     @WorkerThread
     private void processCommands(BufferedReader commands) {
+        // The whole script is read first so that downloads can be started ahead of
+        // the lines that need them.
+        scriptLines.clear();
+        nextScriptLine = 0;
+        long startNanos = System.nanoTime();
+        bytesDownloaded = 0;
+        bytesWrittenBefore = FileUtilities.bytesWritten();
+        bookScans = 0;
+        try {
+            String line;
+            while ((line = commands.readLine()) != null) {
+                scriptLines.add(line);
+            }
+        } catch (IOException e) {
+            // Do what we got (as we always have).
+        }
+        plan = ScriptPlan.compile(scriptLines);
+
+        try {
+            processScript();
+        } finally {
+            flushDeferredRescans();
+            if (rescansSaved > 0) {
+                logActivity("Batching saved " + rescansSaved + " book list rescans.");
+            }
+            retireDownloadQueue();
+            long seconds = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos);
+            // Cached downloads weren't downloaded, and renames and moves write nothing.
+            long downloaded = bytesDownloaded + (throttle == null ? 0 : throttle.transferred());
+            long written = FileUtilities.bytesWritten() - bytesWrittenBefore;
+            logActivity(String.format(Locale.US,
+                    "Request took %dm%02ds: %dMb downloaded, %dMb written, %d book list scans.",
+                    seconds / 60, seconds % 60, downloaded / 1000000, written / 1000000,
+                    bookScans));
+        }
+    }
+
+    // Settings the queue was built with changed (or the script is over). Nothing is left
+    // queued in it at a settings line, since any non-download line ends the run of
+    // downloads that's fetched ahead; the next download builds a new one.
+    private void retireDownloadQueue() {
+        if (downloadQueue != null) {
+            downloadQueue.shutdown();
+            downloadQueue = null;
+        }
+    }
+
+    @SuppressLint("DefaultLocale")
+    @WorkerThread
+    private void processScript() {
         // Reset to the same initial state each cycle
         // Start downloads in the same place each run
         currentCandidateDir = downloadDir;
@@ -397,82 +580,43 @@ public class RemoteAuto {
         retainBooks = false;
         archiveBooks = false;
         renameFiles = true;
+        verifyCopies = false;
         allowMobileData = false;
         useDownloadManager = false;
         forceDownloadManager = false;
+        parallelDownloads = PARALLEL_DOWNLOADS_DEFAULT;
+        bandwidthLimitKB = 0;
+        throttle = new DownloadQueue.Throttle(0);
+        batchRescans = false;
+        rescansSaved = 0;
 
         logActivity("Start of request " + getDeviceTag() + " at " + processingStartTime.getTime());
 
+        if (plan.commands.isEmpty()) {
+            // Nothing to do, but perhaps something to say.
+            planRejected();
+            return;
+        }
+
         // Read and process each line of the input stream.
-        readLoop:
         while (continueProcessing) {
-            String line;
-            try {
-                line = commands.readLine();
-            } catch (IOException e) {
-                return;
-            }
-
-            if (line == null) {
+            if (nextScriptLine >= scriptLines.size()) {
                 return;
             }
-            logActivity(line);
-
-            if (line.isEmpty()) {
-                continue;
-            }
-
-            // Split on whitespace, honoring quoted strings correctly, including handling
-            // of escaped quotes. Since NUL is illegal in a filename...
-            line = line.replace("\\\"", "\000");
-            ArrayList<String> operands = new ArrayList<>(Arrays.asList(
-                    line.split("\\p{javaSpaceChar}+(?=([^\"]*\"[^\"]*\")*[^\"]*$)")));
-            if (operands.size() == 0) {
-                continue;
-            }
-            if (operands.get(0).isEmpty()) {
-                operands.remove(0);
-            }
-
-            int count;
-            for (count = 0; count < operands.size(); count++) {
-                if (operands.get(count).indexOf("//") == 0) {
-                    // a comment
-                    break;
-                }
-                operands.set(count, operands.get(count).replace("\000", "\""));
-            }
-
-            // Trim the comment words
-            while (operands.size() > count) {
-                operands.remove(operands.size() - 1);
-            }
-
-            if (operands.size() == 0) {
+            logActivity(scriptLines.get(nextScriptLine));
+            ScriptPlan.Command command = plan.at(nextScriptLine++);
+            if (command == null) {
+                // Blank or a comment. (Errors stop the script at its first command.)
                 continue;
             }
-
+            ArrayList<String> operands = command.operands();
             String op0 = operands.get(0);
-            while (op0.equals(">")) {
-                // We remove "reply quotes" ('>') to make it easier to clone old messages
-                operands.remove(0);
-                if (operands.size() == 0) {
-                    continue readLoop;
-                }
-                op0 = operands.get(0);
-            }
-
-            int pos = op0.indexOf(':');
-            if (pos < 0) {
-                logActivityIndented("Command '" + op0 + "' not recognized (missing ':')");
-                continue;
-            }
 
             provisioning.clearErrors();
             lineCounter++;
 
             if (lineCounter == 1) {
-                if (op0.equals("run:every")) {
+                if (command.key.equals("run:every")) {
                     // We don't want to log anything until we've decided to do some work,
                     // but if this stuff crashes, it'd be nice to know it was due to this.
                     runCommands(operands);
@@ -480,19 +624,27 @@ public class RemoteAuto {
                         break;
                     }
                     CrashWrapper.log(TAG, "Remote processing started");
+                    if (planRejected()) {
+                        return;
+                    }
                     continue;
                 }
                 CrashWrapper.log(TAG, "Remote processing started");
+                if (planRejected()) {
+                    return;
+                }
             }
 
-            String key = op0.substring(0, pos + 1).toLowerCase();
-            switch (key) {
-                case "file:":
-                case "ftp:":
-                case "http:":
-                case "https:": {
+            // The plan has checked the command; the handlers for a kind sort out its
+            // subcommands (the full key) themselves.
+            String key = command.key;
+            switch (command.kind) {
+                case DOWNLOAD:
+                case LOCAL_FILE: {
                     // Download and/or install a file
                     boolean downloadOnly = checkOperandsFor(operands, "downloadOnly");
+                    boolean stream = checkOperandsFor(operands, "stream");
+                    boolean segmented = checkOperandsFor(operands, "segmented");
                     String newTitle = findOperandString(operands);
                     if (newTitle != null) {
                         newTitle = checkName(newTitle);
@@ -535,6 +687,13 @@ public class RemoteAuto {
                                 break;
                             }
 
+                            if (stream) {
+                                if (streamInstall(key, op0, newTitle, downloadOnly)) {
+                                    break;
+                                }
+                                // Otherwise it's been explained; do it the usual way.
+                            }
+
                             File resultFile;
                             long ticks = System.nanoTime();
                             if (key.equals("ftp:")) {
@@ -543,10 +702,15 @@ public class RemoteAuto {
                             else if (useDownloadManager) {
                                 // Use the download manager in the hope that it's smarter and faster.
                                 resultFile = downloadUsingManager(op0);
+                                if (resultFile != null) {
+                                    // The others are counted as they're read.
+                                    bytesDownloaded += resultFile.length();
+                                }
                             }
                             else {
                                 // Use simple sockets. See above about https: on early devices.
-                                resultFile = downloadUsingSockets(op0);
+                                resultFile = downloadQueued(op0,
+                                        segmented ? DOWNLOAD_SEGMENTS : 1);
                             }
                             ticks = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - ticks);
                             if (resultFile == null) {
@@ -600,26 +764,26 @@ public class RemoteAuto {
                     }
                     break;
                 }
-                case "books:": {
+                case BOOKS: {
                     // Do inventory related commands
                     booksCommands(operands);
                     break;
                 }
-                case "downloads:": {
+                case DOWNLOADS: {
                     // Do download related commands
                     downloadsCommands(operands);
                     break;
                 }
-                case "settings:": {
+                case SETTINGS: {
                     // Do settings related commands
                     settingsCommands(operands);
                     break;
                 }
-                case "run:": {
+                case RUN: {
                     runCommands(operands);
                     break;
                 }
-                case "mailto:": {
+                case MAILTO: {
                     Mail mail = new Mail();
                     if (mail.testConnection() != Mail.SUCCESS) {
                         logActivityIndented("Mail connection not set up: mailto: ignored");
@@ -632,17 +796,53 @@ public class RemoteAuto {
                     logActivityIndented("Results will be mailed to " + to);
                     break;
                 }
-                case "exit:": {
+                case EXIT: {
                     return;
                 }
-                default: {
-                    logActivityIndented("Error: unrecognized command ignored: " + key);
+                case DRY_RUN: {
+                    // (Never gets here: planRejected() stops a dry run.)
                     break;
                 }
             }
         }
     }
 
+    // Report what's wrong with the script, or (for a dry run) what it would do. Either
+    // way, nothing more is done with it.
+    private boolean planRejected() {
+        if (!plan.errors.isEmpty()) {
+            for (String error : plan.errors) {
+                logActivityIndented(error);
+            }
+            logActivityIndented("Nothing done: correct the above and resend the request.");
+            return true;
+        }
+        if (!plan.dryRun) {
+            return false;
+        }
+
+        logActivityIndented("Dry run: nothing will be changed. The plan is:");
+        int downloads = 0;
+        int mutations = 0;
+        for (ScriptPlan.Command command : plan.commands) {
+            if (command.kind == ScriptPlan.Kind.DRY_RUN) {
+                continue;
+            }
+            logActivityIndented(String.format(Locale.US, "  %3d %-20s%s",
+                    command.line + 1, command.key, command.mutates ? " (changes books)" : ""));
+            if (command.kind == ScriptPlan.Kind.DOWNLOAD && !command.key.equals("ftp:")) {
+                downloads++;
+            }
+            if (command.mutates) {
+                mutations++;
+            }
+        }
+        logActivityIndented(downloads + " http(s) downloads (up to " + parallelDownloads
+                + " at once when consecutive); " + mutations
+                + " commands change books (their rescans can be grouped with settings:batch).");
+        return true;
+    }
+
     // Downloading stuff
     @WorkerThread
     private boolean isWiFiEnabled()
@@ -747,33 +947,99 @@ public class RemoteAuto {
         return false;
     }
 
-    private File downloadUsingSockets(String requested) {
+    private File downloadUsingSockets(String requested, int segments) {
         try {
-            Uri uri = Uri.parse(requested);
-            String downloadFile = uri.getLastPathSegment();
-            if (downloadFile == null) {
-                logActivityIndented("Could not extract file name from URL.");
+            File tmpFile = socketDownloadTarget(requested);
+            if (tmpFile == null) {
                 return null;
             }
-            File tmpFile = FilesystemUtil.createUniqueFilename(currentCandidateDir,downloadFile);
+
+            Http http = new Http(null);
+            return http.getFile_socket(requested, tmpFile, segments, throttle);
+        } catch (Exception e) {
+            logActivityIndented("Http download failed: " + e.getMessage());
+            return null;
+        }
+    }
+
+    @Nullable
+    private File socketDownloadTarget(String requested) {
+        Uri uri = Uri.parse(requested);
+        String downloadFile = uri.getLastPathSegment();
+        if (downloadFile == null) {
+            logActivityIndented("Could not extract file name from URL.");
+            return null;
+        }
+        File tmpFile = FilesystemUtil.createUniqueFilename(currentCandidateDir,downloadFile);
+        if (tmpFile == null) {
+            logActivityIndented("Too many identical download files: delete them.");
+        }
+        return tmpFile;
+    }
+
+    // A socket download, with the downloads on the lines that immediately follow this
+    // one started in parallel (or already started by an earlier line).
+    private File downloadQueued(String requested, int segments) {
+        if (parallelDownloads <= 1) {
+            return downloadUsingSockets(requested, segments);
+        }
+
+        if (downloadQueue == null) {
+            downloadQueue = new DownloadQueue(parallelDownloads, throttle);
+        }
+        if (!downloadQueue.isQueued(requested)) {
+            File tmpFile = socketDownloadTarget(requested);
             if (tmpFile == null) {
-                logActivityIndented("Too many identical download files: delete them.");
                 return null;
             }
+            downloadQueue.enqueue(requested, tmpFile, segments);
+        }
+        queueFollowingDownloads();
 
-            Http http = new Http(null);
-            return http.getFile_socket(requested, tmpFile);
+        SimpleFuture<File> download = downloadQueue.take(requested);
+        try {
+            //noinspection ConstantConditions
+            return download.await(DOWNLOAD_TIMEOUT_MINUTES, TimeUnit.MINUTES);
         } catch (Exception e) {
             logActivityIndented("Http download failed: " + e.getMessage());
             return null;
         }
     }
 
+    // Start the downloads for the run of plain http(s) lines that follows, up to
+    // parallelDownloads of them. Anything else ends the run, since it might change
+    // where or how they should be downloaded.
+    private void queueFollowingDownloads() {
+        int queued = 0;
+        for (int i = nextScriptLine; i < scriptLines.size() && queued < parallelDownloads; i++) {
+            ScriptPlan.Command command = plan.at(i);
+            if (command == null) {
+                continue;
+            }
+            ArrayList<String> operands = command.operands();
+            String op0 = operands.get(0);
+            if (command.kind != ScriptPlan.Kind.DOWNLOAD || command.key.equals("ftp:")
+                    || checkOperandsFor(operands, "stream")) {
+                return;
+            }
+            queued++;
+            if (downloadQueue.isQueued(op0)) {
+                continue;
+            }
+            File tmpFile = socketDownloadTarget(op0);
+            if (tmpFile == null) {
+                return;
+            }
+            downloadQueue.enqueue(op0, tmpFile,
+                    checkOperandsFor(operands, "segmented") ? DOWNLOAD_SEGMENTS : 1);
+        }
+    }
+
     private File downloadUsingManager(String requested) {
         // The file manager computes it's own target filenames, so we don't provide one.
         try {
             Http http = new Http(downloadManager);
-            return http.getFile_manager(requested);
+            return http.getFile_manager(requested).await(DOWNLOAD_TIMEOUT_MINUTES, TimeUnit.MINUTES);
         } catch (Exception e) {
             logActivityIndented("Http download failed: " + e.getMessage());
             return null;
@@ -809,7 +1075,17 @@ public class RemoteAuto {
 
         try {
             Ftp ftp = new Ftp();
-            ftp.getFile(host, port, username, password, downloadFile, tmpFile);
+            final int[] quartersReported = {0};
+            ftp.getFile(host, port, username, password, downloadFile, tmpFile, (done, total) -> {
+                // Just the quarter marks of big files go in the report.
+                if (total > 0) {
+                    int quarters = (int) (4 * done / total);
+                    if (quarters > quartersReported[0] && quarters < 4) {
+                        quartersReported[0] = quarters;
+                        logActivityIndented("Ftp: " + quarters * 25 + "% of " + total / 1000000 + "Mb");
+                    }
+                }
+            }, throttle);
         } catch (Exception e) {
             logActivityIndented("Ftp download failed: " + e.getMessage());
             return null;
@@ -818,6 +1094,41 @@ public class RemoteAuto {
         return tmpFile;
     }
 
+    // Install a zip straight from the http stream: nothing lands in Downloads first, so it
+    // takes half the writes and space. Returns false (having said why) if the request
+    // isn't one that can be streamed, in which case the caller should do it the usual way.
+    @WorkerThread
+    private boolean streamInstall(String key, String requested, String title, boolean downloadOnly) {
+        String downloadFile = Uri.parse(requested).getLastPathSegment();
+        if (key.equals("ftp:") || downloadOnly || downloadFile == null
+                || !FileUtilities.isZip(downloadFile)) {
+            logActivityIndented("'stream' applies only to installing zip files over http(s): ignored.");
+            return false;
+        }
+        if (retainBooks) {
+            // There'd be nothing to retain.
+            logActivityIndented("'stream' is ignored when retaining books.");
+            return false;
+        }
+
+        if (title == null) {
+            title = AudioBook.filenameCleanup(downloadFile);
+        }
+
+        bookListChanging(true);
+        long ticks = System.nanoTime();
+        try (InputStream zipStream = throttle.meter(new Http(null).openStream_socket(requested))) {
+            provisioning.installStream_Task(zipStream, title, this::installProgress, renameFiles);
+        } catch (Exception e) {
+            logActivityIndented("Http download failed: " + e.getMessage());
+        }
+        ticks = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - ticks);
+        logActivityIndented(String.format("Download and install time was: %dm%02ds", ticks/60, ticks%60));
+        postResults(requested);
+        bookListChanged();
+        return true;
+    }
+
     @WorkerThread
     private boolean install(@NonNull File fileToInstall, String title, boolean priorDownload) {
         if (!fileToInstall.exists()) {
@@ -852,7 +1163,7 @@ public class RemoteAuto {
 
         bookListChanging(true);
         boolean r = retainBooks || !Objects.requireNonNull(fileToInstall.getParentFile()).canWrite();
-        provisioning.moveOneFile_Task(candidate, this::installProgress, r, renameFiles);
+        provisioning.moveOneFile_Task(candidate, this::installProgress, r, renameFiles, verifyCopies);
 
         if (postResults(fileToInstall.getPath()) && priorDownload) {
             logActivityIndented("BE SURE to delete or finish installing this failed install." );
@@ -1192,7 +1503,7 @@ public class RemoteAuto {
 
             bookListChanging(true); // this op's effects are to the book list!
             boolean r = retainBooks || !currentCandidateDir.canWrite();
-            provisioning.moveAllSelected_Task(this::installProgress, r, renameFiles);
+            provisioning.moveAllSelected_Task(this::installProgress, r, renameFiles, verifyCopies);
             postResults(null);
             bookListChanged();
 
@@ -1495,6 +1806,15 @@ public class RemoteAuto {
                 logActivityIndented("Audio filenames will " + (renameFiles?"":"not ") + "be renumbered.");
                 break;
             }
+            case "settings:verify": {
+                String r = booleanOperand(operands);
+                if (!r.equals("error")) {
+                    verifyCopies = r.equals("true");
+                }
+                logActivityIndented("Copies of books that are moved will " + (verifyCopies?"":"not ")
+                        + "be read back and compared before the originals are deleted.");
+                break;
+            }
             case "settings:mobiledata": {
                 String r = booleanOperand(operands);
                 if (!r.equals("error")) {
@@ -1520,6 +1840,50 @@ public class RemoteAuto {
                 }
                 break;
             }
+            case "settings:parallel": {
+                long n = integerOperand(operands, parallelDownloads);
+                if (n >= 1 && n != parallelDownloads) {
+                    parallelDownloads = (int) n;
+                    retireDownloadQueue();
+                }
+                logActivityIndented("Up to " + parallelDownloads + " socket downloads will run at once.");
+                break;
+            }
+            case "settings:batch": {
+                String r = booleanOperand(operands);
+                if (!r.equals("error")) {
+                    batchRescans = r.equals("true");
+                    if (!batchRescans) {
+                        flushDeferredRescans();
+                    }
+                }
+                logActivityIndented("Book list rescans will " + (batchRescans?"":"not ") + "be batched.");
+                break;
+            }
+            case "settings:push": {
+                String r = booleanOperand(operands);
+                if (!r.equals("error") && !r.equals("query")) {
+                    // Unlike the others, this one persists.
+                    globalSettings.setMailPushEnabled(r.equals("true"));
+                }
+                logActivityIndented("New mail will " + (globalSettings.getMailPushEnabled()?"":"not ")
+                        + "be acted on immediately (when on WiFi and charging).");
+                break;
+            }
+            case "settings:bandwidth": {
+                long n = integerOperand(operands, bandwidthLimitKB);
+                if (n >= 0 && n != bandwidthLimitKB) {
+                    bandwidthLimitKB = n;
+                    // Shared by every connection of every download from here on.
+                    retireDownloadQueue();
+                    bytesDownloaded += throttle.transferred();
+                    throttle = new DownloadQueue.Throttle(n * 1024);
+                }
+                logActivityIndented(bandwidthLimitKB == 0
+                        ? "Download bandwidth is not limited."
+                        : "Download bandwidth is limited to " + bandwidthLimitKB + "KB/s.");
+                break;
+            }
             default: {
                 logActivityIndented("Unrecognized request ");
                 break;
@@ -1770,13 +2134,15 @@ public class RemoteAuto {
     @WorkerThread
     void buildBookList() {
         UiControllerBookList.suppressAnnounce();
-        booksPreUseUpdateComplete.prepare(); // Use completion event to know it's finished updating
-                                     // This is vital on first use.
-        EventBus.getDefault().post(new MediaStoreUpdateEvent());
-        booksPreUseUpdateComplete.await();
-
-        // Wait until any pending duration queries complete
-        awaitDurationQueries();
+        if (rescansDeferred > 0) {
+            // Whatever's been put off must be seen now; that rescan serves for this one too.
+            rescansSaved++;
+            flushDeferredRescans();
+        }
+        else {
+            // Wait for the update to finish. This is vital on first use.
+            awaitBooksUpdate();
+        }
         provisioning.buildBookList();
         UiControllerBookList.resumeAnnounce();
     }
@@ -1946,6 +2312,7 @@ public class RemoteAuto {
             // Thus it changes the audioBooks directory, and we must deal with that.
             UiControllerBookList.suppressAnnounce();
             audioBooksBeingChanged = true;
+            rescanRequested = true;
         }
     }
 
@@ -1956,13 +2323,30 @@ public class RemoteAuto {
         if (!audioBooksBeingChanged) {
             return;
         }
+        if (batchRescans) {
+            // One rescan later covers all of them. (Announcements stay suppressed until then.)
+            if (rescanRequested) {
+                rescansDeferred++;
+                rescanRequested = false;
+            }
+            return;
+        }
+        rescanRequested = false;
 
-        booksModifiedUpdateComplete.prepare(); // Await completion event for Books Changed
-        EventBus.getDefault().post(new MediaStoreUpdateEvent());
-        booksModifiedUpdateComplete.await();
+        awaitBooksUpdate();
+        UiControllerBookList.resumeAnnounce();
+        audioBooksBeingChanged = false;
+    }
+
+    @WorkerThread
+    private void flushDeferredRescans() {
+        if (rescansDeferred == 0) {
+            return;
+        }
+        rescansSaved += rescansDeferred - 1;
+        rescansDeferred = 0;
 
-        // Wait until any pending duration queries complete
-        awaitDurationQueries();
+        awaitBooksUpdate();
         UiControllerBookList.resumeAnnounce();
         audioBooksBeingChanged = false;
     }
@@ -2083,6 +2467,27 @@ public class RemoteAuto {
         return isTrue?"true":"false";
     }
 
+    long integerOperand(List<String>operands, long current) {
+        // Returns current for a query, -1 for an error
+        if (operands.size() == 1) {
+            return current;
+        }
+        if (operands.size() > 2) {
+            logActivityIndented( "Wrong number of operands for number");
+            return -1;
+        }
+        try {
+            long n = Long.parseLong(operands.get(1));
+            if (n >= 0) {
+                return n;
+            }
+        } catch (NumberFormatException e) {
+            // fall thru
+        }
+        logActivityIndented( "Not a number: " + operands.get(1));
+        return -1;
+    }
+
     @WorkerThread
     boolean errorIfAnyRemaining(@NonNull List<String>operands) {
         // If we haven't consumed all operands (something unexpected), it's an error: print them
@@ -2152,64 +2557,101 @@ public class RemoteAuto {
         }
     }
 
+    // Rescan the books and wait for the rescan and any duration queries it causes.
+    // This is the one place the (sequential) script waits on them.
     @WorkerThread
-    public void awaitDurationQueries() {
-        provisioning.assurePlaybackService();
-        // Wait for the duration queries.
-        List<AudioBook> audioBooks = audioBookManager.getAudioBooks();
+    private void awaitBooksUpdate() {
+        bookScans++;
+        SimpleFuture<Object> updated = nextBooksUpdate();
+        EventBus.getDefault().post(new MediaStoreUpdateEvent());
+        try {
+            updated.thenCompose(event -> durationQueriesComplete())
+                    .await(BOOKS_UPDATE_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+        } catch (Exception e) {
+            // Carry on with what we have; anything missing shows up in the book list.
+            CrashWrapper.recordException(TAG, e);
+            logActivityIndented("Book list update did not complete: " + e.getMessage());
+        }
+    }
+
+    private synchronized SimpleFuture<Object> nextBooksUpdate() {
+        if (booksUpdated == null || booksUpdated.isCancelled()) {
+            booksUpdated = new SimpleDeferred<>();
+        }
+        return booksUpdated;
+    }
+
+    private synchronized SimpleFuture<Object> nextBookChange() {
+        if (aBookChanged == null || aBookChanged.isCancelled()) {
+            aBookChanged = new SimpleDeferred<>();
+        }
+        return aBookChanged;
+    }
+
+    // Completes when all the books have durations. Nothing here blocks: each round
+    // starts some queries and continues (on the main thread) when the next book changes.
+    private SimpleFuture<Object> durationQueriesComplete() {
         // Note: this can get reset if an update to the book list should occur asynchronously.
         // (Highly unlikely, but possible if the UI or a PC connection is used at the same
         // time as a remote update.)
         unSizedBooksRemaining = Integer.MAX_VALUE;
+        Handler mainHandler = new Handler(Looper.getMainLooper());
+        return provisioning.assurePlaybackService()
+                .deliverOn(mainHandler::post)
+                .thenCompose(service -> nextDurationRound());
+    }
 
-        booksChanged.prepare();
-        while (true) {
-            int howManyLeft = 0;
-            // Keep trying until all the books have durations.
-            boolean busy = false;
-            //noinspection SynchronizationOnLocalVariableOrMethodParameter
-            synchronized (audioBooks) {
-                for (AudioBook b : audioBooks) {
-                    if (b.getTotalDurationMs() == AudioBook.UNKNOWN_POSITION) {
-                        // below is no-op if it's already happening
-                        // (N.B. we should never get to this point if there haven't
-                        // already been duration queries made in other places... this is
-                        // just to be sure.)
-
-                        howManyLeft++;
-                        if (howManyLeft <= 2) {
-                            // Throttle so a big batch doesn't choke the device.
-                            // The outer while guarantees we'll get back here.
-                            provisioning.computeBookDuration(b);
-                        }
-                        busy = true;
+    @UiThread
+    private SimpleFuture<Object> nextDurationRound() {
+        // Ask before looking, so a change that happens meanwhile isn't missed.
+        SimpleFuture<Object> changed = nextBookChange();
+        List<AudioBook> audioBooks = audioBookManager.getAudioBooks();
+        int howManyLeft = 0;
+        //noinspection SynchronizationOnLocalVariableOrMethodParameter
+        synchronized (audioBooks) {
+            for (AudioBook b : audioBooks) {
+                if (b.getTotalDurationMs() == AudioBook.UNKNOWN_POSITION) {
+                    // below is no-op if it's already happening
+                    // (N.B. we should never get to this point if there haven't
+                    // already been duration queries made in other places... this is
+                    // just to be sure.)
+
+                    howManyLeft++;
+                    if (howManyLeft <= 2) {
+                        // Throttle so a big batch doesn't choke the device.
+                        // The next round guarantees we'll get back here.
+                        provisioning.computeBookDuration(b);
                     }
                 }
-                if (howManyLeft < unSizedBooksRemaining) {
-                    // We're making progress.
-                    // Note: unSizedBooksRemaining can be reset if new books installed
-                    unSizedBooksRemaining = howManyLeft;
-                }
-                else {
-                    // No progress this time, but we got a done notification!
-                    // Shouldn't happen, but just bail out. We'll see the problem elsewhere.
-                    return;
-                }
-            }
-            if (!busy) {
-                return;
             }
-
-            booksChanged.await();
         }
+        if (howManyLeft == 0) {
+            return SimpleFuture.completed(Boolean.TRUE);
+        }
+        if (howManyLeft >= unSizedBooksRemaining) {
+            // No progress this time, but we got a done notification!
+            // Shouldn't happen, but just bail out. We'll see the problem elsewhere.
+            return SimpleFuture.completed(Boolean.FALSE);
+        }
+        // We're making progress.
+        // Note: unSizedBooksRemaining can be reset if new books installed
+        unSizedBooksRemaining = howManyLeft;
+        return changed.withTimeout(BOOK_CHANGE_TIMEOUT_MINUTES, TimeUnit.MINUTES)
+                .thenCompose(event -> nextDurationRound());
     }
 
     @SuppressWarnings({"UnusedParameters", "UnusedDeclaration"})
     @Subscribe
     public void onEvent(AudioBooksChangedEvent event) {
         // We just want to know it completed to move on
-        booksModifiedUpdateComplete.resume();
-        booksPreUseUpdateComplete.resume();
+        SimpleDeferred<Object> updated;
+        synchronized (this) {
+            updated = booksUpdated;
+            booksUpdated = null;
+        }
+        if (updated != null) {
+            updated.setResult(event);
+        }
 
         // If this event occurs while waiting for duration calculation to finish,
         // reset the count because there might be new books.
@@ -2219,6 +2661,13 @@ public class RemoteAuto {
     @SuppressWarnings({"UnusedParameters", "UnusedDeclaration"})
     @Subscribe
     public void onEvent(AnAudioBookChangedEvent event) {
-        booksChanged.resume();
+        SimpleDeferred<Object> changed;
+        synchronized (this) {
+            changed = aBookChanged;
+            aBookChanged = null;
+        }
+        if (changed != null) {
+            changed.setResult(event);
+        }
     }
 }
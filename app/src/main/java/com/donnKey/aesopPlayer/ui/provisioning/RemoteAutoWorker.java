@@ -26,6 +26,7 @@ package com.donnKey.aesopPlayer.ui.provisioning;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
+import android.provider.Settings;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.WorkerThread;
@@ -48,6 +49,8 @@ public class RemoteAutoWorker extends Worker {
     public RemoteAuto remoteAuto;
 
     private long interval = TimeUnit.MINUTES.toMillis(5);
+    // When nothing's happening, the interval stretches to at most this many times itself.
+    private static final int BACKOFF_MAX = 4;
     @SuppressWarnings({"unused", "FieldCanBeLocal"})
     private static String TAG="RemoteAutoWorker";
 
@@ -70,6 +73,9 @@ public class RemoteAutoWorker extends Worker {
     @SuppressLint("UsableSpace")
     @WorkerThread
     public void pollLoop() {
+        long offset = pollOffset();
+        int backoff = 1;
+        long lastPollAt = 0;
         while (true)
         {
             if (isStopped()) {
@@ -77,13 +83,41 @@ public class RemoteAutoWorker extends Worker {
                 return;
             }
 
-            remoteAuto.pollSources(interval);
+            // run:every needs the window it checks to cover the gap since the last poll.
+            long now = System.currentTimeMillis();
+            long window = lastPollAt == 0 ? interval : Math.max(interval, now - lastPollAt);
+            lastPollAt = now;
 
-            try {
-                Thread.sleep(interval);
-            } catch (InterruptedException e) {
-                // ignored
+            if (remoteAuto.pollSources(window)) {
+                backoff = 1;
             }
+            else if (backoff < BACKOFF_MAX) {
+                // Quiet: poll less often.
+                backoff *= 2;
+            }
+
+            // Wait until the next of this device's slots (which are spread across the
+            // period by its offset), so devices sharing a mailbox don't all poll at once.
+            long period = interval * backoff;
+            now = System.currentTimeMillis();
+            long wait = period - (now - offset) % period;
+            remoteAuto.awaitNextPoll(wait);
+        }
+    }
+
+    // Where in each period this device polls: fixed for a device (so it stays put across
+    // restarts), and different for different ones.
+    private long pollOffset() {
+        String name = globalSettings.getMailDeviceName();
+        if (name.isEmpty()) {
+            name = Settings.Secure.getString(getApplicationContext().getContentResolver(),
+                    Settings.Secure.ANDROID_ID);
+        }
+        if (name == null) {
+            return 0;
         }
+        // String.hashCode() is specified, so it's the same everywhere.
+        long offset = name.toLowerCase().hashCode() % interval;
+        return offset < 0 ? offset + interval : offset;
     }
 }
@@ -0,0 +1,445 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Donn S. Terry
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.donnKey.aesopPlayer.ui.provisioning;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import com.donnKey.aesopPlayer.analytics.CrashWrapper;
+
+import org.apache.commons.io.FileUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// An http download that survives dropped connections. The data goes into a hidden
+// ".partial" file beside the target, and what's been received so far is kept in a
+// ".partial.json" beside that, so a failed download picks up where it left off, both
+// within one attempt (a few retries, with backoff) and on a later run with the same URL.
+// Resuming uses Range with If-Range, so a file that changed on the server starts over.
+// If the server takes ranges and the length is known, the file can also be fetched as
+// several segments at once.
+class ResumableDownload {
+    private static final String TAG = "ResumableDownload";
+
+    private static final String FIELD_URL = "url";
+    private static final String FIELD_VALIDATOR = "validator";
+    private static final String FIELD_LENGTH = "length";
+    private static final String FIELD_SEGMENTS = "segments";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int READ_TIMEOUT_MS = 30000;
+    private static final int RETRIES_MAX = 5;
+    private static final long RETRY_BACKOFF_MS = 2000;
+    private static final long SAVE_INTERVAL_MS = 2000;
+    // Segments smaller than this aren't worth a connection of their own.
+    private static final long SEGMENT_MIN_BYTES = 8 * 1024 * 1024;
+
+    private final String requested;
+    private final File partialFile;
+    private final File stateFile;
+    private final @Nullable DownloadQueue.Throttle throttle;
+
+    // The server's identification of this version of the file (ETag or Last-Modified).
+    private String validator;
+    private long length = -1;
+    private final List<Segment> segments = new ArrayList<>();
+    private long lastSaveMs;
+
+    private static class Segment {
+        final long start;
+        long end; // exclusive; -1 if unknown (read to the end)
+        long done;
+
+        Segment(long start, long end, long done) {
+            this.start = start;
+            this.end = end;
+            this.done = done;
+        }
+
+        boolean complete() {
+            return end >= 0 && start + done >= end;
+        }
+    }
+
+    ResumableDownload(@NonNull String requested, @NonNull File partialFile,
+                      @Nullable DownloadQueue.Throttle throttle) {
+        this.requested = requested;
+        this.partialFile = partialFile;
+        this.stateFile = new File(partialFile.getPath() + ".json");
+        this.throttle = throttle;
+    }
+
+    // Download into target (which must not exist). segmentCount > 1 asks for a segmented
+    // download, which happens only if the server allows it.
+    @WorkerThread
+    File download(@NonNull File target, int segmentCount) throws Exception {
+        URL url = new URL(requested);
+
+        // What's there now, to compare with what we have.
+        String currentValidator = null;
+        long currentLength = -1;
+        boolean acceptsRanges = false;
+        HttpURLConnection head = open(url);
+        try {
+            head.setRequestMethod("HEAD");
+            if (head.getResponseCode() == HttpURLConnection.HTTP_OK) {
+                currentValidator = validatorOf(head);
+                currentLength = contentLength(head);
+                acceptsRanges = "bytes".equalsIgnoreCase(head.getHeaderField("Accept-Ranges"));
+            }
+        } finally {
+            head.disconnect();
+        }
+
+        if (!(currentValidator != null && loadState() && currentValidator.equals(validator)
+                && currentLength == length && partialFile.exists())) {
+            // Nothing usable to resume from.
+            startOver(currentValidator, currentLength, acceptsRanges ? segmentCount : 1);
+        }
+        else {
+            CrashWrapper.log(TAG, "Resuming download at " + received() + " of " + length + " bytes");
+        }
+
+        if (segments.size() == 1) {
+            try {
+                fetchSegment(url, segments.get(0));
+            } catch (IOException e) {
+                saveState();
+                throw e;
+            }
+        }
+        else {
+            // (Segments resumed from an earlier run may outnumber the connections allowed now.)
+            ExecutorService pool = Executors.newFixedThreadPool(
+                    Math.max(1, Math.min(segmentCount, segments.size())));
+            try {
+                List<Future<?>> running = new ArrayList<>();
+                for (Segment segment : segments) {
+                    running.add(pool.submit(() -> {
+                        fetchSegment(url, segment);
+                        return null;
+                    }));
+                }
+                for (Future<?> f : running) {
+                    f.get();
+                }
+            } catch (ExecutionException e) {
+                saveState();
+                Throwable cause = e.getCause();
+                throw cause instanceof Exception ? (Exception) cause : e;
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        if (length >= 0 && received() != length) {
+            saveState();
+            throw new IOException("Download incomplete: " + received() + " of " + length + " bytes");
+        }
+        if (!partialFile.renameTo(target)) {
+            // Different file systems? (Shouldn't be.) Copy it.
+            FileUtils.copyFile(partialFile, target);
+            //noinspection ResultOfMethodCallIgnored
+            partialFile.delete();
+        }
+        //noinspection ResultOfMethodCallIgnored
+        stateFile.delete();
+        return target;
+    }
+
+    // What identifies the version that was downloaded, if the server said.
+    @Nullable
+    String getValidator() {
+        return validator;
+    }
+
+    private void startOver(@Nullable String newValidator, long newLength, int segmentCount) throws IOException {
+        validator = newValidator;
+        length = newLength;
+        segments.clear();
+        int count = 1;
+        if (validator != null && length > 0) {
+            count = (int) Math.max(1, Math.min(segmentCount, length / SEGMENT_MIN_BYTES));
+        }
+        if (length > 0) {
+            long segmentSize = length / count;
+            for (int i = 0; i < count; i++) {
+                long start = i * segmentSize;
+                long end = i == count - 1 ? length : start + segmentSize;
+                segments.add(new Segment(start, end, 0));
+            }
+        }
+        else {
+            segments.add(new Segment(0, -1, 0));
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(partialFile, "rw")) {
+            file.setLength(Math.max(0, length));
+        }
+        saveState();
+    }
+
+    // A single-segment download, from the beginning again, of this version of the file.
+    private void restart(@Nullable String newValidator, long newLength) throws IOException {
+        Segment segment = segments.get(0);
+        synchronized (this) {
+            validator = newValidator;
+            length = newLength;
+            segment.end = newLength > 0 ? newLength : -1;
+            segment.done = 0;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(partialFile, "rw")) {
+            file.setLength(Math.max(0, newLength));
+        }
+        saveState();
+    }
+
+    // Fetch the rest of a segment, resuming after failures.
+    private void fetchSegment(@NonNull URL url, @NonNull Segment segment) throws IOException {
+        int retries = 0;
+        while (!segment.complete()) {
+            long before;
+            synchronized (this) {
+                before = segment.done;
+            }
+            try {
+                fetchOnce(url, segment);
+                if (segment.end < 0) {
+                    // Unknown length: reading to the end is completion.
+                    return;
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    if (segment.done > before) {
+                        // Some progress: full retries again.
+                        retries = 0;
+                    }
+                }
+                if (++retries > RETRIES_MAX || Thread.currentThread().isInterrupted()) {
+                    CrashWrapper.recordException(TAG, e);
+                    throw e;
+                }
+                CrashWrapper.log(TAG, "Download interrupted (" + e.getMessage() + "); resuming");
+                try {
+                    Thread.sleep(RETRY_BACKOFF_MS * retries);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void fetchOnce(@NonNull URL url, @NonNull Segment segment) throws IOException {
+        long offset;
+        synchronized (this) {
+            offset = segment.start + segment.done;
+        }
+        HttpURLConnection connection = open(url);
+        try {
+            boolean ranged = offset > 0 || segment.end >= 0 && segments.size() > 1;
+            if (ranged && validator != null) {
+                connection.setRequestProperty("Range", "bytes=" + offset + "-"
+                        + (segment.end >= 0 ? Long.toString(segment.end - 1) : ""));
+                connection.setRequestProperty("If-Range", validator);
+            }
+            int code = connection.getResponseCode();
+            if (code == HttpURLConnection.HTTP_OK) {
+                String newValidator = validatorOf(connection);
+                if (segments.size() > 1) {
+                    if (offset != 0) {
+                        throw new IOException("Server stopped honoring ranges");
+                    }
+                    if (validator != null && !validator.equals(newValidator)) {
+                        // (A later run sees the new version, and starts over.)
+                        throw new IOException("File changed on the server");
+                    }
+                }
+                else {
+                    // The whole thing (again): range refused, or the file changed since we
+                    // looked. Whatever this is, it's what we're downloading now.
+                    restart(newValidator, contentLength(connection));
+                }
+                offset = 0;
+            }
+            else if (code != HttpURLConnection.HTTP_PARTIAL) {
+                throw new IOException("Http response " + code);
+            }
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            try (InputStream input = connection.getInputStream();
+                 RandomAccessFile output = new RandomAccessFile(partialFile, "rw")) {
+                output.seek(offset);
+                int n;
+                while ((n = input.read(buffer)) > 0) {
+                    if (throttle != null) {
+                        try {
+                            throttle.acquire(n);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException();
+                        }
+                    }
+                    if (segment.end >= 0) {
+                        n = (int) Math.min(n, segment.end - offset);
+                    }
+                    output.write(buffer, 0, n);
+                    offset += n;
+                    synchronized (this) {
+                        segment.done += n;
+                    }
+                    maybeSaveState();
+                    if (segment.complete()) {
+                        break;
+                    }
+                }
+            }
+            if (segment.end >= 0 && !segment.complete()) {
+                // The connection closed early, but (as HttpURLConnection may) quietly: that's
+                // a failure like any other, retried with a backoff, and not forever.
+                throw new IOException("Connection closed at " + offset + " of " + segment.end + " bytes");
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @NonNull
+    private static HttpURLConnection open(@NonNull URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        // See Http about gzip.
+        connection.setRequestProperty("accept-encoding", "identity");
+        return connection;
+    }
+
+    @Nullable
+    private static String validatorOf(@NonNull HttpURLConnection connection) {
+        String etag = connection.getHeaderField("ETag");
+        if (etag != null && !etag.startsWith("W/")) {
+            // (Weak ETags can't be used with If-Range.)
+            return etag;
+        }
+        return connection.getHeaderField("Last-Modified");
+    }
+
+    // getContentLength() is an int, and so wrong past 2GB; getContentLengthLong() is API 24.
+    private static long contentLength(@NonNull HttpURLConnection connection) {
+        String value = connection.getHeaderField("Content-Length");
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private synchronized long received() {
+        long total = 0;
+        for (Segment segment : segments) {
+            total += segment.done;
+        }
+        return total;
+    }
+
+    private void maybeSaveState() {
+        long now = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            if (now - lastSaveMs < SAVE_INTERVAL_MS) {
+                return;
+            }
+            lastSaveMs = now;
+        }
+        saveState();
+    }
+
+    private synchronized void saveState() {
+        JSONObject state = new JSONObject();
+        try {
+            state.put(FIELD_URL, requested);
+            state.putOpt(FIELD_VALIDATOR, validator);
+            state.put(FIELD_LENGTH, length);
+            JSONArray jsonSegments = new JSONArray();
+            for (Segment segment : segments) {
+                JSONArray s = new JSONArray();
+                s.put(segment.start);
+                s.put(segment.end);
+                s.put(segment.done);
+                jsonSegments.put(s);
+            }
+            state.put(FIELD_SEGMENTS, jsonSegments);
+            FileUtils.writeStringToFile(stateFile, state.toString());
+        } catch (JSONException | IOException e) {
+            // Then a later run just starts over.
+            CrashWrapper.recordException(TAG, e);
+        }
+    }
+
+    private boolean loadState() {
+        if (!stateFile.exists()) {
+            return false;
+        }
+        try {
+            JSONObject state = (JSONObject) new JSONTokener(
+                    FileUtils.readFileToString(stateFile)).nextValue();
+            if (!requested.equals(state.getString(FIELD_URL))) {
+                return false;
+            }
+            validator = state.optString(FIELD_VALIDATOR, null);
+            length = state.getLong(FIELD_LENGTH);
+            segments.clear();
+            JSONArray jsonSegments = state.getJSONArray(FIELD_SEGMENTS);
+            for (int i = 0; i < jsonSegments.length(); i++) {
+                JSONArray s = jsonSegments.getJSONArray(i);
+                segments.add(new Segment(s.getLong(0), s.getLong(1), s.getLong(2)));
+            }
+            return !segments.isEmpty();
+        } catch (JSONException | IOException | ClassCastException e) {
+            return false;
+        }
+    }
+}
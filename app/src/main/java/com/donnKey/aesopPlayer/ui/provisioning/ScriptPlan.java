@@ -0,0 +1,223 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Donn S. Terry
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.donnKey.aesopPlayer.ui.provisioning;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// A RemoteAuto script, parsed and checked before any of it runs. A script with a
+// command that can't be recognized is rejected whole, rather than failing partway through
+// with some of its changes made. The plan also says which lines are downloads (which can
+// overlap with the ones that follow them) and which change the books (whose rescans can
+// be grouped), and with "dryrun:" anywhere, that's all that happens.
+class ScriptPlan {
+    enum Kind {DOWNLOAD, LOCAL_FILE, BOOKS, DOWNLOADS, SETTINGS, RUN, MAILTO, EXIT, DRY_RUN}
+
+    private static final Set<String> BOOKS_COMMANDS = new HashSet<>(Arrays.asList(
+            "books:books", "books:clean", "books:delete", "books:rename", "books:reset"));
+    private static final Set<String> DOWNLOADS_COMMANDS = new HashSet<>(Arrays.asList(
+            "downloads:books", "downloads:directory", "downloads:install", "downloads:delete",
+            "downloads:group", "downloads:ungroup", "downloads:rawfiles", "downloads:rawdelete"));
+    private static final Set<String> SETTINGS_COMMANDS = new HashSet<>(Arrays.asList(
+            "settings:archive", "settings:retain", "settings:rename", "settings:mobiledata",
+            "settings:manager", "settings:parallel", "settings:batch", "settings:push",
+            "settings:bandwidth", "settings:verify"));
+    private static final Set<String> RUN_COMMANDS = new HashSet<>(Arrays.asList(
+            "run:at", "run:every"));
+    // (Those that make changes to books, installed or not.)
+    private static final Set<String> MUTATING_COMMANDS = new HashSet<>(Arrays.asList(
+            "books:clean", "books:delete", "books:rename", "books:reset",
+            "downloads:install", "downloads:delete", "downloads:group", "downloads:ungroup",
+            "downloads:rawdelete"));
+
+    static class Command {
+        final int line; // index into the script
+        final Kind kind;
+        final String key; // lower case; e.g. "books:delete", or "http:" for a URL
+        private final List<String> operands;
+        final boolean mutates;
+
+        Command(int line, Kind kind, String key, List<String> operands, boolean mutates) {
+            this.line = line;
+            this.kind = kind;
+            this.key = key;
+            this.operands = operands;
+            this.mutates = mutates;
+        }
+
+        // A copy: the command handlers consume them.
+        @NonNull
+        ArrayList<String> operands() {
+            return new ArrayList<>(operands);
+        }
+    }
+
+    private final Command[] byLine;
+    final List<Command> commands = new ArrayList<>();
+    final List<String> errors = new ArrayList<>();
+    boolean dryRun;
+
+    private ScriptPlan(int lines) {
+        byLine = new Command[lines];
+    }
+
+    @NonNull
+    static ScriptPlan compile(@NonNull List<String> lines) {
+        ScriptPlan plan = new ScriptPlan(lines.size());
+        for (int i = 0; i < lines.size(); i++) {
+            ArrayList<String> operands = splitLine(lines.get(i));
+            if (operands == null) {
+                continue;
+            }
+            String op0 = operands.get(0);
+            int pos = op0.indexOf(':');
+            if (pos < 0) {
+                plan.errors.add("Line " + (i + 1) + ": command '" + op0 + "' not recognized (missing ':')");
+                continue;
+            }
+            String prefix = op0.substring(0, pos + 1).toLowerCase();
+            String key = op0.toLowerCase();
+            Kind kind;
+            Set<String> known = null;
+            switch (prefix) {
+                case "ftp:":
+                case "http:":
+                case "https:":
+                    kind = Kind.DOWNLOAD;
+                    key = prefix;
+                    break;
+                case "file:":
+                    kind = Kind.LOCAL_FILE;
+                    key = prefix;
+                    break;
+                case "books:":
+                    kind = Kind.BOOKS;
+                    known = BOOKS_COMMANDS;
+                    break;
+                case "downloads:":
+                    kind = Kind.DOWNLOADS;
+                    known = DOWNLOADS_COMMANDS;
+                    break;
+                case "settings:":
+                    kind = Kind.SETTINGS;
+                    known = SETTINGS_COMMANDS;
+                    break;
+                case "run:":
+                    kind = Kind.RUN;
+                    known = RUN_COMMANDS;
+                    break;
+                case "mailto:":
+                    kind = Kind.MAILTO;
+                    key = prefix;
+                    break;
+                case "exit:":
+                    kind = Kind.EXIT;
+                    key = prefix;
+                    break;
+                case "dryrun:":
+                    kind = Kind.DRY_RUN;
+                    plan.dryRun = true;
+                    break;
+                default:
+                    plan.errors.add("Line " + (i + 1) + ": unrecognized command " + prefix);
+                    continue;
+            }
+            if (known != null && !known.contains(key)) {
+                plan.errors.add("Line " + (i + 1) + ": unrecognized request " + key);
+                continue;
+            }
+
+            boolean mutates = MUTATING_COMMANDS.contains(key)
+                    || ((kind == Kind.DOWNLOAD || kind == Kind.LOCAL_FILE)
+                        && !hasOperand(operands, "downloadOnly"));
+            Command command = new Command(i, kind, key, operands, mutates);
+            plan.commands.add(command);
+            plan.byLine[i] = command;
+        }
+        return plan;
+    }
+
+    private static boolean hasOperand(@NonNull List<String> operands, String keyword) {
+        for (int i = 1; i < operands.size(); i++) {
+            if (operands.get(i).equalsIgnoreCase(keyword)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The command on a line of the script; null if it's blank, a comment, or an error.
+    @Nullable
+    Command at(int line) {
+        return byLine[line];
+    }
+
+    // The operands of a script line, with comments and reply quotes removed; null if
+    // there's nothing there.
+    @Nullable
+    static ArrayList<String> splitLine(@NonNull String line) {
+        if (line.isEmpty()) {
+            return null;
+        }
+
+        // Split on whitespace, honoring quoted strings correctly, including handling
+        // of escaped quotes. Since NUL is illegal in a filename...
+        line = line.replace("\\\"", "\000");
+        ArrayList<String> operands = new ArrayList<>(Arrays.asList(
+                line.split("\\p{javaSpaceChar}+(?=([^\"]*\"[^\"]*\")*[^\"]*$)")));
+        if (operands.size() == 0) {
+            return null;
+        }
+        if (operands.get(0).isEmpty()) {
+            operands.remove(0);
+        }
+
+        int count;
+        for (count = 0; count < operands.size(); count++) {
+            if (operands.get(count).indexOf("//") == 0) {
+                // a comment
+                break;
+            }
+            operands.set(count, operands.get(count).replace("\000", "\""));
+        }
+
+        // Trim the comment words
+        while (operands.size() > count) {
+            operands.remove(operands.size() - 1);
+        }
+
+        // We remove "reply quotes" ('>') to make it easier to clone old messages
+        while (operands.size() > 0 && operands.get(0).equals(">")) {
+            operands.remove(0);
+        }
+
+        return operands.size() == 0 ? null : operands;
+    }
+}
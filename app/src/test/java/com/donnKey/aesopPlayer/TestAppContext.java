@@ -1,7 +1,7 @@
 /*
  * The MIT License (MIT)
  *
- * Copyright (c) 2018-2020 Donn S. Terry
+ * Copyright (c) 2020 Donn S. Terry
  *
  * Permission is hereby granted, free of charge, to any person obtaining a copy
  * of this software and associated documentation files (the "Software"), to deal
@@ -21,41 +21,32 @@
  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
  * SOFTWARE.
  */
+package com.donnKey.aesopPlayer;
 
-package com.donnKey.aesopPlayer.util;
+import android.content.Context;
 
-import androidx.annotation.WorkerThread;
+import androidx.annotation.NonNull;
 
-import com.donnKey.aesopPlayer.analytics.CrashWrapper;
+import org.robolectric.RuntimeEnvironment;
 
-// Call prepare() before starting an asynchronous task.
-// Call await() to wait for it to finish
-// Call trigger() when the task finishes (in an event, or whatever).
-// It will handle the case of trigger() being called before
-// the await() is reached. (If the async task is very fast).
-public class AwaitResume {
-    boolean triggered;
-    synchronized public void prepare() {
-        triggered = false;
+import java.lang.reflect.Field;
+
+// AesopPlayerApplication.getAppContext() for tests. The real application isn't created
+// (see robolectric.properties), so its static context is set here, to Robolectric's.
+public class TestAppContext {
+    private TestAppContext() {
     }
 
-    @WorkerThread
-    synchronized public void await() {
-        if (triggered) {
-            triggered = false;
-            return;
-        }
+    @NonNull
+    public static Context install() {
+        Context context = RuntimeEnvironment.application;
         try {
-            this.wait();
-        } catch (Exception e) {
-            e.printStackTrace();
-            CrashWrapper.recordException(e);
+            Field field = AesopPlayerApplication.class.getDeclaredField("applicationContext");
+            field.setAccessible(true);
+            field.set(null, context);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new AssertionError("AesopPlayerApplication.applicationContext is missing", e);
         }
-    }
-
-    @WorkerThread
-    synchronized public void resume() {
-        triggered = true;
-        this.notify();
+        return context;
     }
 }
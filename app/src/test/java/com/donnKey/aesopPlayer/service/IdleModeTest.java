@@ -0,0 +1,286 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Donn S. Terry
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.donnKey.aesopPlayer.service;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorManager;
+import android.hardware.TriggerEventListener;
+import android.os.PowerManager;
+import android.preference.PreferenceManager;
+
+import androidx.annotation.NonNull;
+
+import com.donnKey.aesopPlayer.GlobalSettings;
+import com.donnKey.aesopPlayer.TestAppContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.shadow.api.Shadow;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.shadows.ShadowPowerManager;
+import org.robolectric.shadows.ShadowSensor;
+import org.robolectric.shadows.ShadowSensorManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+// Idle mode of DetectUserInterest() against a fake SensorManager: the full-rate watch gives
+// way to the best low-power trigger there is after a while, and comes back when it fires.
+@RunWith(RobolectricTestRunner.class)
+@Config(shadows = IdleModeTest.ShadowIdleSensorManager.class)
+public class IdleModeTest {
+    // A little over the detector's watch
+    private static final long WATCH_SECONDS = 31;
+
+    private Context context;
+    private ShadowIdleSensorManager sensors;
+    private Sensor accelerometer;
+    private DeviceMotionDetector detector;
+    private long timestamp;
+
+    // The stock shadow keeps one sensor of each type and has no trigger sensors. This one
+    // keeps them all (the first of a type being its default), and arms trigger sensors
+    // unless told to refuse them, as the system does with one that isn't one-shot.
+    @Implements(SensorManager.class)
+    public static class ShadowIdleSensorManager extends ShadowSensorManager {
+        private final List<Sensor> available = new ArrayList<>();
+        boolean refuseTriggers;
+        TriggerEventListener trigger;
+
+        @Override
+        public void addSensor(Sensor sensor) {
+            if (getSensorList(sensor.getType()).isEmpty()) {
+                super.addSensor(sensor);
+            }
+            available.add(sensor);
+        }
+
+        @Implementation
+        @Override
+        public List<Sensor> getSensorList(int type) {
+            List<Sensor> list = new ArrayList<>();
+            for (Sensor sensor : available) {
+                if (sensor.getType() == type) {
+                    list.add(sensor);
+                }
+            }
+            return list;
+        }
+
+        @Implementation
+        protected boolean requestTriggerSensor(TriggerEventListener listener, Sensor sensor) {
+            if (refuseTriggers) {
+                return false;
+            }
+            trigger = listener;
+            return true;
+        }
+
+        @Implementation
+        protected boolean cancelTriggerSensor(TriggerEventListener listener, Sensor sensor) {
+            trigger = null;
+            return true;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        context = TestAppContext.install();
+        sensors = Shadow.extract(context.getSystemService(Context.SENSOR_SERVICE));
+        accelerometer = ShadowSensor.newInstance(Sensor.TYPE_ACCELEROMETER);
+    }
+
+    @After
+    public void tearDown() {
+        if (detector != null) {
+            DeviceMotionDetector.resume();
+            detector.disable();
+        }
+    }
+
+    @Test
+    public void idlesOnTheWakeUpAccelerometer() {
+        Sensor wakeUp = wakeUpAccelerometer();
+        start(accelerometer, wakeUp);
+
+        assertTrue(sensors.hasListener(detector, accelerometer));
+        assertFalse(sensors.hasListener(detector, wakeUp));
+
+        ShadowLooper.idleMainLooper(WATCH_SECONDS, TimeUnit.SECONDS);
+        assertFalse(sensors.hasListener(detector, accelerometer));
+        assertTrue(sensors.hasListener(detector, wakeUp));
+    }
+
+    @Test
+    public void wakeUpMotionRestartsTheWatch() {
+        Sensor wakeUp = wakeUpAccelerometer();
+        start(accelerometer, wakeUp);
+        ShadowLooper.idleMainLooper(WATCH_SECONDS, TimeUnit.SECONDS);
+
+        // Lying still (with the usual jitter) doesn't count...
+        send(wakeUp, 0f, 0f, 9.81f);
+        send(wakeUp, 0.1f, 0f, 9.8f);
+        send(wakeUp, 0f, 0.1f, 9.82f);
+        assertTrue(sensors.hasListener(detector, wakeUp));
+        assertFalse(sensors.hasListener(detector, accelerometer));
+
+        // ... but being moved does, and the watch starts over.
+        send(wakeUp, 2f, 0.5f, 9.5f);
+        assertFalse(sensors.hasListener(detector, wakeUp));
+        assertTrue(sensors.hasListener(detector, accelerometer));
+
+        ShadowLooper.idleMainLooper(WATCH_SECONDS, TimeUnit.SECONDS);
+        assertFalse(sensors.hasListener(detector, accelerometer));
+        assertTrue(sensors.hasListener(detector, wakeUp));
+    }
+
+    @Test
+    public void shakeDuringTheWatchWakesTheDevice() {
+        start(accelerometer, wakeUpAccelerometer());
+
+        Random random = new Random(1);
+        for (int i = 0; i < 50 && ShadowPowerManager.getLatestWakeLock() == null; i++) {
+            send(accelerometer, 8f * (random.nextFloat() - 0.5f),
+                    8f * (random.nextFloat() - 0.5f), 9.81f + 8f * (random.nextFloat() - 0.5f));
+        }
+        PowerManager.WakeLock wakeLock = ShadowPowerManager.getLatestWakeLock();
+        assertNotNull(wakeLock);
+        assertTrue(wakeLock.isHeld());
+        // Done: nothing is left listening, and no idle trigger is armed later.
+        assertTrue(sensors.getListeners().isEmpty());
+        ShadowLooper.idleMainLooper(WATCH_SECONDS, TimeUnit.SECONDS);
+        assertTrue(sensors.getListeners().isEmpty());
+    }
+
+    @Test
+    public void idlesOnSignificantMotion() {
+        start(accelerometer, ShadowSensor.newInstance(Sensor.TYPE_SIGNIFICANT_MOTION));
+
+        ShadowLooper.idleMainLooper(WATCH_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(sensors.trigger);
+        assertFalse(sensors.hasListener(detector, accelerometer));
+
+        // (The system disarms a trigger as it fires.)
+        TriggerEventListener trigger = sensors.trigger;
+        sensors.trigger = null;
+        trigger.onTrigger(null);
+        assertTrue(sensors.hasListener(detector, accelerometer));
+
+        ShadowLooper.idleMainLooper(WATCH_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(sensors.trigger);
+        assertFalse(sensors.hasListener(detector, accelerometer));
+    }
+
+    @Test
+    public void refusedTriggerKeepsWatching() {
+        sensors.refuseTriggers = true;
+        start(accelerometer, ShadowSensor.newInstance(Sensor.TYPE_SIGNIFICANT_MOTION));
+
+        ShadowLooper.idleMainLooper(WATCH_SECONDS, TimeUnit.SECONDS);
+        assertTrue(sensors.hasListener(detector, accelerometer));
+        ShadowLooper.idleMainLooper(WATCH_SECONDS, TimeUnit.SECONDS);
+        assertTrue(sensors.hasListener(detector, accelerometer));
+    }
+
+    @Test
+    public void withoutTriggersKeepsWatching() {
+        start(accelerometer);
+
+        ShadowLooper.idleMainLooper(WATCH_SECONDS, TimeUnit.SECONDS);
+        assertTrue(sensors.hasListener(detector, accelerometer));
+    }
+
+    @Test
+    public void onlyWakeUpAccelerometerIsNotATrigger() {
+        // Where the default accelerometer is itself a wake-up one, it can't double as the
+        // idle trigger.
+        Sensor wakeUp = wakeUpAccelerometer();
+        start(wakeUp);
+
+        ShadowLooper.idleMainLooper(WATCH_SECONDS, TimeUnit.SECONDS);
+        assertTrue(sensors.hasListener(detector, wakeUp));
+        send(wakeUp, 0f, 0f, 9.81f);
+        send(wakeUp, 2f, 0.5f, 9.5f);
+        assertTrue(sensors.hasListener(detector, wakeUp));
+    }
+
+    @Test
+    public void suspendedWhileIdle() {
+        Sensor wakeUp = wakeUpAccelerometer();
+        start(accelerometer, wakeUp);
+        ShadowLooper.idleMainLooper(WATCH_SECONDS, TimeUnit.SECONDS);
+
+        DeviceMotionDetector.suspend();
+        assertTrue(sensors.getListeners().isEmpty());
+        ShadowLooper.idleMainLooper(WATCH_SECONDS, TimeUnit.SECONDS);
+        assertTrue(sensors.getListeners().isEmpty());
+
+        DeviceMotionDetector.resume();
+        assertTrue(sensors.hasListener(detector, accelerometer));
+        assertFalse(sensors.hasListener(detector, wakeUp));
+    }
+
+    @NonNull
+    private Sensor wakeUpAccelerometer() {
+        Sensor sensor = ShadowSensor.newInstance(Sensor.TYPE_ACCELEROMETER);
+        ShadowSensor shadow = Shadow.extract(sensor);
+        shadow.setWakeUpFlag(true);
+        return sensor;
+    }
+
+    private void start(@NonNull Sensor... available) {
+        for (Sensor sensor : available) {
+            sensors.addSensor(sensor);
+        }
+        detector = DeviceMotionDetector.createForTest(context, new GlobalSettings(
+                context.getResources(), PreferenceManager.getDefaultSharedPreferences(context)));
+        assertNull(ShadowPowerManager.getLatestWakeLock());
+        DeviceMotionDetector.DetectUserInterest();
+    }
+
+    private void send(@NonNull Sensor sensor, float x, float y, float z) {
+        SensorEvent event = ShadowSensorManager.createSensorEvent(3);
+        event.sensor = sensor;
+        event.timestamp = timestamp += TimeUnit.MILLISECONDS.toNanos(20);
+        event.values[0] = x;
+        event.values[1] = y;
+        event.values[2] = z;
+        sensors.sendSensorEventToListeners(event);
+    }
+}
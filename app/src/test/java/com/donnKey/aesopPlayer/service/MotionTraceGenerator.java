@@ -0,0 +1,142 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Donn S. Terry
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.donnKey.aesopPlayer.service;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Random;
+
+// Writes the synthetic traces in test resources (motion/*.csv) that MotionTraceReplayTest
+// replays: gravity turned as each labelled segment says, plus sensor noise. Recordings from
+// a real device, in the same format, can be dropped in beside them.
+//   Run with the directory to write to (normally app/src/test/resources/motion).
+public class MotionTraceGenerator {
+    private static final float G = 9.81f;
+    private static final int PERIOD_MS = 20;
+    // (A sensor clock needn't start at 0.)
+    private static final long START_NANOS = 1_000_000_000L;
+
+    private interface Shape {
+        // frac runs from 0 to 1 across the segment.
+        float[] at(float frac, Random random);
+    }
+
+    private static class Segment {
+        final String label;
+        final float seconds;
+        final Shape shape;
+
+        Segment(String label, float seconds, Shape shape) {
+            this.label = label;
+            this.seconds = seconds;
+            this.shape = shape;
+        }
+    }
+
+    private static final Shape UP = (f, r) -> new float[] {0f, 0f, G};
+    private static final Shape DOWN = (f, r) -> new float[] {0f, 0f, -G};
+    private static final Shape SHAKE = (f, r) -> new float[] {
+            uniform(r, 8f), uniform(r, 8f), G * (float) Math.cos(f * Math.PI * 3) + uniform(r, 6f)};
+    // Face up to face down, about the x axis
+    private static final Shape FLIP = tilt(0f, 180f);
+
+    public static void main(String[] args) throws IOException {
+        File dir = new File(args.length > 0 ? args[0] : "app/src/test/resources/motion");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create " + dir);
+        }
+
+        write(new File(dir, "pick_up_and_put_down.csv"),
+                "Face up on a table, picked up and shaken about, then left face down.",
+                0.03f, 1,
+                new Segment("UP", 5f, UP),
+                new Segment("SHAKE", 2f, SHAKE),
+                new Segment("DOWN", 5f, DOWN));
+        write(new File(dir, "gently_tilted.csv"),
+                "Face up, then slowly tilted to 60 degrees and held there: never lying still.",
+                0.03f, 2,
+                new Segment("UP", 4f, UP),
+                new Segment("MOVE", 6f, tilt(0f, 60f)),
+                new Segment("MOVE", 4f, tilt(60f, 60f)));
+        write(new File(dir, "turned_over.csv"),
+                "Face down, turned over quickly to face up, then a second shake a while later.",
+                0.03f, 3,
+                new Segment("DOWN", 4f, DOWN),
+                new Segment("MOVE", 0.4f, (f, r) -> FLIP.at(1f - f, r)),
+                new Segment("UP", 5f, UP),
+                new Segment("SHAKE", 1.5f, SHAKE),
+                new Segment("UP", 4f, UP));
+        write(new File(dir, "noisy_table.csv"),
+                "Face down on a table that's being bumped: a noisy sensor and a few single-sample jolts.",
+                0.12f, 4,
+                new Segment("DOWN", 3f, DOWN),
+                new Segment("DOWN", 0.02f, (f, r) -> new float[] {3f, -2f, -G + 4f}),
+                new Segment("DOWN", 3f, DOWN),
+                new Segment("DOWN", 0.02f, (f, r) -> new float[] {-2f, 3f, -G - 4f}),
+                new Segment("DOWN", 4f, DOWN));
+    }
+
+    @NonNull
+    private static Shape tilt(float fromDegrees, float toDegrees) {
+        return (f, r) -> {
+            double a = Math.toRadians(fromDegrees + (toDegrees - fromDegrees) * f);
+            return new float[] {0f, G * (float) Math.sin(a), G * (float) Math.cos(a)};
+        };
+    }
+
+    private static float uniform(@NonNull Random random, float range) {
+        return (random.nextFloat() * 2f - 1f) * range;
+    }
+
+    private static void write(@NonNull File file, @NonNull String description, float noise,
+                              long seed, @NonNull Segment... segments) throws IOException {
+        Random random = new Random(seed);
+        long timestamp = START_NANOS;
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8")) {
+            out.write("# " + description + "\n");
+            out.write(String.format(Locale.US,
+                    "# Synthetic: gravity plus noise at %d Hz, from MotionTraceGenerator (seed %d).\n",
+                    1000 / PERIOD_MS, seed));
+            out.write("# timestamp_ns,x,y,z,label\n");
+            for (Segment segment : segments) {
+                int n = Math.max(1, Math.round(segment.seconds * 1000 / PERIOD_MS));
+                for (int i = 0; i < n; i++) {
+                    float[] v = segment.shape.at((float) i / Math.max(1, n - 1), random);
+                    out.write(String.format(Locale.US, "%d,%.4f,%.4f,%.4f,%s\n", timestamp,
+                            v[0] + noise * (float) random.nextGaussian(),
+                            v[1] + noise * (float) random.nextGaussian(),
+                            v[2] + noise * (float) random.nextGaussian(),
+                            segment.label));
+                    timestamp += PERIOD_MS * 1_000_000L;
+                }
+            }
+        }
+    }
+}
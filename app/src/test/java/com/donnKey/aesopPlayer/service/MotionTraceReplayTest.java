@@ -0,0 +1,269 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Donn S. Terry
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.donnKey.aesopPlayer.service;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorManager;
+import android.preference.PreferenceManager;
+
+import androidx.annotation.NonNull;
+
+import com.donnKey.aesopPlayer.GlobalSettings;
+import com.donnKey.aesopPlayer.TestAppContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadow.api.Shadow;
+import org.robolectric.shadows.ShadowSensor;
+import org.robolectric.shadows.ShadowSensorManager;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+// Accelerometer traces (test resources, motion/*.csv; see MotionTraceGenerator) replayed
+// through the detector: what it reports must agree with each trace's labels, and what each
+// sample costs is printed.
+// A trace line is "timestamp_ns,x,y,z,label"; the label says what the device was really
+// doing: UP or DOWN (lying still that way), SHAKE, or MOVE (handled, but not shaken).
+// Turning the device is motion too as far as the detector goes, so MOVE may be reported
+// as that; it must never be reported as lying still.
+@RunWith(RobolectricTestRunner.class)
+public class MotionTraceReplayTest {
+    // How long after what the labels say the detector may take to say it too.
+    private static final long LAG_NANOS = TimeUnit.MILLISECONDS.toNanos(1500);
+    // The cost is only reported: a wall-clock limit would fail on a busy build machine.
+    private static final int COST_ROUNDS = 50;
+
+    private Context context;
+    private Sensor accelerometer;
+    private DeviceMotionDetector detector;
+
+    private static class Sample {
+        final SensorEvent event;
+        final String label;
+
+        Sample(SensorEvent event, String label) {
+            this.event = event;
+            this.label = label;
+        }
+    }
+
+    private static class Detection {
+        final long timestamp;
+        final String label;
+
+        Detection(long timestamp, String label) {
+            this.timestamp = timestamp;
+            this.label = label;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return label + "@" + TimeUnit.NANOSECONDS.toMillis(timestamp) + "ms";
+        }
+    }
+
+    @Before
+    public void setUp() {
+        context = TestAppContext.install();
+        SensorManager sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        accelerometer = ShadowSensor.newInstance(Sensor.TYPE_ACCELEROMETER);
+        ShadowSensorManager shadowSensorManager = Shadow.extract(sensorManager);
+        shadowSensorManager.addSensor(accelerometer);
+    }
+
+    @After
+    public void tearDown() {
+        if (detector != null) {
+            detector.disable();
+        }
+    }
+
+    @Test
+    public void pickUpAndPutDown() throws Exception {
+        check("pick_up_and_put_down.csv");
+    }
+
+    @Test
+    public void gentlyTilted() throws Exception {
+        check("gently_tilted.csv");
+    }
+
+    @Test
+    public void turnedOver() throws Exception {
+        check("turned_over.csv");
+    }
+
+    @Test
+    public void noisyTable() throws Exception {
+        check("noisy_table.csv");
+    }
+
+    private void check(@NonNull String trace) throws Exception {
+        List<Sample> samples = load(trace);
+        List<Detection> detections = replay(samples);
+
+        // Everything reported was (recently) so...
+        for (Detection d : detections) {
+            assertTrue(trace + ": " + d + " in " + detections, labelledWithin(samples, d));
+        }
+        // ... and every stretch of lying still or being shaken was reported, in time.
+        int start = 0;
+        for (int i = 1; i <= samples.size(); i++) {
+            if (i < samples.size() && samples.get(i).label.equals(samples.get(start).label)) {
+                continue;
+            }
+            String label = samples.get(start).label;
+            long from = samples.get(start).event.timestamp;
+            if (!label.equals("MOVE")) {
+                boolean seen = false;
+                for (Detection d : detections) {
+                    seen |= d.label.equals(label) && d.timestamp >= from && d.timestamp <= from + LAG_NANOS;
+                }
+                // (Still the same way up as before isn't reported again; the detector only
+                // reports changes to that.)
+                seen |= label.matches("UP|DOWN") && sameStillnessBefore(samples, start, label);
+                assertTrue(trace + ": " + label + " from " + TimeUnit.NANOSECONDS.toMillis(from)
+                        + "ms not reported; got " + detections, seen);
+            }
+            start = i;
+        }
+
+        // The cost: (the first round, at least, warms things up)
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < COST_ROUNDS; round++) {
+            detector.disable();
+            detector = null;
+            long start1 = System.nanoTime();
+            replay(samples);
+            best = Math.min(best, System.nanoTime() - start1);
+        }
+        long perSample = best / samples.size();
+        System.out.println(String.format(Locale.US, "MotionTraceReplayTest: %s: %d samples, %s, %dns/sample",
+                trace, samples.size(), detections, perSample));
+    }
+
+    // Whether the label of what was detected held at some point in the lag before it.
+    private static boolean labelledWithin(@NonNull List<Sample> samples, @NonNull Detection d) {
+        for (Sample s : samples) {
+            if (s.event.timestamp > d.timestamp) {
+                break;
+            }
+            boolean agrees = s.label.equals(d.label)
+                    || (s.label.equals("MOVE") && d.label.equals("SHAKE"));
+            if (s.event.timestamp >= d.timestamp - LAG_NANOS && agrees) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Whether the last time the device was lying still before start, it was this way up.
+    private static boolean sameStillnessBefore(@NonNull List<Sample> samples, int start, String label) {
+        for (int i = start - 1; i >= 0; i--) {
+            String before = samples.get(i).label;
+            if (before.equals("SHAKE")) {
+                return false;
+            }
+            if (before.matches("UP|DOWN")) {
+                return before.equals(label);
+            }
+        }
+        return false;
+    }
+
+    @NonNull
+    private List<Detection> replay(@NonNull List<Sample> samples) {
+        List<Detection> detections = new ArrayList<>();
+        long[] now = new long[1];
+        detector = DeviceMotionDetector.createForTest(context, new GlobalSettings(
+                context.getResources(), PreferenceManager.getDefaultSharedPreferences(context)));
+        DeviceMotionDetector.getDeviceMotionDetector(new DeviceMotionDetector.Listener() {
+            @Override
+            public void onSignificantMotion() {
+                // (A shake is reported over and over; once for each is enough here.)
+                if (detections.isEmpty() || !detections.get(detections.size() - 1).label.equals("SHAKE")) {
+                    detections.add(new Detection(now[0], "SHAKE"));
+                }
+            }
+
+            @Override
+            public void onFaceDownStill() {
+                detections.add(new Detection(now[0], "DOWN"));
+            }
+
+            @Override
+            public void onFaceUpStill() {
+                detections.add(new Detection(now[0], "UP"));
+            }
+        });
+        detector.enable();
+        for (Sample sample : samples) {
+            now[0] = sample.event.timestamp;
+            detector.onSensorChanged(sample.event);
+        }
+        return detections;
+    }
+
+    @NonNull
+    private List<Sample> load(@NonNull String trace) throws IOException {
+        List<Sample> samples = new ArrayList<>();
+        InputStream in = getClass().getClassLoader().getResourceAsStream("motion/" + trace);
+        assertNotNull(trace, in);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split(",");
+                assertEquals(line, 5, fields.length);
+                SensorEvent event = ShadowSensorManager.createSensorEvent(3);
+                event.sensor = accelerometer;
+                event.timestamp = Long.parseLong(fields[0]);
+                for (int i = 0; i < 3; i++) {
+                    event.values[i] = Float.parseFloat(fields[i + 1]);
+                }
+                samples.add(new Sample(event, fields[4].trim()));
+            }
+        }
+        return samples;
+    }
+}
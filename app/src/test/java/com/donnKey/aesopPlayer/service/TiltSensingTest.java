@@ -0,0 +1,130 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Donn S. Terry
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.donnKey.aesopPlayer.service;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.preference.PreferenceManager;
+
+import com.donnKey.aesopPlayer.GlobalSettings;
+import com.donnKey.aesopPlayer.TestAppContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadow.api.Shadow;
+import org.robolectric.shadows.ShadowSensor;
+import org.robolectric.shadows.ShadowSensorManager;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Tilt control's own accelerometer listener must not hold the sensor at full rate while the
+// detector has slowed down for a device lying face down; it comes back once it's moved.
+@RunWith(RobolectricTestRunner.class)
+public class TiltSensingTest {
+    // A little over the detector's settling time
+    private static final long SETTLE_SECONDS = 12;
+
+    private ShadowSensorManager sensors;
+    private Sensor accelerometer;
+    private DeviceMotionDetector detector;
+    private long timestamp;
+
+    @Before
+    public void setUp() {
+        Context context = TestAppContext.install();
+        sensors = Shadow.extract(context.getSystemService(Context.SENSOR_SERVICE));
+        accelerometer = ShadowSensor.newInstance(Sensor.TYPE_ACCELEROMETER);
+        sensors.addSensor(accelerometer);
+        detector = DeviceMotionDetector.createForTest(context, new GlobalSettings(
+                context.getResources(), PreferenceManager.getDefaultSharedPreferences(context)));
+        DeviceMotionDetector.getDeviceMotionDetector(new DeviceMotionDetector.Listener() {
+            @Override
+            public void onSignificantMotion() {
+            }
+
+            @Override
+            public void onFaceDownStill() {
+            }
+
+            @Override
+            public void onFaceUpStill() {
+            }
+        });
+        detector.enable();
+        DeviceMotionDetector.getDeviceMotionDetector((direction, counter) -> {
+        });
+    }
+
+    @After
+    public void tearDown() {
+        detector.disable();
+    }
+
+    @Test
+    public void stopsWhileFaceDown() {
+        assertEquals(2, sensors.getListeners().size());
+
+        lie(-9.81f);
+        assertEquals(1, sensors.getListeners().size());
+        assertTrue(sensors.hasListener(detector, accelerometer));
+
+        // Picked up
+        for (int i = 0; i < 10; i++) {
+            send(i % 2 == 0 ? 4f : -4f, 3f, 9.81f);
+        }
+        assertEquals(2, sensors.getListeners().size());
+    }
+
+    @Test
+    public void keepsOnWhileFaceUp() {
+        lie(9.81f);
+        assertEquals(2, sensors.getListeners().size());
+    }
+
+    private void lie(float z) {
+        long end = timestamp + TimeUnit.SECONDS.toNanos(SETTLE_SECONDS);
+        int i = 0;
+        while (timestamp < end) {
+            send(0.02f * (i % 3 - 1), 0.02f * (i % 2), z);
+            i++;
+        }
+    }
+
+    private void send(float x, float y, float z) {
+        SensorEvent event = ShadowSensorManager.createSensorEvent(3);
+        event.sensor = accelerometer;
+        event.timestamp = timestamp += TimeUnit.MILLISECONDS.toNanos(20);
+        event.values[0] = x;
+        event.values[1] = y;
+        event.values[2] = z;
+        detector.onSensorChanged(event);
+    }
+}
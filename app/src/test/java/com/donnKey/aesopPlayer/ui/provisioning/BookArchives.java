@@ -0,0 +1,101 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Donn S. Terry
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.donnKey.aesopPlayer.ui.provisioning;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+// Made-up books, as they'd be downloaded: a lone audio file, a zip of a book's files,
+// and a zip holding zips of books. The "audio" is an ID3 tag and noise, which is all
+// the installing code looks at. The content depends only on the arguments.
+class BookArchives {
+    private BookArchives() {
+    }
+
+    @NonNull
+    static byte[] audioFile(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        System.arraycopy(new byte[]{'I', 'D', '3', 3, 0}, 0, data, 0, Math.min(5, length));
+        return data;
+    }
+
+    // A book of chapters audio files, each chapterLength long, in a directory named title.
+    @NonNull
+    static byte[] multiFileZip(@NonNull String title, int chapters, int chapterLength)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            zip.putNextEntry(new ZipEntry(title + "/"));
+            zip.closeEntry();
+            for (int i = 1; i <= chapters; i++) {
+                zip.putNextEntry(new ZipEntry(chapterName(title, i)));
+                zip.write(audioFile(chapterLength, title.hashCode() * 31L + i));
+                zip.closeEntry();
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    // A zip of books, each itself a zip (named title.zip) as multiFileZip() makes them.
+    @NonNull
+    static byte[] nestedZip(@NonNull String[] titles, int chapters, int chapterLength)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            for (String title : titles) {
+                zip.putNextEntry(new ZipEntry(title + ".zip"));
+                zip.write(multiFileZip(title, chapters, chapterLength));
+                zip.closeEntry();
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    // A zip with an entry that climbs out of wherever it's unzipped.
+    @NonNull
+    static byte[] escapingZip() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            zip.putNextEntry(new ZipEntry("Book/01.mp3"));
+            zip.write(audioFile(1000, 1));
+            zip.closeEntry();
+            zip.putNextEntry(new ZipEntry("../../escaped.mp3"));
+            zip.write(audioFile(1000, 2));
+            zip.closeEntry();
+        }
+        return bytes.toByteArray();
+    }
+
+    // Where multiFileZip() puts chapter (from 1) of title.
+    @NonNull
+    static String chapterName(@NonNull String title, int chapter) {
+        return String.format("%s/%02d.mp3", title, chapter);
+    }
+}
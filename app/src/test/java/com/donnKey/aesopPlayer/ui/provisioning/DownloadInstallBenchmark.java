@@ -0,0 +1,229 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Donn S. Terry
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.donnKey.aesopPlayer.ui.provisioning;
+
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+
+import com.donnKey.aesopPlayer.TestAppContext;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// The download and install legs of a script, timed on a plain JVM: each download line is
+// fetched from a local server (http or ftp) with the real downloaders and installed into an
+// AudioBooks directory with FileUtilities, the way Provisioning does it (unzip, then any
+// zips inside); a summary then goes out through the local mail servers. This isn't
+// RemoteAuto, which needs the whole app around it: its command handling, the book scans
+// after installing and its own report aren't covered.
+@RunWith(RobolectricTestRunner.class)
+public class DownloadInstallBenchmark {
+    private static final String LOGIN = "aesop@example.com";
+    private static final String PASSWORD = "secret";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeHttpServer http;
+    private FakeFtpServer ftp;
+    private FakeMailbox mailbox;
+    private FakeSmtpServer smtp;
+    private FakeImapServer imap;
+    private File downloads;
+    private File audioBooks;
+
+    // What downloading and installing a script's books did.
+    private static class Report {
+        long elapsedMs;
+        long downloaded;
+        long written;
+        int installed;
+
+        @NonNull
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "Script took %dms: %d bytes downloaded, %d bytes written, %d books installed.",
+                    elapsedMs, downloaded, written, installed);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        TestAppContext.install();
+        http = new FakeHttpServer();
+        ftp = new FakeFtpServer();
+        mailbox = new FakeMailbox();
+        smtp = new FakeSmtpServer(mailbox);
+        imap = new FakeImapServer(mailbox, LOGIN, PASSWORD);
+        downloads = folder.newFolder("Download");
+        audioBooks = folder.newFolder("AudioBooks");
+
+        byte[] single = BookArchives.audioFile(4 * 1024 * 1024, 1);
+        byte[] multi = BookArchives.multiFileZip("Multi", 8, 1024 * 1024);
+        byte[] nested = BookArchives.nestedZip(new String[]{"First", "Second", "Third"}, 4, 512 * 1024);
+        for (String path : new String[]{"/single.mp3", "/multi.zip", "/nested.zip"}) {
+            byte[] body = path.startsWith("/single") ? single : path.startsWith("/multi") ? multi : nested;
+            http.serve(path, body);
+            ftp.serve(path, body);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        http.close();
+        ftp.close();
+        smtp.close();
+        imap.close();
+    }
+
+    @Test
+    public void httpScript() throws Exception {
+        Report report = run(http.url("/single.mp3") + "\n"
+                + http.url("/multi.zip") + "\n"
+                + http.url("/nested.zip") + "\n");
+        checkInstalled(report);
+    }
+
+    @Test
+    public void ftpScript() throws Exception {
+        String base = "ftp://" + ftp.host() + ":" + ftp.port();
+        Report report = run(base + "/single.mp3\n"
+                + base + "/multi.zip\n"
+                + base + "/nested.zip\n");
+        checkInstalled(report);
+    }
+
+    @Test
+    public void downloadOnlyInstallsNothing() throws Exception {
+        Report report = run(http.url("/multi.zip") + " downloadOnly\n");
+        assertEquals(0, report.installed);
+        assertEquals(0, report.written);
+        assertTrue(new File(downloads, "multi.zip").exists());
+    }
+
+    private void checkInstalled(@NonNull Report report) throws Exception {
+        assertEquals(3, report.installed);
+        assertEquals(4 * 1024 * 1024, new File(audioBooks, "single/single.mp3").length());
+        for (int i = 1; i <= 8; i++) {
+            assertTrue(new File(audioBooks, "multi/" + BookArchives.chapterName("Multi", i)).isFile());
+        }
+        for (String title : new String[]{"First", "Second", "Third"}) {
+            File book = new File(audioBooks, "nested/" + title);
+            assertTrue(title, new File(book, BookArchives.chapterName(title, 4)).isFile());
+            assertTrue(title, !new File(audioBooks, "nested/" + title + ".zip").exists());
+        }
+        // Everything unzipped was counted (the inner zips too, on their way through), and
+        // nothing else.
+        long written = 8 * 1024 * 1024;
+        for (String title : new String[]{"First", "Second", "Third"}) {
+            written += BookArchives.multiFileZip(title, 4, 512 * 1024).length + 4 * 512 * 1024;
+        }
+        assertEquals(written, report.written);
+        long served = http.bytesServed() + ftp.bytesServed();
+        assertEquals(served, report.downloaded);
+
+        // The summary goes out by mail, as a report would.
+        Mail mail = new Mail("127.0.0.1", imap.port(), smtp.port(), LOGIN, PASSWORD, "");
+        mail.setRecipient(LOGIN)
+                .setSubject("Aesop request results")
+                .setMessageBody(report.toString())
+                .sendEmail();
+        assertEquals(1, mailbox.count());
+        assertTrue(mailbox.get(0).contains(report.toString()));
+        System.out.println("DownloadInstallBenchmark: " + report);
+    }
+
+    @NonNull
+    private Report run(@NonNull String script) throws Exception {
+        ScriptPlan plan = ScriptPlan.compile(Arrays.asList(script.split("\n")));
+        assertTrue(plan.errors.toString(), plan.errors.isEmpty());
+
+        Report report = new Report();
+        DownloadQueue.Throttle meter = new DownloadQueue.Throttle(0);
+        long writtenBefore = FileUtilities.bytesWritten();
+        long start = System.nanoTime();
+        for (ScriptPlan.Command command : plan.commands) {
+            if (command.kind != ScriptPlan.Kind.DOWNLOAD) {
+                fail("Not part of this benchmark: " + command.key);
+            }
+            File downloaded = download(command.operands().get(0), meter);
+            if (command.mutates) {
+                install(downloaded);
+                report.installed++;
+            }
+        }
+        report.elapsedMs = (System.nanoTime() - start) / 1000000;
+        report.downloaded = meter.transferred();
+        report.written = FileUtilities.bytesWritten() - writtenBefore;
+        return report;
+    }
+
+    @NonNull
+    private File download(@NonNull String url, @NonNull DownloadQueue.Throttle meter) throws Exception {
+        Uri uri = Uri.parse(url);
+        File target = new File(downloads, uri.getLastPathSegment());
+        if ("ftp".equals(uri.getScheme())) {
+            new Ftp().getFile(uri.getHost(), uri.getPort(), null, null, uri.getPath(),
+                    target, null, meter);
+            return target;
+        }
+        return new Http(null).getFile_socket(url, target, 1, meter);
+    }
+
+    private void install(@NonNull File downloaded) throws Exception {
+        List<String> errors = new ArrayList<>();
+        FileUtilities.ErrorCallback logError = (severity, text) -> errors.add(severity + ": " + text);
+        FileUtilities.StringCallback progress = s -> { };
+
+        String name = downloaded.getName();
+        File book = new File(audioBooks, name.substring(0, name.lastIndexOf('.')));
+        if (FileUtilities.isZip(name)) {
+            assertTrue(errors.toString(), FileUtilities.unzipAll(downloaded, book, progress, logError));
+            assertTrue(errors.toString(), FileUtilities.expandInnerZips(book, progress, logError));
+            FileUtils.forceDelete(downloaded);
+        }
+        else {
+            assertTrue(book.mkdirs());
+            assertTrue(FileUtilities.renameTo(downloaded, new File(book, name), logError));
+        }
+    }
+}
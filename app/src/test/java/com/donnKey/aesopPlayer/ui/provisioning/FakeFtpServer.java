@@ -0,0 +1,267 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Donn S. Terry
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.donnKey.aesopPlayer.ui.provisioning;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Just enough of an ftp server, on the loopback interface, for Ftp: login, TYPE, PASV,
+// SIZE, MDTM, REST and RETR. dropAfter() breaks off the next few transfers part way
+// through (426, as a real server reports a lost data connection); setRestSupported(false)
+// makes it a server that can't resume.
+class FakeFtpServer implements Closeable {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final ServerSocket serverSocket;
+    private final Thread acceptor;
+
+    private final Map<String, byte[]> files = new HashMap<>();
+    private final Map<String, String> modified = new HashMap<>();
+    private int versions;
+    private boolean restSupported = true;
+    private long dropAfter;
+    private int drops;
+    private @Nullable Runnable onDrop;
+    private final List<String> commands = new ArrayList<>();
+    private long bytesServed;
+
+    FakeFtpServer() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        acceptor = new Thread(this::acceptAll, "FakeFtpServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @NonNull
+    String host() {
+        return "127.0.0.1";
+    }
+
+    int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    // Serve body as path; each call is a new version of the file, with a later MDTM.
+    synchronized void serve(@NonNull String path, @NonNull byte[] body) {
+        files.put(path, body);
+        modified.put(path, String.format("20200101%06d", ++versions));
+    }
+
+    synchronized void setRestSupported(boolean restSupported) {
+        this.restSupported = restSupported;
+    }
+
+    // Close the data connection after this many bytes of each of the next count transfers.
+    synchronized void dropAfter(long bytes, int count) {
+        dropAfter = bytes;
+        drops = count;
+    }
+
+    // Run (on the server's thread) after each dropped transfer, before it's reported.
+    synchronized void onDrop(@Nullable Runnable onDrop) {
+        this.onDrop = onDrop;
+    }
+
+    // The commands received so far, as sent ("REST 1000").
+    @NonNull
+    synchronized List<String> commands() {
+        return new ArrayList<>(commands);
+    }
+
+    synchronized long bytesServed() {
+        return bytesServed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        try {
+            acceptor.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void acceptAll() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread t = new Thread(() -> session(socket), "FakeFtpServer session");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                // Closed.
+                return;
+            }
+        }
+    }
+
+    private void session(@NonNull Socket socket) {
+        ServerSocket passive = null;
+        long restart = 0;
+        try (Socket s = socket) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), ASCII));
+            Writer out = new OutputStreamWriter(s.getOutputStream(), ASCII);
+            reply(out, "220 FakeFtpServer ready");
+            String line;
+            while ((line = in.readLine()) != null) {
+                synchronized (this) {
+                    commands.add(line);
+                }
+                String[] command = line.split(" ", 2);
+                String verb = command[0].toUpperCase();
+                String argument = command.length > 1 ? command[1] : "";
+                byte[] body;
+                String mdtm;
+                boolean rest;
+                synchronized (this) {
+                    body = files.get(argument);
+                    mdtm = modified.get(argument);
+                    rest = restSupported;
+                }
+                switch (verb) {
+                    case "USER":
+                        reply(out, "331 Password please");
+                        break;
+                    case "PASS":
+                        reply(out, "230 Logged in");
+                        break;
+                    case "SYST":
+                        reply(out, "215 UNIX Type: L8");
+                        break;
+                    case "TYPE":
+                        reply(out, "200 Type set");
+                        break;
+                    case "NOOP":
+                        reply(out, "200 OK");
+                        break;
+                    case "PASV": {
+                        if (passive != null) {
+                            passive.close();
+                        }
+                        passive = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+                        int p = passive.getLocalPort();
+                        reply(out, "227 Entering Passive Mode (127,0,0,1," + (p >> 8) + "," + (p & 0xff) + ")");
+                        break;
+                    }
+                    case "SIZE":
+                        reply(out, body == null ? "550 No such file" : "213 " + body.length);
+                        break;
+                    case "MDTM":
+                        reply(out, body == null ? "550 No such file" : "213 " + mdtm);
+                        break;
+                    case "REST":
+                        if (rest) {
+                            restart = Long.parseLong(argument.trim());
+                            reply(out, "350 Restarting at " + restart);
+                        }
+                        else {
+                            reply(out, "502 REST not implemented");
+                        }
+                        break;
+                    case "RETR":
+                        if (body == null || passive == null) {
+                            reply(out, body == null ? "550 No such file" : "425 Use PASV first");
+                        }
+                        else {
+                            retrieve(out, passive, body, restart);
+                            passive.close();
+                            passive = null;
+                        }
+                        restart = 0;
+                        break;
+                    case "QUIT":
+                        reply(out, "221 Bye");
+                        return;
+                    default:
+                        reply(out, "502 Command not implemented");
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            // The client went away.
+        } finally {
+            if (passive != null) {
+                try {
+                    passive.close();
+                } catch (IOException e) {
+                    // Going away regardless.
+                }
+            }
+        }
+    }
+
+    private void retrieve(@NonNull Writer out, @NonNull ServerSocket passive, @NonNull byte[] body,
+                          long restart) throws IOException {
+        long dropAt = -1;
+        Runnable dropped = null;
+        synchronized (this) {
+            if (drops > 0) {
+                drops--;
+                dropAt = dropAfter;
+                dropped = onDrop;
+            }
+        }
+        reply(out, "150 Opening BINARY mode data connection");
+        long end = dropAt >= 0 ? Math.min(body.length, restart + dropAt) : body.length;
+        try (Socket data = passive.accept()) {
+            OutputStream output = data.getOutputStream();
+            for (long at = restart; at < end; ) {
+                int n = (int) Math.min(64 * 1024, end - at);
+                output.write(body, (int) at, n);
+                at += n;
+                synchronized (this) {
+                    bytesServed += n;
+                }
+            }
+            output.flush();
+        }
+        if (dropped != null && end < body.length) {
+            dropped.run();
+        }
+        reply(out, end < body.length ? "426 Connection closed; transfer aborted"
+                : "226 Transfer complete");
+    }
+
+    private static void reply(@NonNull Writer out, @NonNull String reply) throws IOException {
+        out.write(reply + "\r\n");
+        out.flush();
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Donn S. Terry
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.donnKey.aesopPlayer.ui.provisioning;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Just enough of an http server, on the loopback interface, for the downloads: HEAD and
+// GET, ETags, Range with If-Range, and If-None-Match. Every response closes its
+// connection. dropAfter() breaks off the next few bodies part way through, the way a
+// flaky network would.
+class FakeHttpServer implements Closeable {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final ServerSocket serverSocket;
+    private final Thread acceptor;
+
+    private final Map<String, byte[]> files = new HashMap<>();
+    private final Map<String, String> etags = new HashMap<>();
+    private int versions;
+    private boolean acceptRanges = true;
+    private long dropAfter;
+    private int drops;
+    private @Nullable Runnable onDrop;
+    private final List<String> requests = new ArrayList<>();
+    private long bytesServed;
+
+    FakeHttpServer() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        acceptor = new Thread(this::acceptAll, "FakeHttpServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @NonNull
+    String url(@NonNull String path) {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + path;
+    }
+
+    // Serve body at path; each call is a new version of the file, with a new ETag.
+    synchronized void serve(@NonNull String path, @NonNull byte[] body) {
+        files.put(path, body);
+        etags.put(path, "\"v" + ++versions + "\"");
+    }
+
+    synchronized void setAcceptRanges(boolean acceptRanges) {
+        this.acceptRanges = acceptRanges;
+    }
+
+    // Close the connection after sending this many bytes of each of the next count bodies.
+    synchronized void dropAfter(long bytes, int count) {
+        dropAfter = bytes;
+        drops = count;
+    }
+
+    // Run (on the server's thread) after each dropped connection.
+    synchronized void onDrop(@Nullable Runnable onDrop) {
+        this.onDrop = onDrop;
+    }
+
+    // "METHOD path" followed by the Range header if there was one, for each request so far.
+    @NonNull
+    synchronized List<String> requests() {
+        return new ArrayList<>(requests);
+    }
+
+    synchronized long bytesServed() {
+        return bytesServed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        try {
+            acceptor.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void acceptAll() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread t = new Thread(() -> handle(socket), "FakeHttpServer connection");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                // Closed.
+                return;
+            }
+        }
+    }
+
+    private void handle(@NonNull Socket socket) {
+        try (Socket s = socket) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), ASCII));
+            String requestLine = in.readLine();
+            if (requestLine == null) {
+                return;
+            }
+            String[] request = requestLine.split(" ");
+            Map<String, String> headers = new HashMap<>();
+            String line;
+            while ((line = in.readLine()) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                            line.substring(colon + 1).trim());
+                }
+            }
+            respond(s.getOutputStream(), request[0], request[1], headers);
+        } catch (IOException e) {
+            // The client went away.
+        }
+    }
+
+    private void respond(@NonNull OutputStream out, @NonNull String method, @NonNull String path,
+                         @NonNull Map<String, String> headers) throws IOException {
+        byte[] body;
+        String etag;
+        boolean ranges;
+        long dropAt = -1;
+        Runnable dropped = null;
+        synchronized (this) {
+            String range = headers.get("range");
+            requests.add(method + " " + path + (range != null ? " " + range : ""));
+            body = files.get(path);
+            etag = etags.get(path);
+            ranges = acceptRanges;
+            if (body != null && method.equals("GET") && drops > 0) {
+                drops--;
+                dropAt = dropAfter;
+                dropped = onDrop;
+            }
+        }
+
+        if (body == null) {
+            writeHead(out, "404 Not Found", "Content-Length: 0\r\n");
+            return;
+        }
+        String validators = "ETag: " + etag + "\r\n"
+                + (ranges ? "Accept-Ranges: bytes\r\n" : "");
+        if (etag.equals(headers.get("if-none-match"))) {
+            writeHead(out, "304 Not Modified", validators);
+            return;
+        }
+
+        long from = 0;
+        long to = body.length; // exclusive
+        String status = "200 OK";
+        String range = headers.get("range");
+        String ifRange = headers.get("if-range");
+        if (ranges && range != null && range.startsWith("bytes=")
+                && (ifRange == null || ifRange.equals(etag))) {
+            String[] fromTo = range.substring("bytes=".length()).split("-", -1);
+            from = Long.parseLong(fromTo[0]);
+            if (!fromTo[1].isEmpty()) {
+                to = Math.min(to, Long.parseLong(fromTo[1]) + 1);
+            }
+            if (from >= to) {
+                writeHead(out, "416 Range Not Satisfiable",
+                        "Content-Range: bytes */" + body.length + "\r\nContent-Length: 0\r\n");
+                return;
+            }
+            status = "206 Partial Content";
+            validators += "Content-Range: bytes " + from + "-" + (to - 1) + "/" + body.length + "\r\n";
+        }
+        writeHead(out, status, validators + "Content-Length: " + (to - from) + "\r\n");
+        if (method.equals("HEAD")) {
+            return;
+        }
+
+        long end = dropAt >= 0 ? Math.min(to, from + dropAt) : to;
+        for (long at = from; at < end; ) {
+            int n = (int) Math.min(64 * 1024, end - at);
+            out.write(body, (int) at, n);
+            at += n;
+            synchronized (this) {
+                bytesServed += n;
+            }
+        }
+        out.flush();
+        if (dropped != null && end < to) {
+            dropped.run();
+        }
+    }
+
+    private static void writeHead(@NonNull OutputStream out, @NonNull String status,
+                                  @NonNull String headers) throws IOException {
+        out.write(("HTTP/1.1 " + status + "\r\n" + headers + "Connection: close\r\n\r\n")
+                .getBytes(ASCII));
+        out.flush();
+    }
+}
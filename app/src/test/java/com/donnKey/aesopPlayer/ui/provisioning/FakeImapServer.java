@@ -0,0 +1,232 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Donn S. Terry
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.donnKey.aesopPlayer.ui.provisioning;
+
+import androidx.annotation.NonNull;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+// Just enough of an imap server, on the loopback interface, for Mail to log in, open the
+// INBOX, and IDLE on it: a delivery to the mailbox is announced ("* n EXISTS") to every
+// session that's idling. setIdleSupported(false) makes it a server without IDLE.
+// Searching and fetching messages aren't here.
+class FakeImapServer implements Closeable {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final FakeMailbox mailbox;
+    private final String login;
+    private final String password;
+    private final ServerSocket serverSocket;
+    private final Thread acceptor;
+
+    private boolean idleSupported = true;
+    private final List<String> commands = new ArrayList<>();
+
+    FakeImapServer(@NonNull FakeMailbox mailbox, @NonNull String login, @NonNull String password)
+            throws IOException {
+        this.mailbox = mailbox;
+        this.login = login;
+        this.password = password;
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        acceptor = new Thread(this::acceptAll, "FakeImapServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    synchronized void setIdleSupported(boolean idleSupported) {
+        this.idleSupported = idleSupported;
+    }
+
+    // The commands received so far, without their tags ("SELECT INBOX").
+    @NonNull
+    synchronized List<String> commands() {
+        return new ArrayList<>(commands);
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        try {
+            acceptor.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void acceptAll() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread t = new Thread(() -> session(socket), "FakeImapServer session");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                // Closed.
+                return;
+            }
+        }
+    }
+
+    private void session(@NonNull Socket socket) {
+        try (Socket s = socket) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), ASCII));
+            Writer out = new OutputStreamWriter(s.getOutputStream(), ASCII);
+            // What this session has been told the INBOX holds.
+            int[] reported = {0};
+            send(out, "* OK FakeImapServer ready");
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split(" ", 3);
+                if (parts.length < 2) {
+                    send(out, "* BAD missing command");
+                    continue;
+                }
+                String tag = parts[0];
+                String command = parts[1].toUpperCase();
+                String arguments = parts.length > 2 ? parts[2] : "";
+                boolean idle;
+                synchronized (this) {
+                    commands.add(parts.length > 2 ? command + " " + arguments : command);
+                    idle = idleSupported;
+                }
+                switch (command) {
+                    case "CAPABILITY":
+                        send(out, "* CAPABILITY IMAP4rev1" + (idle ? " IDLE" : ""));
+                        send(out, tag + " OK CAPABILITY completed");
+                        break;
+                    case "LOGIN": {
+                        String[] credentials = arguments.replace("\"", "").split(" ");
+                        if (credentials.length == 2 && credentials[0].equals(login)
+                                && credentials[1].equals(password)) {
+                            send(out, tag + " OK LOGIN completed");
+                        }
+                        else {
+                            send(out, tag + " NO [AUTHENTICATIONFAILED] Invalid credentials");
+                        }
+                        break;
+                    }
+                    case "LIST":
+                        send(out, "* LIST (\\HasNoChildren) \"/\" INBOX");
+                        send(out, tag + " OK LIST completed");
+                        break;
+                    case "SELECT":
+                    case "EXAMINE": {
+                        int count = mailbox.count();
+                        reported[0] = count;
+                        send(out, "* FLAGS (\\Answered \\Flagged \\Deleted \\Seen \\Draft)");
+                        send(out, "* OK [PERMANENTFLAGS (\\Answered \\Flagged \\Deleted \\Seen \\Draft \\*)] Limited");
+                        send(out, "* " + count + " EXISTS");
+                        send(out, "* 0 RECENT");
+                        send(out, "* OK [UIDVALIDITY 1] UIDs valid");
+                        send(out, "* OK [UIDNEXT " + (count + 1) + "] Predicted next UID");
+                        send(out, tag + (command.equals("SELECT") ? " OK [READ-WRITE]" : " OK [READ-ONLY]")
+                                + " " + command + " completed");
+                        break;
+                    }
+                    case "NOOP":
+                    case "CHECK":
+                        reportNew(out, reported);
+                        send(out, tag + " OK " + command + " completed");
+                        break;
+                    case "IDLE":
+                        if (!idle) {
+                            send(out, tag + " BAD Unknown command");
+                            break;
+                        }
+                        idle(in, out, tag, reported);
+                        break;
+                    case "CLOSE":
+                    case "EXPUNGE":
+                        send(out, tag + " OK " + command + " completed");
+                        break;
+                    case "LOGOUT":
+                        send(out, "* BYE FakeImapServer logging out");
+                        send(out, tag + " OK LOGOUT completed");
+                        return;
+                    default:
+                        send(out, tag + " BAD Unknown command");
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            // The client went away.
+        }
+    }
+
+    private void idle(@NonNull BufferedReader in, @NonNull Writer out, @NonNull String tag,
+                      @NonNull int[] reported) throws IOException {
+        FakeMailbox.Listener listener = count -> {
+            try {
+                reportNew(out, reported);
+            } catch (IOException e) {
+                // The session's reader will find out.
+            }
+        };
+        send(out, "+ idling");
+        mailbox.addListener(listener);
+        try {
+            // Anything that arrived before the listener was in place.
+            reportNew(out, reported);
+            String line;
+            while ((line = in.readLine()) != null && !line.equalsIgnoreCase("DONE")) {
+                // Nothing else is allowed while idling; ignore it.
+            }
+        } finally {
+            mailbox.removeListener(listener);
+        }
+        send(out, tag + " OK IDLE terminated");
+    }
+
+    private void reportNew(@NonNull Writer out, @NonNull int[] reported) throws IOException {
+        synchronized (out) {
+            int count = mailbox.count();
+            if (count != reported[0]) {
+                reported[0] = count;
+                send(out, "* " + count + " EXISTS");
+            }
+        }
+    }
+
+    private static void send(@NonNull Writer out, @NonNull String line) throws IOException {
+        synchronized (out) {
+            out.write(line + "\r\n");
+            out.flush();
+        }
+    }
+}
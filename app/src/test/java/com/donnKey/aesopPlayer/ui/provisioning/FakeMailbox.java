@@ -0,0 +1,71 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Donn S. Terry
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.donnKey.aesopPlayer.ui.provisioning;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// The one mailbox behind FakeSmtpServer and FakeImapServer: what's sent to the one
+// arrives in the INBOX of the other. Messages are kept as sent (RFC 822 text); a
+// message's UID is its position, from 1.
+class FakeMailbox {
+    interface Listener {
+        void delivered(int count);
+    }
+
+    private final List<String> messages = new ArrayList<>();
+    private final List<Listener> listeners = new ArrayList<>();
+
+    void deliver(@NonNull String message) {
+        List<Listener> notify;
+        int count;
+        synchronized (this) {
+            messages.add(message);
+            count = messages.size();
+            notify = new ArrayList<>(listeners);
+        }
+        for (Listener listener : notify) {
+            listener.delivered(count);
+        }
+    }
+
+    synchronized int count() {
+        return messages.size();
+    }
+
+    @NonNull
+    synchronized String get(int index) {
+        return messages.get(index);
+    }
+
+    synchronized void addListener(@NonNull Listener listener) {
+        listeners.add(listener);
+    }
+
+    synchronized void removeListener(@NonNull Listener listener) {
+        listeners.remove(listener);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Donn S. Terry
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.donnKey.aesopPlayer.ui.provisioning;
+
+import androidx.annotation.NonNull;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+
+// Just enough of an smtp server, on the loopback interface, for Mail.sendEmail(): EHLO,
+// AUTH (PLAIN or LOGIN, any credentials), MAIL, RCPT and DATA. Everything sent is
+// delivered to the mailbox, whoever it's addressed to.
+class FakeSmtpServer implements Closeable {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final FakeMailbox mailbox;
+    private final ServerSocket serverSocket;
+    private final Thread acceptor;
+
+    FakeSmtpServer(@NonNull FakeMailbox mailbox) throws IOException {
+        this.mailbox = mailbox;
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        acceptor = new Thread(this::acceptAll, "FakeSmtpServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        try {
+            acceptor.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void acceptAll() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread t = new Thread(() -> session(socket), "FakeSmtpServer session");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                // Closed.
+                return;
+            }
+        }
+    }
+
+    private void session(@NonNull Socket socket) {
+        try (Socket s = socket) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), ASCII));
+            Writer out = new OutputStreamWriter(s.getOutputStream(), ASCII);
+            send(out, "220 FakeSmtpServer ESMTP");
+            String line;
+            while ((line = in.readLine()) != null) {
+                String command = line.split(" ", 2)[0].toUpperCase();
+                switch (command) {
+                    case "EHLO":
+                        send(out, "250-FakeSmtpServer\r\n250-AUTH PLAIN LOGIN\r\n250 8BITMIME");
+                        break;
+                    case "HELO":
+                        send(out, "250 FakeSmtpServer");
+                        break;
+                    case "AUTH": {
+                        String[] auth = line.split(" ");
+                        if (auth.length > 1 && auth[1].equalsIgnoreCase("LOGIN")) {
+                            // Username, then password.
+                            send(out, "334 VXNlcm5hbWU6");
+                            in.readLine();
+                            send(out, "334 UGFzc3dvcmQ6");
+                            in.readLine();
+                        }
+                        else if (auth.length == 2) {
+                            // PLAIN, without the initial response.
+                            send(out, "334 ");
+                            in.readLine();
+                        }
+                        send(out, "235 Authentication successful");
+                        break;
+                    }
+                    case "MAIL":
+                    case "RCPT":
+                    case "RSET":
+                    case "NOOP":
+                        send(out, "250 OK");
+                        break;
+                    case "DATA": {
+                        send(out, "354 End data with <CR><LF>.<CR><LF>");
+                        StringBuilder message = new StringBuilder();
+                        while ((line = in.readLine()) != null && !line.equals(".")) {
+                            // Undo dot stuffing.
+                            message.append(line.startsWith(".") ? line.substring(1) : line).append("\r\n");
+                        }
+                        mailbox.deliver(message.toString());
+                        send(out, "250 OK queued");
+                        break;
+                    }
+                    case "QUIT":
+                        send(out, "221 Bye");
+                        return;
+                    default:
+                        send(out, "502 Command not implemented");
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            // The client went away.
+        }
+    }
+
+    private static void send(@NonNull Writer out, @NonNull String line) throws IOException {
+        out.write(line + "\r\n");
+        out.flush();
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Donn S. Terry
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.donnKey.aesopPlayer.ui.provisioning;
+
+import com.donnKey.aesopPlayer.TestAppContext;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// Downloads from FakeFtpServer, with the data connection dropped part way through.
+// (Each drop costs a retry's backoff, a couple of seconds.)
+@RunWith(RobolectricTestRunner.class)
+public class FtpTest {
+    private static final int LENGTH = 1000000;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeFtpServer ftp;
+    private File target;
+    private final byte[] body = BookArchives.audioFile(LENGTH, 1);
+    private long progressDone = -1;
+    private long progressTotal;
+
+    @Before
+    public void setUp() throws Exception {
+        TestAppContext.install();
+        ftp = new FakeFtpServer();
+        ftp.serve("/books/book.mp3", body);
+        target = new File(folder.getRoot(), "book.mp3");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ftp.close();
+    }
+
+    private void download() throws Exception {
+        new Ftp().getFile(ftp.host(), ftp.port(), null, null, "/books/book.mp3", target,
+                (done, total) -> {
+                    progressDone = done;
+                    progressTotal = total;
+                }, null);
+    }
+
+    @Test
+    public void downloads() throws Exception {
+        download();
+        assertArrayEquals(body, FileUtils.readFileToByteArray(target));
+        assertTrue(ftp.commands().contains("TYPE I"));
+        assertTrue(ftp.commands().contains("PASV"));
+        assertEquals(LENGTH, progressDone);
+        assertEquals(LENGTH, progressTotal);
+        // Nothing's left beside it.
+        String[] left = folder.getRoot().list();
+        assertEquals(1, left == null ? 0 : left.length);
+    }
+
+    @Test
+    public void resumesAfterADisconnect() throws Exception {
+        ftp.dropAfter(300000, 2);
+        download();
+        assertArrayEquals(body, FileUtils.readFileToByteArray(target));
+        assertTrue(ftp.commands().toString(), ftp.commands().contains("REST 300000"));
+        assertTrue(ftp.commands().toString(), ftp.commands().contains("REST 600000"));
+        // Nothing was sent twice.
+        assertEquals(LENGTH, ftp.bytesServed());
+    }
+
+    @Test
+    public void startsOverWithoutRest() throws Exception {
+        ftp.setRestSupported(false);
+        ftp.dropAfter(300000, 1);
+        download();
+        assertArrayEquals(body, FileUtils.readFileToByteArray(target));
+        assertEquals(300000 + LENGTH, ftp.bytesServed());
+    }
+
+    @Test
+    public void resumesOnALaterRun() throws Exception {
+        interruptAfter(300000);
+        download();
+        assertArrayEquals(body, FileUtils.readFileToByteArray(target));
+        assertTrue(ftp.commands().toString(), ftp.commands().contains("REST 300000"));
+        assertEquals(LENGTH, ftp.bytesServed());
+    }
+
+    @Test
+    public void startsOverIfTheFileChanged() throws Exception {
+        interruptAfter(300000);
+        byte[] changed = BookArchives.audioFile(LENGTH, 2);
+        ftp.serve("/books/book.mp3", changed);
+        download();
+        assertArrayEquals(changed, FileUtils.readFileToByteArray(target));
+        assertFalse(ftp.commands().toString(), ftp.commands().contains("REST 300000"));
+    }
+
+    // Start a download and stop it for good (the worker is interrupted) when the transfer
+    // drops after bytes: what's been received must be kept for next time.
+    private void interruptAfter(long bytes) throws Exception {
+        Thread worker = Thread.currentThread();
+        ftp.dropAfter(bytes, 1);
+        ftp.onDrop(() -> {
+            // Once the client has read what was sent, while it waits to hear how that went.
+            try {
+                Thread.sleep(500);
+            } catch (InterruptedException e) {
+                return;
+            }
+            worker.interrupt();
+        });
+        try {
+            download();
+            fail("The download should have stopped");
+        } catch (InterruptedException e) {
+            // As expected.
+        } finally {
+            ftp.onDrop(null);
+            //noinspection ResultOfMethodCallIgnored
+            Thread.interrupted();
+        }
+        assertFalse(target.exists());
+        File[] partial = folder.getRoot().listFiles((dir, name) -> name.endsWith(".partial"));
+        assertEquals(1, partial == null ? 0 : partial.length);
+        assertEquals(bytes, partial[0].length());
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Donn S. Terry
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.donnKey.aesopPlayer.ui.provisioning;
+
+import com.donnKey.aesopPlayer.TestAppContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+public class MailTest {
+    private static final String LOGIN = "aesop@example.com";
+    private static final String PASSWORD = "secret";
+
+    private FakeMailbox mailbox;
+    private FakeImapServer imap;
+    private FakeSmtpServer smtp;
+
+    @Before
+    public void setUp() throws Exception {
+        TestAppContext.install();
+        mailbox = new FakeMailbox();
+        imap = new FakeImapServer(mailbox, LOGIN, PASSWORD);
+        smtp = new FakeSmtpServer(mailbox);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        imap.close();
+        smtp.close();
+    }
+
+    private Mail mail(String password) {
+        return new Mail("127.0.0.1", imap.port(), smtp.port(), LOGIN, password, "Kitchen");
+    }
+
+    @Test
+    public void connects() {
+        assertEquals(Mail.SUCCESS, mail(PASSWORD).testConnection());
+        assertTrue(imap.commands().contains("SELECT INBOX"));
+    }
+
+    @Test
+    public void wrongPasswordIsReported() {
+        assertEquals(Mail.UNRECOGNIZED_USER_PASSWORD, mail("wrong").testConnection());
+    }
+
+    @Test
+    public void sentMailArrives() {
+        mail(PASSWORD).setRecipient(LOGIN)
+                .setSubject("Aesop request results")
+                .setMessageBody("All done.")
+                .sendEmail();
+        assertEquals(1, mailbox.count());
+        String message = mailbox.get(0);
+        assertTrue(message, message.contains("Subject: Aesop request results"));
+        assertTrue(message, message.contains("All done."));
+    }
+
+    @Test(timeout = 30000)
+    public void newMailEndsTheWait() throws Exception {
+        Mail mail = mail(PASSWORD);
+        assertEquals(Mail.SUCCESS, mail.open());
+        Thread sender = new Thread(() -> {
+            try {
+                Thread.sleep(500);
+            } catch (InterruptedException e) {
+                return;
+            }
+            mail(PASSWORD).setRecipient(LOGIN)
+                    .setSubject("Aesop request kitchen")
+                    .setMessageBody("books:books")
+                    .sendEmail();
+        });
+        sender.start();
+        long start = System.nanoTime();
+        assertTrue(mail.awaitNewMail(20000));
+        long waitedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("waited " + waitedMs + "ms", waitedMs < 10000);
+        assertTrue(imap.commands().contains("IDLE"));
+        sender.join();
+        mail.close();
+    }
+
+    @Test(timeout = 30000)
+    public void waitEndsWithNoMail() throws Exception {
+        Mail mail = mail(PASSWORD);
+        assertEquals(Mail.SUCCESS, mail.open());
+        long start = System.nanoTime();
+        assertFalse(mail.awaitNewMail(1000));
+        long waitedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("waited " + waitedMs + "ms", waitedMs >= 1000 && waitedMs < 10000);
+        assertEquals(0, mailbox.count());
+        mail.close();
+    }
+
+    @Test(timeout = 30000)
+    public void longWaitRenewsIdle() throws Exception {
+        Mail mail = mail(PASSWORD);
+        // (Over a second: JavaMail only ends an IDLE to use the folder when a NOOP is due.)
+        mail.idleRefreshMs = 1500;
+        assertEquals(Mail.SUCCESS, mail.open());
+        assertFalse(mail.awaitNewMail(5000));
+        int idles = 0;
+        for (String command : imap.commands()) {
+            if (command.equals("IDLE")) {
+                idles++;
+            }
+        }
+        assertTrue(idles + " IDLEs", idles >= 3);
+        mail.close();
+    }
+
+    @Test(timeout = 30000)
+    public void serverWithoutIdleIsReported() throws Exception {
+        imap.setIdleSupported(false);
+        Mail mail = mail(PASSWORD);
+        assertEquals(Mail.SUCCESS, mail.open());
+        try {
+            mail.awaitNewMail(1000);
+            fail("IDLE isn't there to use");
+        } catch (MessagingException e) {
+            // As expected: the caller goes back to polling.
+        }
+        assertFalse(imap.commands().contains("IDLE"));
+        mail.close();
+    }
+}
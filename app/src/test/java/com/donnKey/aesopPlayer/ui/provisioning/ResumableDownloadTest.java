@@ -0,0 +1,203 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Donn S. Terry
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.donnKey.aesopPlayer.ui.provisioning;
+
+import androidx.annotation.NonNull;
+
+import com.donnKey.aesopPlayer.TestAppContext;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// Downloads from FakeHttpServer, with the connection dropped part way through. (Each
+// drop costs a retry's backoff, a couple of seconds.)
+@RunWith(RobolectricTestRunner.class)
+public class ResumableDownloadTest {
+    private static final int LENGTH = 1000000;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeHttpServer http;
+    private File partial;
+    private File target;
+
+    @Before
+    public void setUp() throws Exception {
+        TestAppContext.install();
+        http = new FakeHttpServer();
+        partial = new File(folder.getRoot(), ".book.mp3.partial");
+        target = new File(folder.getRoot(), "book.mp3");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        http.close();
+    }
+
+    @NonNull
+    private ResumableDownload download() {
+        return new ResumableDownload(http.url("/book.mp3"), partial, null);
+    }
+
+    @Test
+    public void resumesAfterDisconnects() throws Exception {
+        byte[] body = BookArchives.audioFile(LENGTH, 1);
+        http.serve("/book.mp3", body);
+        http.dropAfter(300000, 2);
+
+        download().download(target, 1);
+
+        assertArrayEquals(body, FileUtils.readFileToByteArray(target));
+        // Nothing was sent twice.
+        assertEquals(LENGTH, http.bytesServed());
+        assertTrue(http.requests().toString(),
+                http.requests().contains("GET /book.mp3 bytes=600000-999999"));
+        assertFalse(partial.exists());
+    }
+
+    @Test
+    public void resumesOnALaterRun() throws Exception {
+        byte[] body = BookArchives.audioFile(LENGTH, 1);
+        http.serve("/book.mp3", body);
+        interruptAfter(400000);
+
+        // And now again, the way a later request for the same URL would.
+        download().download(target, 1);
+        assertArrayEquals(body, FileUtils.readFileToByteArray(target));
+        assertEquals(LENGTH, http.bytesServed());
+        List<String> requests = http.requests();
+        assertEquals("GET /book.mp3 bytes=400000-999999", requests.get(requests.size() - 1));
+    }
+
+    @Test
+    public void startsOverIfTheFileChanged() throws Exception {
+        http.serve("/book.mp3", BookArchives.audioFile(LENGTH, 1));
+        interruptAfter(400000);
+
+        byte[] changed = BookArchives.audioFile(LENGTH, 2);
+        http.serve("/book.mp3", changed);
+        download().download(target, 1);
+        assertArrayEquals(changed, FileUtils.readFileToByteArray(target));
+        List<String> requests = http.requests();
+        assertEquals("GET /book.mp3", requests.get(requests.size() - 1));
+    }
+
+    @Test
+    public void takesALargerFileThatChangedWhileDownloading() throws Exception {
+        changesWhileDownloading(LENGTH + 250000);
+    }
+
+    @Test
+    public void takesASmallerFileThatChangedWhileDownloading() throws Exception {
+        changesWhileDownloading(LENGTH - 250000);
+    }
+
+    // The file is replaced on the server between the first request and the resume, which
+    // then gets all of the new one (If-Range fails): that's what must be downloaded.
+    private void changesWhileDownloading(int newLength) throws Exception {
+        http.serve("/book.mp3", BookArchives.audioFile(LENGTH, 1));
+        byte[] changed = BookArchives.audioFile(newLength, 2);
+        http.dropAfter(300000, 1);
+        http.onDrop(() -> http.serve("/book.mp3", changed));
+
+        download().download(target, 1);
+
+        assertArrayEquals(changed, FileUtils.readFileToByteArray(target));
+        assertEquals(300000 + newLength, http.bytesServed());
+        assertTrue(http.requests().toString(),
+                http.requests().contains("GET /book.mp3 bytes=300000-" + (LENGTH - 1)));
+        assertFalse(partial.exists());
+    }
+
+    @Test
+    public void startsOverIfTheServerTakesNoRanges() throws Exception {
+        byte[] body = BookArchives.audioFile(LENGTH, 1);
+        http.serve("/book.mp3", body);
+        http.setAcceptRanges(false);
+        http.dropAfter(300000, 1);
+
+        download().download(target, 1);
+        assertArrayEquals(body, FileUtils.readFileToByteArray(target));
+        assertEquals(300000 + LENGTH, http.bytesServed());
+    }
+
+    @Test
+    public void segmentsResumeSeparately() throws Exception {
+        // Big enough for two segments (of at least 8MB each).
+        int length = 20 * 1024 * 1024;
+        byte[] body = BookArchives.audioFile(length, 3);
+        http.serve("/book.mp3", body);
+        http.dropAfter(3 * 1024 * 1024, 2);
+
+        download().download(target, 4);
+
+        assertArrayEquals(body, FileUtils.readFileToByteArray(target));
+        assertEquals(length, http.bytesServed());
+        List<String> requests = http.requests();
+        assertTrue(requests.toString(), requests.contains("GET /book.mp3 bytes=0-10485759"));
+        assertTrue(requests.toString(), requests.contains("GET /book.mp3 bytes=10485760-20971519"));
+        assertTrue(requests.toString(), requests.contains("GET /book.mp3 bytes=3145728-10485759"));
+        assertTrue(requests.toString(), requests.contains("GET /book.mp3 bytes=13631488-20971519"));
+    }
+
+    // Start a download and stop it for good (the worker is interrupted) when the connection
+    // drops after bytes: what's been received must be kept for next time.
+    private void interruptAfter(long bytes) throws Exception {
+        Thread worker = Thread.currentThread();
+        http.dropAfter(bytes, 1);
+        http.onDrop(worker::interrupt);
+        try {
+            download().download(target, 1);
+            fail("The download should have stopped");
+        } catch (IOException e) {
+            // As expected.
+        } finally {
+            http.onDrop(null);
+            // (Clear the interrupt, if it's still pending.)
+            //noinspection ResultOfMethodCallIgnored
+            Thread.interrupted();
+        }
+        assertFalse(target.exists());
+        assertTrue(partial.exists());
+        assertTrue(new File(partial.getPath() + ".json").exists());
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Donn S. Terry
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.donnKey.aesopPlayer.ui.provisioning;
+
+import androidx.annotation.NonNull;
+
+import com.donnKey.aesopPlayer.TestAppContext;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// Books installed straight off an http stream, as RemoteAuto does it for a zip.
+@RunWith(RobolectricTestRunner.class)
+public class StreamInstallTest {
+    private static final int CHAPTER_LENGTH = 256 * 1024;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeHttpServer http;
+    private File audioBooks;
+    private final List<String> errors = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        TestAppContext.install();
+        http = new FakeHttpServer();
+        audioBooks = folder.newFolder("AudioBooks");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        http.close();
+    }
+
+    private boolean install(@NonNull String path, @NonNull String title) throws Exception {
+        try (InputStream stream = new Http(null).openStream_socket(http.url(path))) {
+            return FileUtilities.installStream(stream, new File(audioBooks, title),
+                    s -> { }, (severity, text) -> errors.add(severity + ": " + text));
+        }
+    }
+
+    @Test
+    public void installsABook() throws Exception {
+        http.serve("/book.zip", BookArchives.multiFileZip("Book", 5, CHAPTER_LENGTH));
+        assertTrue(errors.toString(), install("/book.zip", "Book"));
+        for (int i = 1; i <= 5; i++) {
+            String name = BookArchives.chapterName("Book", i);
+            assertArrayEquals(BookArchives.audioFile(CHAPTER_LENGTH, "Book".hashCode() * 31L + i),
+                    FileUtils.readFileToByteArray(new File(audioBooks, "Book/" + name)));
+        }
+        assertOnlyInstalled("Book");
+    }
+
+    @Test
+    public void expandsInnerZips() throws Exception {
+        http.serve("/set.zip", BookArchives.nestedZip(new String[]{"One", "Two"}, 2, CHAPTER_LENGTH));
+        assertTrue(errors.toString(), install("/set.zip", "Set"));
+        assertTrue(new File(audioBooks, "Set/One/" + BookArchives.chapterName("One", 2)).isFile());
+        assertTrue(new File(audioBooks, "Set/Two/" + BookArchives.chapterName("Two", 2)).isFile());
+        assertFalse(new File(audioBooks, "Set/One.zip").exists());
+        assertOnlyInstalled("Set");
+    }
+
+    @Test
+    public void refusesWhatIsNotABook() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            zip.putNextEntry(new ZipEntry("Photos/cover.jpg"));
+            zip.write(new byte[1000]);
+            zip.closeEntry();
+        }
+        http.serve("/photos.zip", bytes.toByteArray());
+        assertFalse(install("/photos.zip", "Photos"));
+        assertEquals(1, errors.size());
+        assertOnlyInstalled();
+    }
+
+    @Test
+    public void leavesNothingWhenTheConnectionDrops() throws Exception {
+        http.serve("/book.zip", BookArchives.multiFileZip("Book", 5, CHAPTER_LENGTH));
+        http.dropAfter(3 * CHAPTER_LENGTH, 1);
+        assertFalse(install("/book.zip", "Book"));
+        assertOnlyInstalled();
+    }
+
+    @Test
+    public void refusesEntriesOutsideTheBook() throws Exception {
+        http.serve("/evil.zip", BookArchives.escapingZip());
+        assertFalse(install("/evil.zip", "Evil"));
+        assertOnlyInstalled();
+        assertFalse(new File(folder.getRoot(), "escaped.mp3").exists());
+        assertFalse(new File(audioBooks, "escaped.mp3").exists());
+    }
+
+    // Exactly these are in AudioBooks (and so no temp directory).
+    private void assertOnlyInstalled(@NonNull String... titles) {
+        String[] found = audioBooks.list();
+        assertEquals(Arrays.toString(found), titles.length, found == null ? 0 : found.length);
+        for (String title : titles) {
+            assertTrue(title, new File(audioBooks, title).isDirectory());
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Donn S. Terry
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.donnKey.aesopPlayer.ui.provisioning;
+
+import androidx.annotation.NonNull;
+
+import com.donnKey.aesopPlayer.TestAppContext;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// A book's tree copied into place, as installing a directory does it.
+@RunWith(RobolectricTestRunner.class)
+public class TreeCopyTest {
+    private static final int CHAPTERS = 6;
+    private static final int CHAPTER_LENGTH = 700 * 1024;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File book;
+    private File audioBooks;
+    private final List<String> errors = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        TestAppContext.install();
+        book = folder.newFolder("Book");
+        for (int i = 0; i < CHAPTERS; i++) {
+            // (Some in a subdirectory, as a multi-part book would be.)
+            File to = new File(book, BookArchives.chapterName(i < CHAPTERS / 2 ? "." : "Part 2", i));
+            FileUtils.writeByteArrayToFile(to, BookArchives.audioFile(CHAPTER_LENGTH, i));
+        }
+        audioBooks = folder.newFolder("AudioBooks");
+    }
+
+    @Test
+    public void copies() throws Exception {
+        copy(false);
+    }
+
+    @Test
+    public void copiesAndCompares() throws Exception {
+        copy(true);
+    }
+
+    private void copy(boolean verify) throws Exception {
+        File to = new File(audioBooks, "Book");
+        assertTrue(errors.toString(), FileUtilities.atomicTreeCopy(book, to, verify, s -> { },
+                (severity, text) -> {
+                    if (severity != Provisioning.Severity.INFO) {
+                        errors.add(severity + ": " + text);
+                    }
+                }));
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertSameTree(book, to);
+        // Nothing left over from the copy.
+        String[] left = audioBooks.list();
+        assertTrue(left != null && left.length == 1);
+        assertFalse(new File(audioBooks, FileUtilities.UnzipTmpName).exists());
+    }
+
+    private static void assertSameTree(@NonNull File expected, @NonNull File actual) throws Exception {
+        if (expected.isDirectory()) {
+            assertTrue(actual.getPath(), actual.isDirectory());
+            String[] names = expected.list();
+            assertTrue(names != null);
+            for (String name : names) {
+                assertSameTree(new File(expected, name), new File(actual, name));
+            }
+            String[] actualNames = actual.list();
+            assertTrue(actualNames != null && actualNames.length == names.length);
+        }
+        else {
+            assertArrayEquals(actual.getPath(), FileUtils.readFileToByteArray(expected),
+                    FileUtils.readFileToByteArray(actual));
+        }
+    }
+}
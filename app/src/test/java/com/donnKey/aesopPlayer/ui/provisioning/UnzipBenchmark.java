@@ -0,0 +1,158 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Donn S. Terry
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.donnKey.aesopPlayer.ui.provisioning;
+
+import androidx.annotation.NonNull;
+
+import com.donnKey.aesopPlayer.TestAppContext;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// FileUtilities.unzipAll() against the way it used to extract (one entry at a time,
+// IOUtils.copy, a progress report per entry), on a made-up book.
+@RunWith(RobolectricTestRunner.class)
+public class UnzipBenchmark {
+    private static final int CHAPTERS = 24;
+    private static final int CHAPTER_LENGTH = 2 * 1024 * 1024;
+    private static final int ROUNDS = 3;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File zip;
+    private final List<String> errors = new ArrayList<>();
+    private final FileUtilities.ErrorCallback logError = (severity, text) -> errors.add(severity + ": " + text);
+    private int progressReports;
+    private final FileUtilities.StringCallback progress = s -> progressReports++;
+
+    @Before
+    public void setUp() throws Exception {
+        TestAppContext.install();
+        zip = folder.newFile("book.zip");
+        FileUtils.writeByteArrayToFile(zip, BookArchives.multiFileZip("Book", CHAPTERS, CHAPTER_LENGTH));
+    }
+
+    @Test
+    public void compareWithBefore() throws Exception {
+        long bytes = (long) CHAPTERS * CHAPTER_LENGTH;
+        long oldNs = Long.MAX_VALUE;
+        long newNs = Long.MAX_VALUE;
+        // (Best of a few, alternating, so neither gets all the warm caches.)
+        for (int round = 0; round < ROUNDS; round++) {
+            File before = new File(folder.getRoot(), "before" + round);
+            long start = System.nanoTime();
+            assertTrue(unzipAsBefore(zip, before));
+            oldNs = Math.min(oldNs, System.nanoTime() - start);
+
+            File after = new File(folder.getRoot(), "after" + round);
+            progressReports = 0;
+            start = System.nanoTime();
+            assertTrue(errors.toString(), FileUtilities.unzipAll(zip, after, progress, logError));
+            newNs = Math.min(newNs, System.nanoTime() - start);
+
+            assertSameTree(before, after);
+            // Throttled, not one per entry.
+            assertTrue("progress reports: " + progressReports, progressReports < CHAPTERS);
+            FileUtils.deleteDirectory(before);
+            FileUtils.deleteDirectory(after);
+        }
+        System.out.println(String.format(Locale.US,
+                "UnzipBenchmark: %d files, %d MB: before %.0f MB/s, now %.0f MB/s",
+                CHAPTERS, bytes >> 20, mbPerSecond(bytes, oldNs), mbPerSecond(bytes, newNs)));
+    }
+
+    @Test
+    public void nothingAppearsIfTheZipIsBad() throws Exception {
+        // Cut off part way through the last chapter's data: the central directory's gone.
+        try (RandomAccessFile f = new RandomAccessFile(zip, "rw")) {
+            f.setLength(f.length() - CHAPTER_LENGTH / 2);
+        }
+        File target = new File(folder.getRoot(), "Book");
+        assertFalse(FileUtilities.unzipAll(zip, target, progress, logError));
+        assertFalse(target.exists());
+        assertEquals(1, errors.size());
+    }
+
+    // innerUnzipAll() as it was, and unzipAll()'s rename.
+    private boolean unzipAsBefore(@NonNull File zipName, @NonNull File targetDir) throws IOException {
+        File targetTmp = new File(targetDir.getParentFile(), targetDir.getName() + FileUtilities.UnzipTmpName);
+        try (ZipFile zipData = new ZipFile(zipName)) {
+            Enumeration<? extends ZipEntry> entryList = zipData.entries();
+            while (entryList.hasMoreElements()) {
+                ZipEntry subFile = entryList.nextElement();
+                File newFile = new File(targetTmp, subFile.getName());
+                progress.Callback(subFile.getName());
+                if (subFile.isDirectory()) {
+                    assertTrue(newFile.mkdirs());
+                    continue;
+                }
+                //noinspection ResultOfMethodCallIgnored
+                newFile.getParentFile().mkdirs();
+                try (BufferedInputStream from = new BufferedInputStream(zipData.getInputStream(subFile));
+                     OutputStream to = new FileOutputStream(newFile)) {
+                    IOUtils.copy(from, to);
+                }
+            }
+        }
+        return targetTmp.renameTo(targetDir);
+    }
+
+    private static void assertSameTree(@NonNull File expected, @NonNull File actual) throws IOException {
+        for (int i = 1; i <= CHAPTERS; i++) {
+            String name = BookArchives.chapterName("Book", i);
+            assertArrayEquals(name, FileUtils.readFileToByteArray(new File(expected, name)),
+                    FileUtils.readFileToByteArray(new File(actual, name)));
+        }
+        assertEquals(FileUtilities.treeSize(expected), FileUtilities.treeSize(actual));
+    }
+
+    private static double mbPerSecond(long bytes, long ns) {
+        return bytes / 1048576.0 / (ns / 1e9);
+    }
+}